@@ -0,0 +1,10 @@
+package android.os;
+
+/** Shim for the benchmarks. */
+public final class SystemClock
+{
+  public static long uptimeMillis()
+  {
+    return System.nanoTime() / 1000000L;
+  }
+}
@@ -0,0 +1,13 @@
+package android.util;
+
+import org.kxml2.io.KXmlParser;
+import org.xmlpull.v1.XmlPullParser;
+
+/** Shim for the benchmarks. The platform's parser is also KXmlParser. */
+public final class Xml
+{
+  public static XmlPullParser newPullParser()
+  {
+    return new KXmlParser();
+  }
+}
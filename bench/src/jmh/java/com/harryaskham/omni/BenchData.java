@@ -0,0 +1,141 @@
+package com.harryaskham.omni;
+
+import android.util.Xml;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import org.xmlpull.v1.XmlPullParser;
+
+/** Inputs of the benchmarks, read from the source tree. The root of the
+    repository is given by the [bench.root] property, see
+    [bench/build.gradle]. */
+final class BenchData
+{
+  /** Attributes of the [<key>] tags that contain key definitions. */
+  static final String[] KEY_ATTRS = new String[]{
+    "key0", "key1", "key2", "key3", "key4", "key5", "key6", "key7", "key8",
+    "c", "nw", "ne", "sw", "se", "n", "s", "e", "w"
+  };
+
+  static File root()
+  {
+    return new File(System.getProperty("bench.root", ".."));
+  }
+
+  static String read(File f) throws Exception
+  {
+    return new String(Files.readAllBytes(f.toPath()), StandardCharsets.UTF_8);
+  }
+
+  /** The bundled layouts in [srcs/layouts], sorted by file name. */
+  static File[] layout_files()
+  {
+    File[] fs = new File(root(), "srcs/layouts").listFiles(
+        (dir, name) -> name.endsWith(".xml"));
+    if (fs == null || fs.length == 0)
+      throw new IllegalStateException("No layouts found, is bench.root set ?");
+    Arrays.sort(fs);
+    return fs;
+  }
+
+  static String[] layout_sources() throws Exception
+  {
+    File[] fs = layout_files();
+    String[] srcs = new String[fs.length];
+    for (int i = 0; i < fs.length; i++)
+      srcs[i] = read(fs[i]);
+    return srcs;
+  }
+
+  static KeyboardData[] layouts() throws Exception
+  {
+    String[] srcs = layout_sources();
+    KeyboardData[] kws = new KeyboardData[srcs.length];
+    for (int i = 0; i < srcs.length; i++)
+      kws[i] = KeyboardData.load_string_exn(srcs[i]);
+    return kws;
+  }
+
+  static KeyboardData layout(String name) throws Exception
+  {
+    return KeyboardData.load_string_exn(
+        read(new File(root(), "srcs/layouts/" + name + ".xml")));
+  }
+
+  /** Every key definition in the bundled layouts, in the order they are
+      parsed when loading all the layouts. The ["loc "] prefix is removed. */
+  static String[] key_definitions() throws Exception
+  {
+    List<String> defs = new ArrayList<String>();
+    for (String src : layout_sources())
+    {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setInput(new StringReader(src));
+      int status;
+      while ((status = parser.next()) != XmlPullParser.END_DOCUMENT)
+      {
+        if (status != XmlPullParser.START_TAG || !parser.getName().equals("key"))
+          continue;
+        for (String attr : KEY_ATTRS)
+        {
+          String def = parser.getAttributeValue(null, attr);
+          if (def == null)
+            continue;
+          if (def.startsWith("loc "))
+            def = def.substring(4);
+          defs.add(def);
+        }
+      }
+    }
+    return defs.toArray(new String[0]);
+  }
+
+  /** The text typed by [TypingBenchmark]. The file given by the
+      [bench.corpus] property or [corpus.txt] in the resources. */
+  static String corpus() throws Exception
+  {
+    String path = System.getProperty("bench.corpus");
+    if (path != null)
+      return read(new File(path));
+    try (InputStream inp = BenchData.class.getResourceAsStream("/corpus.txt"))
+    {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      byte[] buf = new byte[4096];
+      int n;
+      while ((n = inp.read(buf)) > 0)
+        out.write(buf, 0, n);
+      return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+  }
+
+  /** Setup [LayoutModifier] as [LayoutModifier.init] does, with the default
+      settings. */
+  static Config init_layout_modifier() throws Exception
+  {
+    Config conf = Config.defaults(null);
+    conf.extra_keys_param = new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    conf.extra_keys_custom = new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    conf.layouts = new ArrayList<KeyboardData>();
+    conf.layouts.add(layout("latn_qwerty_us"));
+    LayoutModifier.globalConfig = conf;
+    LayoutModifier.number_row_no_symbols = load_row("number_row_no_symbols");
+    LayoutModifier.number_row_symbols = load_row("number_row");
+    LayoutModifier.bottom_row = load_row("bottom_row");
+    LayoutModifier.num_pad = KeyboardData.load_string_exn(
+        read(new File(root(), "res/xml/numpad.xml")));
+    return conf;
+  }
+
+  static KeyboardData.Row load_row(String name) throws Exception
+  {
+    return KeyboardData.load_row_string_exn(
+        read(new File(root(), "res/xml/" + name + ".xml")));
+  }
+}
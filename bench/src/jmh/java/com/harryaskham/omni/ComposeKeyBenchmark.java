@@ -0,0 +1,49 @@
+package com.harryaskham.omni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** [ComposeKey.apply] on every transition of the [ComposeKeyData] state
+    machine. See [ComposeKey] for the format. */
+@State(Scope.Benchmark)
+public class ComposeKeyBenchmark
+{
+  /** The transitions, [_states[i]] accepts [_chars[i]]. */
+  int[] _states;
+  char[] _chars;
+
+  @Setup
+  public void setup()
+  {
+    char[] states = ComposeKeyData.states;
+    char[] edges = ComposeKeyData.edges;
+    int n = 0;
+    for (int s = 0; s < states.length; s += edges[s])
+      if (states[s] == 0)
+        n += edges[s] - 1;
+    _states = new int[n];
+    _chars = new char[n];
+    int i = 0;
+    for (int s = 0; s < states.length; s += edges[s])
+    {
+      if (states[s] != 0)
+        continue;
+      for (int t = s + 1; t < s + edges[s]; t++)
+      {
+        _states[i] = s;
+        _chars[i] = states[t];
+        i++;
+      }
+    }
+  }
+
+  @Benchmark
+  public void apply(Blackhole bh)
+  {
+    for (int i = 0; i < _states.length; i++)
+      bh.consume(ComposeKey.apply(_states[i], _chars[i]));
+  }
+}
@@ -0,0 +1,50 @@
+package com.harryaskham.omni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Computation of the direction of a swipe on every touch move and tracking
+    of the gesture. */
+@State(Scope.Benchmark)
+public class GestureBenchmark
+{
+  /** Number of samples on a circle. */
+  static final int SAMPLES = 256;
+
+  float[] _dx;
+  float[] _dy;
+
+  @Setup
+  public void setup()
+  {
+    _dx = new float[SAMPLES];
+    _dy = new float[SAMPLES];
+    for (int i = 0; i < SAMPLES; i++)
+    {
+      double a = 2 * Math.PI * i / SAMPLES;
+      _dx[i] = (float)(Math.cos(a) * 100);
+      _dy[i] = (float)(Math.sin(a) * 100);
+    }
+  }
+
+  @Benchmark
+  public void direction_of(Blackhole bh)
+  {
+    for (int i = 0; i < SAMPLES; i++)
+      bh.consume(Pointers.direction_of(_dx[i], _dy[i]));
+  }
+
+  /** A circle gesture, starting at the top. */
+  @Benchmark
+  public void circle(Blackhole bh)
+  {
+    Gesture g = new Gesture(Pointers.direction_of(0.f, -100.f));
+    for (int i = 0; i < SAMPLES; i++)
+      g.changed_direction(Pointers.direction_of(_dx[i], _dy[i]));
+    g.pointer_up();
+    bh.consume(g.get_gesture());
+  }
+}
@@ -0,0 +1,46 @@
+package com.harryaskham.omni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** [KeyModifier.modify] on every key of the QWERTY layout, as done by
+    [Pointers] for every key press and when rendering the keyboard. */
+@State(Scope.Benchmark)
+public class KeyModifierBenchmark
+{
+  /** Comma-separated key names. */
+  @Param({"none", "shift", "ctrl", "fn", "shift,fn", "ctrl,alt", "accent_aigu",
+    "shift,accent_grave"})
+  public String mods;
+
+  KeyValue[] _keys;
+  Pointers.Modifiers _mods;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    KeyboardData kw = BenchData.layout("latn_qwerty_us");
+    _keys = kw.getKeys().keySet().toArray(new KeyValue[0]);
+    if (mods.equals("none"))
+      _mods = Pointers.Modifiers.EMPTY;
+    else
+    {
+      String[] names = mods.split(",");
+      KeyValue[] ms = new KeyValue[names.length];
+      for (int i = 0; i < names.length; i++)
+        ms[i] = KeyValue.getKeyByName(names[i]);
+      _mods = Pointers.Modifiers.ofArray(ms, ms.length);
+    }
+  }
+
+  @Benchmark
+  public void modify(Blackhole bh)
+  {
+    for (KeyValue k : _keys)
+      bh.consume(KeyModifier.modify(k, _mods));
+  }
+}
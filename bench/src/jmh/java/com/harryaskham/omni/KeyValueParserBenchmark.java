@@ -0,0 +1,64 @@
+package com.harryaskham.omni;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Parsing of key definitions, as done when loading a layout and the custom
+    extra keys. */
+@State(Scope.Benchmark)
+public class KeyValueParserBenchmark
+{
+  /** Definitions using the syntax of [KeyValueParser], in addition to the ones
+      found in the layouts. */
+  static final String[] DEFINITIONS = new String[]{
+    "copy:ctrl,a,ctrl,c",
+    "<2:ctrl,backspace",
+    "macro:'str',abc",
+    "macro:a\\'b,a\\,b,a\\xb",
+    "a:b",
+    "symbol:'str'",
+    "a:keyevent:85",
+    "macro:keyevent:85,abc",
+    ":str:'Foo'",
+    ":str symbol='Symbol' flags='dim':'f'",
+    ":str flags='dim,small':'Foo'",
+    ":char symbol='a':b",
+  };
+
+  /** Every key definition found in the bundled layouts. */
+  String[] _layout_defs;
+  String[] _parser_defs;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    _layout_defs = BenchData.key_definitions();
+    List<String> defs = new ArrayList<String>();
+    for (String d : DEFINITIONS)
+      defs.add(d);
+    for (String d : _layout_defs)
+      if (d.length() > 1 && d.indexOf(':') >= 0)
+        defs.add(d);
+    _parser_defs = defs.toArray(new String[0]);
+  }
+
+  @Benchmark
+  public void parse(Blackhole bh) throws Exception
+  {
+    for (String d : _parser_defs)
+      bh.consume(KeyValueParser.parse(d));
+  }
+
+  /** Called for every key of a layout while loading it. */
+  @Benchmark
+  public void getKeyByName(Blackhole bh)
+  {
+    for (String d : _layout_defs)
+      bh.consume(KeyValue.getKeyByName(d));
+  }
+}
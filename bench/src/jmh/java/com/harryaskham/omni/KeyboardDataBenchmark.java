@@ -0,0 +1,27 @@
+package com.harryaskham.omni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** Parsing of every bundled layout with [KeyboardData.load_string_exn]. */
+@State(Scope.Benchmark)
+public class KeyboardDataBenchmark
+{
+  String[] _sources;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    _sources = BenchData.layout_sources();
+  }
+
+  @Benchmark
+  public void load_string_exn(Blackhole bh) throws Exception
+  {
+    for (String src : _sources)
+      bh.consume(KeyboardData.load_string_exn(src));
+  }
+}
@@ -0,0 +1,36 @@
+package com.harryaskham.omni;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+/** [LayoutModifier.modify_layout] on every bundled layout, as done when the
+    keyboard is shown or the layout is switched. */
+@State(Scope.Benchmark)
+public class LayoutModifierBenchmark
+{
+  /** "none", "number_row" or "numpad". */
+  @Param({"none", "number_row", "numpad"})
+  public String extra_rows;
+
+  KeyboardData[] _layouts;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    _layouts = BenchData.layouts();
+    Config conf = BenchData.init_layout_modifier();
+    conf.add_number_row = extra_rows.equals("number_row");
+    conf.show_numpad = extra_rows.equals("numpad");
+  }
+
+  @Benchmark
+  public void modify_layout(Blackhole bh)
+  {
+    for (KeyboardData kw : _layouts)
+      bh.consume(LayoutModifier.modify_layout(kw));
+  }
+}
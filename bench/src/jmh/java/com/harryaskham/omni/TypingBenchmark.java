@@ -0,0 +1,67 @@
+package com.harryaskham.omni;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/** Typing a text corpus through [Pointers] and [KeyEventHandler], from the
+    touches to the text committed into the editor. The layout is modified by
+    [LayoutModifier] with the default settings and the compose key added.
+    One operation is one character: the score is in characters per second and
+    the "gc.alloc.rate.norm" metric is the allocated bytes per character.
+    Use [-Pjmh.includes=Typing] to compare layouts.
+    See [TypingPlan] for how the key presses are chosen. */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class TypingBenchmark
+{
+  /** Characters typed per invocation, the corpus is repeated as needed. */
+  static final int CHARS = 2048;
+
+  @Param({"latn_qwerty_us", "latn_azerty_fr", "latn_qwertz_de",
+    "latn_colemak", "latn_dvorak", "latn_bepo_fr"})
+  public String layout;
+
+  InputHarness _harness;
+  TypingPlan _plan;
+
+  @Setup
+  public void setup() throws Exception
+  {
+    Config conf = BenchData.init_layout_modifier();
+    conf.extra_keys_param.put(KeyValue.getKeyByName("compose"),
+        KeyboardData.PreferredPos.ANYWHERE);
+    KeyboardData kw = LayoutModifier.modify_layout(BenchData.layout(layout));
+    _plan = TypingPlan.plan(kw, BenchData.corpus(), CHARS);
+    if (_plan.skipped.length() > 0)
+      System.err.println(layout + ": cannot type '" + _plan.skipped + "'");
+    _harness = new InputHarness(kw);
+    _harness.record_keys = false;
+    _harness.stats.enabled = false;
+    // Check that the plan types the expected text.
+    _plan.run(_harness);
+    String expected = _plan.text.replace("\n", "");
+    if (!expected.equals(_harness.text.toString()))
+      throw new IllegalStateException(layout + ": typed '" + _harness.text
+          + "', expected '" + expected + "'");
+    _harness.text.setLength(0);
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(CHARS)
+  public int type()
+  {
+    _plan.run(_harness);
+    int n = _harness.text.length();
+    _harness.text.setLength(0);
+    return n;
+  }
+}
@@ -5,10 +5,7 @@ import android.content.res.Configuration;
 import android.content.res.Resources;
 import android.util.DisplayMetrics;
 import android.util.TypedValue;
-import java.io.File;
-import java.io.FileInputStream;
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import com.harryaskham.omni.prefs.CustomExtraKeysPreference;
@@ -51,6 +48,12 @@ public final class Config
   public long longPressTimeout;
   public long longPressInterval;
   public boolean keyrepeat_enabled;
+  /** Replay the samples batched into move events. */
+  public boolean touch_history_enabled;
+  /** See [LatencyTrace]. */
+  public boolean latency_trace_enabled;
+  /** See [EventTrace]. */
+  public boolean event_trace_enabled;
   public float margin_bottom;
   public int keyboardHeightPercent;
   public int keyboardWidthPercent;
@@ -97,6 +100,8 @@ public final class Config
   public int actionId; // Meaningful only when 'actionLabel' isn't 'null'
   public boolean swapEnterActionKey; // Swap the "enter" and "action" keys
   public ExtraKeys extra_keys_subtype;
+  /** Layouts from the "external_layouts_directory" option. */
+  public final ExternalLayouts external_layouts = new ExternalLayouts();
   public Map<KeyValue, KeyboardData.PreferredPos> extra_keys_param;
   public Map<KeyValue, KeyboardData.PreferredPos> extra_keys_custom;
 
@@ -127,6 +132,34 @@ public final class Config
     handler = h;
   }
 
+  /** The default value of the settings used by [Pointers] and
+      [KeyEventHandler], without reading the preferences. To run the input
+      engine outside of the keyboard service, in tests and benchmarks. */
+  static Config defaults(IKeyEventHandler h)
+  {
+    return new Config(h);
+  }
+
+  private Config(IKeyEventHandler h)
+  {
+    _prefs = null;
+    keyPadding = 0.f;
+    labelTextSize = 0.33f;
+    sublabelTextSize = 0.22f;
+    handler = h;
+    // As computed by [refresh] for the default "swipe_dist" on a 1080px wide
+    // display.
+    float swipe_scaling = 1080 / 10.f;
+    swipe_dist_px = 15.f / 25.f * swipe_scaling;
+    slide_step_px = 0.4f * swipe_scaling;
+    longPressTimeout = 600;
+    longPressInterval = 65;
+    keyrepeat_enabled = true;
+    touch_history_enabled = true;
+    double_tap_lock_shift = false;
+    circle_sensitivity = 2;
+  }
+
   /*
    ** Reload prefs
    */
@@ -167,19 +200,19 @@ public final class Config
     boolean is_watch =
         (res.getConfiguration().uiMode & Configuration.UI_MODE_TYPE_MASK)
         == Configuration.UI_MODE_TYPE_WATCH;
+    String extDir = null;
     if (!is_watch && _prefs.getBoolean("auto_load_external_layouts", true))
-    {
-      String extDir = _prefs.getString("external_layouts_directory",
+      extDir = _prefs.getString("external_layouts_directory",
           "/storage/emulated/0/shared/unexpected_keyboard/layouts");
-      if (extDir != null && !extDir.isEmpty())
-      {
-        List<KeyboardData> extLayouts = loadLayoutsFromDirectory(extDir);
-        if (!extLayouts.isEmpty())
-        {
-          // Replace layouts list with external layouts (keeping nulls/system layouts)
-          layouts = extLayouts;
-        }
-      }
+    // Loaded in the background, [refresh] is called again once the layouts
+    // are available or when the directory changes.
+    external_layouts.set_directory(
+        (extDir != null && !extDir.isEmpty()) ? extDir : null);
+    List<KeyboardData> extLayouts = external_layouts.layouts();
+    if (!extLayouts.isEmpty())
+    {
+      // Replace layouts list with external layouts (keeping nulls/system layouts)
+      layouts = extLayouts;
     }
     inverse_numpad = _prefs.getString("numpad_layout", "default").equals("low_first");
     String number_row = _prefs.getString("number_row", "no_number_row");
@@ -199,6 +232,16 @@ public final class Config
     longPressTimeout = _prefs.getInt("longpress_timeout", 600);
     longPressInterval = _prefs.getInt("longpress_interval", 65);
     keyrepeat_enabled = _prefs.getBoolean("keyrepeat_enabled", true);
+    touch_history_enabled = _prefs.getBoolean("touch_history_enabled", true);
+    boolean prev_latency_trace = latency_trace_enabled;
+    latency_trace_enabled = _prefs.getBoolean("latency_trace_enabled", false);
+    event_trace_enabled = _prefs.getBoolean("event_trace_enabled", false);
+    if (_prefs.contains("debug_log_subsystems"))
+      Logs.set_subsystems(_prefs.getInt("debug_log_subsystems", Logs.ALL_SUBSYSTEMS));
+    // Only when the option changes, to not override [LatencyTrace.DumpReceiver].
+    if (latency_trace_enabled != prev_latency_trace)
+      LatencyTrace.set_enabled(latency_trace_enabled);
+    EventTrace.set_enabled(event_trace_enabled);
     margin_bottom = get_dip_pref_oriented(dm, "margin_bottom", 0, 0);
     margin_top = get_dip_pref_oriented(dm, "margin_top", 0, 0);
     key_vertical_margin = get_dip_pref(dm, "key_vertical_margin", 1.5f) / 100;
@@ -440,50 +483,4 @@ public final class Config
       return new LayoutsPreference.SystemLayout();
     return new LayoutsPreference.NamedLayout(name);
   }
-
-  /** Load keyboard layouts from XML files in a directory. */
-  private static List<KeyboardData> loadLayoutsFromDirectory(String dirPath)
-  {
-    List<KeyboardData> result = new ArrayList<KeyboardData>();
-    try
-    {
-      File dir = new File(dirPath);
-      if (!dir.exists() || !dir.isDirectory() || !dir.canRead())
-        return result;
-      File[] xmlFiles = dir.listFiles(new java.io.FilenameFilter() {
-        public boolean accept(File d, String name) {
-          return name.toLowerCase().endsWith(".xml");
-        }
-      });
-      if (xmlFiles == null)
-        return result;
-      Arrays.sort(xmlFiles, (a, b) -> a.getName().compareToIgnoreCase(b.getName()));
-      for (File xmlFile : xmlFiles)
-      {
-        try
-        {
-          FileInputStream fis = new FileInputStream(xmlFile);
-          byte[] data = new byte[(int)xmlFile.length()];
-          int bytesRead = fis.read(data);
-          fis.close();
-          if (bytesRead > 0)
-          {
-            String xml = new String(data, 0, bytesRead, "UTF-8");
-            KeyboardData layout = KeyboardData.load_string_exn(xml);
-            if (layout != null)
-              result.add(layout);
-          }
-        }
-        catch (Exception e)
-        {
-          android.util.Log.w("Config", "Failed to load layout from " + xmlFile.getName() + ": " + e.getMessage());
-        }
-      }
-    }
-    catch (Exception e)
-    {
-      android.util.Log.w("Config", "Error loading external layouts: " + e.getMessage());
-    }
-    return result;
-  }
 }
@@ -0,0 +1,154 @@
+package com.harryaskham.omni;
+
+/** Mirror of the selection in the editor, to avoid querying it with
+    [getExtractedText] on every key and slider movement. Updated from
+    [onUpdateSelection] and from the edits sent by the keyboard, for which
+    the resulting selection is predicted if possible.
+
+    Selection updates are received asynchronously and might be older than the
+    edits already sent. The number of edits for which an update hasn't been
+    received yet is counted and the updates are only trusted once every edits
+    have been acknowledged. Edits that don't change the selection are never
+    acknowledged, nor are selections set past the end of the text, which the
+    editor ignores. The mirror is considered stale when the oldest edit that
+    hasn't been acknowledged was sent [STALE_MS] ago and must be queried
+    again. The updates for the edits that were still in flight when the
+    editor was queried are ignored. */
+public final class EditorSelection
+{
+  /** Time after which the predicted selection is not trusted anymore if the
+      editor didn't acknowledge the edits. */
+  static final long STALE_MS = 200;
+  /** Number of send times kept. The mirror is stale when more edits are
+      pending. */
+  static final int SENT_RING = 32;
+
+  /** Valid when [_known] is true. Unlike [start] and [end] in
+      [ExtractedText], [_start] can be greater than [_end]. */
+  int _start = -1;
+  int _end = -1;
+  boolean _known = false;
+  /** Number of edits sent since the last query for which no update has been
+      received. */
+  int _pending = 0;
+  /** Number of edits sent before the last query that are still expected to
+      be acknowledged. Their updates are older than the queried selection. */
+  int _in_flight = 0;
+  /** Number of edits sent since the start, see [acknowledged]. */
+  int _edits = 0;
+  /** Time at which the edit number [i] was sent is at [i % SENT_RING]. */
+  final long[] _sent_ms = new long[SENT_RING];
+
+  public int start() { return _start; }
+  public int end() { return _end; }
+
+  /** Editing started, nothing is known about the editor. */
+  public void reset()
+  {
+    _known = false;
+    _pending = 0;
+    _in_flight = 0;
+  }
+
+  public int edit_count() { return _edits; }
+
+  /** Whether the editor has sent an update for the edit number
+      [edit_count] and for the edits before it. Updates that are received
+      while older edits are pending don't count. Edits that were stale when
+      the editor was queried count as acknowledged. */
+  public boolean acknowledged(int edit_count)
+  {
+    return _edits - _pending - _in_flight >= edit_count;
+  }
+
+  /** Whether [start] and [end] can be used at time [now_ms]. Otherwise, the
+      editor must be queried and the result passed to [set]. */
+  public boolean is_valid(long now_ms)
+  {
+    if (!_known)
+      return false;
+    if (_pending == 0)
+      return true;
+    if (_pending > SENT_RING)
+      return false;
+    long oldest_ms = _sent_ms[(_edits - _pending) % SENT_RING];
+    return now_ms - oldest_ms < STALE_MS;
+  }
+
+  /** The selection has been queried from the editor at time [now_ms], or is
+      given by [EditorInfo.initialSelStart]. The edits sent in the last
+      [STALE_MS] might not be handled yet, the updates received for them
+      don't change the selection. */
+  public void set(int start, int end, long now_ms)
+  {
+    _start = start;
+    _end = end;
+    _known = (start >= 0 && end >= 0);
+    int in_flight = _in_flight + Math.min(_pending, SENT_RING);
+    int recent = 0;
+    while (recent < in_flight && recent < SENT_RING
+        && now_ms - _sent_ms[(_edits - recent - 1) % SENT_RING] < STALE_MS)
+      recent++;
+    _in_flight = recent;
+    _pending = 0;
+  }
+
+  /** Received from [onUpdateSelection]. */
+  public void updated(int start, int end)
+  {
+    if (_in_flight > 0)
+    {
+      // For an edit sent before the last query.
+      _in_flight--;
+      return;
+    }
+    if (_pending > 0)
+      _pending--;
+    if (_pending == 0)
+    {
+      _start = start;
+      _end = end;
+      _known = (start >= 0 && end >= 0);
+    }
+  }
+
+  /** An edit has been sent and the selection is expected to be [start, end]
+      once it's handled. */
+  public void edited(int start, int end, long now_ms)
+  {
+    if (start < 0 || end < 0)
+    {
+      edited_unknown(now_ms);
+      return;
+    }
+    sent(now_ms);
+    _start = start;
+    _end = end;
+  }
+
+  /** An edit has been sent and its effect on the selection is not known. */
+  public void edited_unknown(long now_ms)
+  {
+    sent(now_ms);
+    _known = false;
+  }
+
+  void sent(long now_ms)
+  {
+    _sent_ms[_edits % SENT_RING] = now_ms;
+    _edits++;
+    _pending++;
+  }
+
+  /** Text has been committed, replacing the selection. */
+  public void text_committed(int length, long now_ms)
+  {
+    if (!is_valid(now_ms))
+    {
+      edited_unknown(now_ms);
+      return;
+    }
+    int cur = Math.min(_start, _end) + length;
+    edited(cur, cur, now_ms);
+  }
+}
@@ -0,0 +1,819 @@
+package com.harryaskham.omni;
+
+import android.content.Context;
+import android.os.SystemClock;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/** Compact binary trace of the input events, to reproduce reports of stuck
+    modifiers and lag offline. Records the touches received by [Pointers],
+    the keys and modifiers resolved by [KeyEventHandler] and what is sent to
+    the editor, with the time spent in the [InputConnection] call.
+
+    Records are varint-encoded into blocks of [BLOCK_SIZE] bytes. Filled
+    blocks are written by a background thread into a circular file of
+    [BLOCK_COUNT] blocks, overwriting the oldest. Like the [Logs] ring, slots
+    are preallocated: only [BUFFERS] blocks are kept in memory and recording a
+    record doesn't allocate. If the writer lags behind, records are dropped
+    and counted. Must be called from the main thread. Disabled by default, see
+    [Config.event_trace_enabled]. In password fields, see [set_private], the
+    touch positions are not recorded and only the kind of the typed keys is.
+
+    File format, big endian:
+    - header: [MAGIC], [VERSION], [BLOCK_SIZE] and [BLOCK_COUNT] (ints).
+    - blocks: sequence number (long, [0] if unused), wall clock and
+      [SystemClock.uptimeMillis] at the start of the block (longs), then
+      records until an [END] byte or the end of the block.
+    A record is a type byte, the time since the previous record in
+    milliseconds (signed), then the fields documented on each type. Fields
+    are unsigned varints unless noted, signed values are zigzag-encoded.
+    Strings are a length followed by the chars. Blocks can be decoded
+    independently, see [read]. */
+public final class EventTrace
+{
+  static final int MAGIC = 0x4f4d5452; // "OMTR"
+  static final int VERSION = 1;
+  static final int HEADER_SIZE = 16;
+  static final int BLOCK_SIZE = 8192;
+  static final int BLOCK_HEADER_SIZE = 24;
+  static final int BLOCK_COUNT = 64;
+  static final int BUFFERS = 4;
+  /** Strings and modifier sets are truncated to fit a record in
+      [MAX_RECORD_SIZE]. */
+  static final int MAX_STRING = 48;
+  static final int MAX_MODS = 8;
+  static final int MAX_RECORD_SIZE = 256;
+  /** Coordinates are stored in fractions of pixels. */
+  static final float COORD_SCALE = 4.f;
+  static final String FILE_NAME = "event_trace.bin";
+
+  /** Record types. */
+  public static final int END = 0;
+  /** Pointer id, x, y (signed). The position is [0, 0] in a private editor
+      and the moves of the pointer are not recorded. */
+  public static final int TOUCH_DOWN = 1;
+  /** Pointer id, dx, dy (signed), relative to the previous position of the
+      pointer in the same block. */
+  public static final int TOUCH_MOVE = 2;
+  /** Pointer id, x, y (signed). A move for a pointer that has no position
+      in the current block. */
+  public static final int TOUCH_MOVE_ABS = 3;
+  /** Pointer id. */
+  public static final int TOUCH_UP = 4;
+  public static final int TOUCH_CANCEL = 5;
+  /** [KeyValue.Kind] ordinal, value bits, symbol. The symbol is empty
+      except for the String, Slider and Macro kinds. The value and symbol are
+      [0] and empty for the keys typed in a private editor. */
+  public static final int KEY = 6;
+  /** Number of modifiers, then kind and value bits of each. Recorded when
+      the active modifiers change and at the start of each block. */
+  public static final int MODS = 7;
+  /** Length of the committed text, duration of [commitText] in
+      microseconds. The length is [0] in a private editor. */
+  public static final int COMMIT_TEXT = 8;
+  /** Action, key code, meta state, duration of [sendKeyEvent] in
+      microseconds. The key code is [0] in a private editor. */
+  public static final int KEY_EVENT = 9;
+  /** Number of records dropped before this block. */
+  public static final int DROPPED = 10;
+
+  static boolean _enabled = false;
+  /** What is typed must not be recorded, see [set_private]. */
+  static boolean _private = false;
+  static File _file = null;
+
+  /** Block being written, [_cur] is [-1] when no block is started. */
+  static byte[][] _buffers = null;
+  static int _cur = -1;
+  static byte[] _buf = null;
+  static int _pos = 0;
+  /** Offset of the type of the record being written. */
+  static int _record_start = 0;
+  /** Number of blocks started, identifies the block being written. */
+  static long _block_id = 0;
+  static long _last_time = 0;
+  static int _dropped = 0;
+  /** Set by the main thread when a block is handed to the writer, cleared by
+      the writer once it's written. */
+  static final AtomicIntegerArray _busy = new AtomicIntegerArray(BUFFERS);
+  static BlockWriter[] _block_writers = null;
+  static ExecutorService _writer = null;
+  static TraceFile _trace_file = null;
+
+  /** Last position of each pointer in the current block, for [TOUCH_MOVE].
+      Bit [id] of [_pos_valid] is set when known. */
+  static final int MAX_POINTER_ID = 32;
+  static final int[] _last_x = new int[MAX_POINTER_ID];
+  static final int[] _last_y = new int[MAX_POINTER_ID];
+  static int _pos_valid = 0;
+  /** The active modifiers and the last recorded in the current block.
+      [Pointers.Modifiers] are interned, compared by identity. */
+  static Pointers.Modifiers _cur_mods = null;
+  static Pointers.Modifiers _last_mods = null;
+
+  public static File trace_file(Context ctx)
+  {
+    return new File(ctx.getFilesDir(), FILE_NAME);
+  }
+
+  /** Called when the keyboard service is created, before the config is
+      loaded. */
+  public static void init(Context ctx)
+  {
+    if (_file == null)
+      _file = trace_file(ctx);
+  }
+
+  public static void set_enabled(boolean e)
+  {
+    if (e == _enabled)
+      return;
+    if (!e)
+      end_block();
+    _enabled = e;
+    if (e && _buffers == null)
+    {
+      _buffers = new byte[BUFFERS][BLOCK_SIZE];
+      _block_writers = new BlockWriter[BUFFERS];
+      for (int i = 0; i < BUFFERS; i++)
+        _block_writers[i] = new BlockWriter(i);
+    }
+  }
+
+  public static boolean is_enabled()
+  {
+    return _enabled;
+  }
+
+  /** Called when an editor is started. In a private editor, like a password
+      field, the touch positions, the typed chars and the committed text are
+      not recorded. */
+  public static void set_private(boolean p)
+  {
+    _private = p;
+  }
+
+  /** [time] is in [SystemClock.uptimeMillis] time base. */
+  public static void touch_down(int id, float x, float y, long time)
+  {
+    if (!begin(TOUCH_DOWN, time))
+      return;
+    if (_private)
+    {
+      // The position would give back what is typed.
+      put(id);
+      put(0);
+      put(0);
+      _pos_valid &= ~(1 << (id & (MAX_POINTER_ID - 1)));
+      return;
+    }
+    put_touch(id, x, y);
+  }
+
+  public static void touch_move(int id, float x, float y, long time)
+  {
+    if (_private || !begin(TOUCH_MOVE, time))
+      return;
+    int i = id & (MAX_POINTER_ID - 1);
+    if ((_pos_valid & (1 << i)) == 0)
+    {
+      _buf[_record_start] = TOUCH_MOVE_ABS;
+      put_touch(id, x, y);
+      return;
+    }
+    int sx = scale(x);
+    int sy = scale(y);
+    put(id);
+    put_signed(sx - _last_x[i]);
+    put_signed(sy - _last_y[i]);
+    _last_x[i] = sx;
+    _last_y[i] = sy;
+  }
+
+  public static void touch_up(int id, long time)
+  {
+    if (!begin(TOUCH_UP, time))
+      return;
+    put(id);
+    _pos_valid &= ~(1 << (id & (MAX_POINTER_ID - 1)));
+  }
+
+  public static void touch_cancel(long time)
+  {
+    if (!begin(TOUCH_CANCEL, time))
+      return;
+    _pos_valid = 0;
+  }
+
+  /** A key is handled by [KeyEventHandler.key_up] with the modifiers
+      [mods]. */
+  public static void key(KeyValue k, Pointers.Modifiers mods)
+  {
+    if (!_enabled)
+      return;
+    mods(mods);
+    if (!begin(KEY, SystemClock.uptimeMillis()))
+      return;
+    if (_private && is_typed(k))
+    {
+      put(k.getKind().ordinal());
+      put(0);
+      put(0);
+      return;
+    }
+    put_key(k);
+    switch (k.getKind())
+    {
+      case String: case Slider: case Macro:
+        put_string(k.getString());
+        break;
+      default:
+        put(0);
+        break;
+    }
+  }
+
+  /** The active modifiers might have changed. */
+  public static void mods(Pointers.Modifiers mods)
+  {
+    if (!_enabled || mods == null)
+      return;
+    _cur_mods = mods;
+    if (mods == _last_mods || !begin(MODS, SystemClock.uptimeMillis()))
+      return;
+    if (mods == _last_mods) // Already recorded at the start of a new block.
+      _pos = _record_start;
+    else
+      put_mods(mods);
+  }
+
+  /** Start of a call to the [InputConnection], to pass to [commit_text] or
+      [key_event]. */
+  public static long call_start()
+  {
+    return _enabled ? System.nanoTime() : 0;
+  }
+
+  public static void commit_text(int length, long call_start)
+  {
+    if (!begin(COMMIT_TEXT, SystemClock.uptimeMillis()))
+      return;
+    put(_private ? 0 : length);
+    put_duration_us(call_start);
+  }
+
+  public static void key_event(int action, int keycode, int meta, long call_start)
+  {
+    if (!begin(KEY_EVENT, SystemClock.uptimeMillis()))
+      return;
+    put(action);
+    put(_private ? 0 : keycode);
+    put(meta);
+    put_duration_us(call_start);
+  }
+
+  /** Hand the block being written to the writer thread, without ending it.
+      Called before exporting and when the input view is hidden. */
+  public static void flush()
+  {
+    if (_cur < 0 || _pos <= BLOCK_HEADER_SIZE)
+      return;
+    byte[] copy = Arrays.copyOf(_buf, _pos + 1);
+    copy[_pos] = END;
+    final long id = _block_id;
+    execute(() -> _trace_file.write(copy, copy.length, id));
+  }
+
+  /** Content of the trace file, after the pending blocks are written. Must
+      not be called from the main thread. */
+  public static byte[] read_file(Context ctx) throws IOException
+  {
+    ExecutorService w = _writer;
+    if (w != null)
+    {
+      try { return w.submit(() -> read_file(trace_file(ctx).getPath())).get(); }
+      catch (Exception e) { throw new IOException(e); }
+    }
+    return read_file(trace_file(ctx).getPath());
+  }
+
+  static byte[] read_file(String path) throws IOException
+  {
+    File f = new File(path);
+    byte[] data = new byte[(int)Math.min(f.length(),
+          HEADER_SIZE + BLOCK_SIZE * BLOCK_COUNT)];
+    try (FileInputStream in = new FileInputStream(f))
+    {
+      int n = 0;
+      while (n < data.length)
+      {
+        int r = in.read(data, n, data.length - n);
+        if (r < 0)
+          break;
+        n += r;
+      }
+      return (n == data.length) ? data : Arrays.copyOf(data, n);
+    }
+  }
+
+  /** Start a record. Returns [false] if the record must not be written. */
+  static boolean begin(int type, long time)
+  {
+    if (!_enabled)
+      return false;
+    if (_cur < 0 || _pos + MAX_RECORD_SIZE > BLOCK_SIZE)
+    {
+      if (!next_block(time))
+      {
+        _dropped++;
+        return false;
+      }
+    }
+    _record_start = _pos;
+    _buf[_pos++] = (byte)type;
+    put_signed(time - _last_time);
+    _last_time = time;
+    return true;
+  }
+
+  /** End the current block and start the next one. Returns [false] if the
+      next buffer is still being written. */
+  static boolean next_block(long time)
+  {
+    end_block();
+    int next = (int)(_block_id % BUFFERS);
+    if (_busy.get(next) != 0)
+      return false;
+    _busy.set(next, 1);
+    _block_id++;
+    _cur = next;
+    _buf = _buffers[next];
+    _pos = 0;
+    put_long(0); // Sequence number, set by the writer.
+    put_long(System.currentTimeMillis());
+    put_long(time);
+    _last_time = time;
+    _pos_valid = 0;
+    if (_dropped > 0)
+    {
+      _buf[_pos++] = DROPPED;
+      put_signed(0);
+      put(_dropped);
+      _dropped = 0;
+    }
+    // Each block starts with the active modifiers.
+    _last_mods = null;
+    if (_cur_mods != null)
+    {
+      _buf[_pos++] = MODS;
+      put_signed(0);
+      put_mods(_cur_mods);
+    }
+    return true;
+  }
+
+  /** Hand the current block to the writer. */
+  static void end_block()
+  {
+    if (_cur < 0)
+      return;
+    if (_pos < BLOCK_SIZE)
+      _buf[_pos] = END;
+    BlockWriter w = _block_writers[_cur];
+    w.block_id = _block_id;
+    execute(w);
+    _cur = -1;
+  }
+
+  static void execute(Runnable r)
+  {
+    if (_file == null)
+    {
+      if (r instanceof BlockWriter)
+        _busy.set(((BlockWriter)r).index, 0);
+      return;
+    }
+    if (_writer == null)
+    {
+      _trace_file = new TraceFile(_file);
+      _writer = Executors.newSingleThreadExecutor();
+    }
+    _writer.execute(r);
+  }
+
+  static int scale(float v)
+  {
+    return Math.round(v * COORD_SCALE);
+  }
+
+  static void put_touch(int id, float x, float y)
+  {
+    int i = id & (MAX_POINTER_ID - 1);
+    int sx = scale(x);
+    int sy = scale(y);
+    put(id);
+    put_signed(sx);
+    put_signed(sy);
+    _last_x[i] = sx;
+    _last_y[i] = sy;
+    _pos_valid |= 1 << i;
+  }
+
+  static void put_mods(Pointers.Modifiers mods)
+  {
+    int n = Math.min(mods.size(), MAX_MODS);
+    put(n);
+    for (int i = 0; i < n; i++)
+      put_key(mods.get(i));
+    _last_mods = mods;
+  }
+
+  /** Keys that could reveal what is typed. */
+  static boolean is_typed(KeyValue k)
+  {
+    switch (k.getKind())
+    {
+      case Char: case String: case Macro: case Compose_pending:
+      case Hangul_initial: case Hangul_medial:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static void put_key(KeyValue k)
+  {
+    put(k.getKind().ordinal());
+    put(k.getRawValue());
+  }
+
+  static void put_string(String s)
+  {
+    int n = Math.min(s.length(), MAX_STRING);
+    put(n);
+    for (int i = 0; i < n; i++)
+      put(s.charAt(i));
+  }
+
+  static void put_duration_us(long call_start)
+  {
+    long d = (call_start == 0) ? 0 : (System.nanoTime() - call_start) / 1000;
+    put(Math.max(0, d));
+  }
+
+  static void put_signed(long v)
+  {
+    put((v << 1) ^ (v >> 63));
+  }
+
+  static void put(long v)
+  {
+    while ((v & ~0x7fL) != 0)
+    {
+      _buf[_pos++] = (byte)((v & 0x7f) | 0x80);
+      v >>>= 7;
+    }
+    _buf[_pos++] = (byte)v;
+  }
+
+  static void put_long(long v)
+  {
+    for (int s = 56; s >= 0; s -= 8)
+      _buf[_pos++] = (byte)(v >>> s);
+  }
+
+  /** Writes a filled buffer. One per buffer, reused. */
+  static final class BlockWriter implements Runnable
+  {
+    final int index;
+    long block_id;
+
+    BlockWriter(int i) { index = i; }
+
+    @Override
+    public void run()
+    {
+      _trace_file.write(_buffers[index], BLOCK_SIZE, block_id);
+      _busy.set(index, 0);
+    }
+  }
+
+  /** The circular file. Only accessed from the writer thread. */
+  static final class TraceFile
+  {
+    final File _path;
+    RandomAccessFile _raf = null;
+    boolean _failed = false;
+    /** Highest sequence number in the file and its slot, [-1] if empty. */
+    long _seq = 0;
+    int _slot = -1;
+    /** The last block written, flushed blocks are written again in the same
+        slot once filled. */
+    long _last_block_id = -1;
+
+    TraceFile(File path) { _path = path; }
+
+    void write(byte[] block, int len, long block_id)
+    {
+      if (_failed)
+        return;
+      try
+      {
+        if (_raf == null)
+          open();
+        if (block_id != _last_block_id)
+        {
+          _seq++;
+          _slot = (_slot + 1) % BLOCK_COUNT;
+          _last_block_id = block_id;
+        }
+        _raf.seek(HEADER_SIZE + (long)_slot * BLOCK_SIZE);
+        _raf.writeLong(_seq);
+        _raf.write(block, 8, len - 8);
+      }
+      catch (IOException e)
+      {
+        _failed = true;
+        Logs.exn("EventTrace: writing " + _path, e);
+      }
+    }
+
+    void open() throws IOException
+    {
+      _raf = new RandomAccessFile(_path, "rw");
+      if (_raf.length() < HEADER_SIZE || _raf.readInt() != MAGIC
+          || _raf.readInt() != VERSION || _raf.readInt() != BLOCK_SIZE
+          || _raf.readInt() != BLOCK_COUNT)
+      {
+        _raf.setLength(0);
+        _raf.seek(0);
+        _raf.writeInt(MAGIC);
+        _raf.writeInt(VERSION);
+        _raf.writeInt(BLOCK_SIZE);
+        _raf.writeInt(BLOCK_COUNT);
+        return;
+      }
+      // Continue after the most recent block.
+      for (int i = 0; i < BLOCK_COUNT; i++)
+      {
+        long off = HEADER_SIZE + (long)i * BLOCK_SIZE;
+        if (off + BLOCK_HEADER_SIZE > _raf.length())
+          break;
+        _raf.seek(off);
+        long seq = _raf.readLong();
+        if (seq > _seq)
+        {
+          _seq = seq;
+          _slot = i;
+        }
+      }
+    }
+  }
+
+  /** A decoded record. Fields that don't apply to [type] are unspecified. */
+  public static final class Record
+  {
+    public int type;
+    /** [SystemClock.uptimeMillis] and wall clock time of the record. */
+    public long time;
+    public long wall_time;
+    /** Pointer id, coordinates in pixels. */
+    public int id;
+    public float x;
+    public float y;
+    /** [KEY]: the key. [MODS]: the modifiers. */
+    public KeyValue.Kind kind;
+    public int value;
+    public String symbol;
+    public final List<KeyValue.Kind> mod_kinds = new ArrayList<KeyValue.Kind>();
+    public final List<Integer> mod_values = new ArrayList<Integer>();
+    /** [COMMIT_TEXT]: the length of the text. [KEY_EVENT]: action, code and
+        meta state. [DROPPED]: number of records. */
+    public int length;
+    public int action;
+    public int keycode;
+    public int meta;
+    public long duration_us;
+
+    @Override
+    public String toString()
+    {
+      StringBuilder b = new StringBuilder();
+      b.append(time).append(' ');
+      switch (type)
+      {
+        case TOUCH_DOWN: b.append("down ").append(id).append(' ').append(x).append(',').append(y); break;
+        case TOUCH_MOVE:
+        case TOUCH_MOVE_ABS: b.append("move ").append(id).append(' ').append(x).append(',').append(y); break;
+        case TOUCH_UP: b.append("up ").append(id); break;
+        case TOUCH_CANCEL: b.append("cancel"); break;
+        case KEY:
+          b.append("key ").append(kind).append('+').append(value);
+          if (symbol.length() > 0)
+            b.append(" \"").append(symbol).append('"');
+          break;
+        case MODS:
+          b.append("mods");
+          for (int i = 0; i < mod_kinds.size(); i++)
+            b.append(' ').append(mod_kinds.get(i)).append('+').append(mod_values.get(i));
+          break;
+        case COMMIT_TEXT: b.append("text ").append(length).append(' ').append(duration_us).append("us"); break;
+        case KEY_EVENT:
+          b.append("keyevent ").append(action).append(' ').append(keycode)
+            .append(' ').append(meta).append(' ').append(duration_us).append("us");
+          break;
+        case DROPPED: b.append("dropped ").append(length); break;
+        default: b.append("unknown ").append(type); break;
+      }
+      return b.toString();
+    }
+  }
+
+  public static interface Visitor
+  {
+    /** [r] is reused for the next record. */
+    public void record(Record r);
+  }
+
+  /** Decode the content of a trace file. Blocks are visited in the order
+      they were written. */
+  public static void read(byte[] data, Visitor v) throws IOException
+  {
+    Decoder d = new Decoder(data);
+    if (data.length < HEADER_SIZE || d.get_int(0) != MAGIC)
+      throw new IOException("Not an event trace");
+    if (d.get_int(4) != VERSION)
+      throw new IOException("Unsupported event trace version " + d.get_int(4));
+    int block_size = d.get_int(8);
+    int block_count = d.get_int(12);
+    // Sort the blocks by sequence number.
+    List<long[]> blocks = new ArrayList<long[]>();
+    for (int i = 0; i < block_count; i++)
+    {
+      int off = HEADER_SIZE + i * block_size;
+      if (off + BLOCK_HEADER_SIZE > data.length)
+        break;
+      long seq = d.get_long(off);
+      if (seq > 0)
+        blocks.add(new long[]{ seq, off });
+    }
+    blocks.sort((a, b) -> Long.compare(a[0], b[0]));
+    Record r = new Record();
+    for (long[] b : blocks)
+    {
+      int off = (int)b[1];
+      d.read_block(off, Math.min(off + block_size, data.length), r, v);
+    }
+  }
+
+  /** Human-readable dump of a trace file, one record per line. */
+  public static String dump(byte[] data) throws IOException
+  {
+    StringBuilder b = new StringBuilder();
+    read(data, r -> b.append(r).append('\n'));
+    return b.toString();
+  }
+
+  static final class Decoder
+  {
+    final byte[] _data;
+    int _pos;
+    int _end;
+
+    Decoder(byte[] data) { _data = data; }
+
+    int get_int(int off)
+    {
+      int v = 0;
+      for (int i = 0; i < 4; i++)
+        v = (v << 8) | (_data[off + i] & 0xff);
+      return v;
+    }
+
+    long get_long(int off)
+    {
+      return ((long)get_int(off) << 32) | (get_int(off + 4) & 0xffffffffL);
+    }
+
+    void read_block(int off, int end, Record r, Visitor v) throws IOException
+    {
+      long wall_base = get_long(off + 8);
+      long time_base = get_long(off + 16);
+      long time = time_base;
+      int[] last_x = new int[MAX_POINTER_ID];
+      int[] last_y = new int[MAX_POINTER_ID];
+      _pos = off + BLOCK_HEADER_SIZE;
+      _end = end;
+      while (_pos < _end)
+      {
+        int type = _data[_pos++];
+        if (type == END)
+          return;
+        time += get_signed();
+        r.type = type;
+        r.time = time;
+        r.wall_time = wall_base + (time - time_base);
+        switch (type)
+        {
+          case TOUCH_DOWN:
+          case TOUCH_MOVE_ABS:
+          case TOUCH_MOVE:
+            r.id = (int)get();
+            int i = r.id & (MAX_POINTER_ID - 1);
+            int sx = (int)get_signed();
+            int sy = (int)get_signed();
+            if (type == TOUCH_MOVE)
+            {
+              sx += last_x[i];
+              sy += last_y[i];
+            }
+            last_x[i] = sx;
+            last_y[i] = sy;
+            r.x = sx / COORD_SCALE;
+            r.y = sy / COORD_SCALE;
+            break;
+          case TOUCH_UP: r.id = (int)get(); break;
+          case TOUCH_CANCEL: break;
+          case KEY:
+            r.kind = get_kind();
+            r.value = (int)get();
+            r.symbol = get_string();
+            break;
+          case MODS:
+            r.mod_kinds.clear();
+            r.mod_values.clear();
+            int n = (int)get();
+            for (int j = 0; j < n; j++)
+            {
+              r.mod_kinds.add(get_kind());
+              r.mod_values.add((int)get());
+            }
+            break;
+          case COMMIT_TEXT:
+            r.length = (int)get();
+            r.duration_us = get();
+            break;
+          case KEY_EVENT:
+            r.action = (int)get();
+            r.keycode = (int)get();
+            r.meta = (int)get();
+            r.duration_us = get();
+            break;
+          case DROPPED: r.length = (int)get(); break;
+          default:
+            throw new IOException(String.format(Locale.US,
+                  "Unknown record type %d at offset %d", type, _pos - 1));
+        }
+        v.record(r);
+      }
+    }
+
+    KeyValue.Kind get_kind() throws IOException
+    {
+      int k = (int)get();
+      KeyValue.Kind[] kinds = KeyValue.Kind.values();
+      if (k >= kinds.length)
+        throw new IOException("Unknown key kind " + k);
+      return kinds[k];
+    }
+
+    String get_string() throws IOException
+    {
+      int n = (int)get();
+      StringBuilder b = new StringBuilder(n);
+      for (int i = 0; i < n; i++)
+        b.append((char)get());
+      return b.toString();
+    }
+
+    long get_signed() throws IOException
+    {
+      long v = get();
+      return (v >>> 1) ^ -(v & 1);
+    }
+
+    long get() throws IOException
+    {
+      long v = 0;
+      for (int shift = 0; shift < 64; shift += 7)
+      {
+        if (_pos >= _end)
+          throw new IOException("Truncated record");
+        byte b = _data[_pos++];
+        v |= (long)(b & 0x7f) << shift;
+        if ((b & 0x80) == 0)
+          return v;
+      }
+      throw new IOException("Malformed varint");
+    }
+  }
+}
@@ -0,0 +1,246 @@
+package com.harryaskham.omni;
+
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/** Layouts loaded from the external layouts directory, see [Config.refresh].
+    The directory is scanned on a background thread and files are parsed
+    again only when they change. Unchanged files are recognized by their
+    size and modification time, then by the hash of their content.
+
+    The directory is watched with a [FileObserver]. It is also scanned again
+    each time [set_directory] is called, as some emulated storages don't
+    report all the changes. [layouts] is replaced as a whole and
+    [_changed_callback] is called on the main thread after it changes. */
+public final class ExternalLayouts
+{
+  /** Changes are often made of several events, wait for them to settle. */
+  static final long RESCAN_DELAY_MS = 300;
+  static final int WATCHED_EVENTS = FileObserver.CLOSE_WRITE
+    | FileObserver.ATTRIB | FileObserver.MOVED_FROM | FileObserver.MOVED_TO
+    | FileObserver.DELETE | FileObserver.DELETE_SELF | FileObserver.MOVE_SELF;
+
+  /** Immutable. */
+  volatile List<KeyboardData> _layouts = Collections.emptyList();
+  /** The directory being watched, [null] if disabled. */
+  volatile String _dir = null;
+  FileObserver _observer = null;
+  Runnable _changed_callback = null;
+  final Handler _main = new Handler(Looper.getMainLooper());
+  ScheduledExecutorService _loader = null;
+  boolean _scan_pending = false;
+  /** Files found by the last scan, by path. Only accessed by the loader. */
+  Map<String, Entry> _entries = new HashMap<String, Entry>();
+
+  public ExternalLayouts() {}
+
+  /** The layouts loaded so far, in file name order. Possibly empty while the
+      directory is being loaded. */
+  public List<KeyboardData> layouts()
+  {
+    return _layouts;
+  }
+
+  /** Called on the main thread after [layouts] changed. */
+  public void setChangedCallback(Runnable cb)
+  {
+    _changed_callback = cb;
+  }
+
+  /** Start loading and watching [dir], or rescan it in the background if it
+      is already watched. [null] stops watching. Must be called from the main
+      thread. */
+  public void set_directory(String dir)
+  {
+    if (dir != null && dir.equals(_dir))
+    {
+      if (_observer == null)
+        start_watching();
+      schedule_scan(RESCAN_DELAY_MS);
+      return;
+    }
+    stop_watching();
+    boolean changed;
+    synchronized (this)
+    {
+      _dir = dir;
+      changed = !_layouts.isEmpty();
+      _layouts = Collections.emptyList();
+    }
+    if (changed)
+      notify_changed();
+    if (dir == null)
+      return;
+    start_watching();
+    schedule_scan(0);
+  }
+
+  /** Stop watching the directory. The callback is not called anymore. */
+  public void close()
+  {
+    _changed_callback = null;
+    stop_watching();
+    synchronized (this)
+    {
+      _dir = null;
+      if (_loader != null)
+        _loader.shutdownNow();
+      _loader = null;
+      _scan_pending = false;
+    }
+  }
+
+  void start_watching()
+  {
+    final String dir = _dir;
+    if (!new File(dir).isDirectory())
+      return;
+    _observer = new FileObserver(dir, WATCHED_EVENTS) {
+      @Override
+      public void onEvent(int event, String path)
+      {
+        schedule_scan(RESCAN_DELAY_MS);
+      }
+    };
+    _observer.startWatching();
+  }
+
+  void stop_watching()
+  {
+    if (_observer == null)
+      return;
+    _observer.stopWatching();
+    _observer = null;
+  }
+
+  /** Scans that are requested while one is pending are merged. Called from
+      the main thread and from the [FileObserver]'s thread. */
+  synchronized void schedule_scan(long delay_ms)
+  {
+    if (_scan_pending)
+      return;
+    _scan_pending = true;
+    if (_loader == null)
+      _loader = Executors.newSingleThreadScheduledExecutor();
+    _loader.schedule(() -> {
+      synchronized (this) { _scan_pending = false; }
+      String dir = _dir;
+      if (dir != null)
+        scan(dir);
+    }, delay_ms, TimeUnit.MILLISECONDS);
+  }
+
+  /** Load the layouts in [dir] and publish them. Runs on the loader. */
+  void scan(String dir)
+  {
+    File[] files = new File(dir).listFiles((d, name) ->
+        name.toLowerCase().endsWith(".xml"));
+    if (files == null)
+      files = new File[0];
+    Arrays.sort(files, (a, b) -> a.getName().compareToIgnoreCase(b.getName()));
+    Map<String, Entry> entries = new HashMap<String, Entry>();
+    List<KeyboardData> layouts = new ArrayList<KeyboardData>();
+    for (File f : files)
+    {
+      Entry e = load(f, _entries.get(f.getPath()));
+      if (e == null)
+        continue;
+      entries.put(f.getPath(), e);
+      if (e.layout != null)
+        layouts.add(e.layout);
+    }
+    _entries = entries;
+    if (publish(dir, layouts))
+      notify_changed();
+  }
+
+  /** Returns [false] if nothing changed or if the directory changed during
+      the scan. */
+  synchronized boolean publish(String dir, List<KeyboardData> layouts)
+  {
+    if (!dir.equals(_dir) || same_layouts(layouts, _layouts))
+      return false;
+    _layouts = Collections.unmodifiableList(layouts);
+    return true;
+  }
+
+  /** Returns [null] if the file can't be read. Files that fail to parse are
+      remembered and not parsed again until they change. */
+  static Entry load(File f, Entry prev)
+  {
+    long size = f.length();
+    long mtime = f.lastModified();
+    if (size == 0)
+      return null;
+    if (prev != null && prev.size == size && prev.mtime == mtime)
+      return prev;
+    String src;
+    try
+    {
+      src = LayoutCache.read_source(f);
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to read layout " + f.getName(), e);
+      return null;
+    }
+    long hash = LayoutCache.hash(src);
+    if (prev != null && prev.hash == hash)
+      return new Entry(size, mtime, hash, prev.layout);
+    KeyboardData layout = null;
+    try
+    {
+      layout = LayoutCache.load_string(src);
+    }
+    catch (Exception e)
+    {
+      Logs.exn("Failed to load layout from " + f.getName(), e);
+    }
+    return new Entry(size, mtime, hash, layout);
+  }
+
+  static boolean same_layouts(List<KeyboardData> a, List<KeyboardData> b)
+  {
+    if (a.size() != b.size())
+      return false;
+    for (int i = 0; i < a.size(); i++)
+      if (a.get(i) != b.get(i))
+        return false;
+    return true;
+  }
+
+  void notify_changed()
+  {
+    Runnable cb = _changed_callback;
+    if (cb != null)
+      _main.post(cb);
+  }
+
+  static final class Entry
+  {
+    final long size;
+    final long mtime;
+    final long hash;
+    /** [null] if the file couldn't be parsed. */
+    final KeyboardData layout;
+
+    Entry(long s, long m, long h, KeyboardData l)
+    {
+      size = s;
+      mtime = m;
+      hash = h;
+      layout = l;
+    }
+  }
+}
@@ -5,6 +5,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -28,6 +29,34 @@ public final class ExtraKeys
       k.compute(dst, q);
   }
 
+  /** Keys are compared in order, [merge] gives the same order for the same
+      input. */
+  @Override
+  public boolean equals(Object obj)
+  {
+    if (obj == this)
+      return true;
+    if (!(obj instanceof ExtraKeys))
+      return false;
+    Collection<ExtraKey> ks = ((ExtraKeys)obj)._ks;
+    if (ks.size() != _ks.size())
+      return false;
+    Iterator<ExtraKey> it = ks.iterator();
+    for (ExtraKey k : _ks)
+      if (!k.equals(it.next()))
+        return false;
+    return true;
+  }
+
+  @Override
+  public int hashCode()
+  {
+    int h = 0;
+    for (ExtraKey k : _ks)
+      h = h * 31 + k.hashCode();
+    return h;
+  }
+
   public static ExtraKeys parse(String script, String str)
   {
     Collection<ExtraKey> dst = new ArrayList<ExtraKey>();
@@ -74,6 +103,27 @@ public final class ExtraKeys
       next_to = next_to_;
     }
 
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof ExtraKey))
+        return false;
+      ExtraKey k = (ExtraKey)obj;
+      return kv.equals(k.kv) && same(script, k.script)
+        && alternatives.equals(k.alternatives) && same(next_to, k.next_to);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return kv.hashCode() * 31 + alternatives.hashCode();
+    }
+
+    static boolean same(Object a, Object b)
+    {
+      return (a == null) ? b == null : a.equals(b);
+    }
+
     /** Whether the key should be added to the keyboard. */
     public void compute(Map<KeyValue, KeyboardData.PreferredPos> dst, Query q)
     {
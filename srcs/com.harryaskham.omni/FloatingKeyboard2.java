@@ -163,6 +163,7 @@ public class FloatingKeyboard2 extends InputMethodService
   }
 
   private RingModsReceiver _ringModsReceiver;
+  private LatencyTrace.DumpReceiver _latencyDumpReceiver;
 
   @Override
   public void onCreate()
@@ -172,12 +173,18 @@ public class FloatingKeyboard2 extends InputMethodService
     _handler = new Handler(getMainLooper());
     _keyeventhandler = new KeyEventHandler(this.new Receiver());
     _foldStateTracker = new FoldStateTracker(this);
+    EventTrace.init(this);
+    LayoutCache.init(this);
+    LayoutPreloader.init(this);
     Config.initGlobalConfig(prefs, getResources(), _keyeventhandler, _foldStateTracker.isUnfolded());
     prefs.registerOnSharedPreferenceChangeListener(this);
     _config = Config.globalConfig();
     Logs.set_debug_logs(getResources().getBoolean(R.bool.debug_logs));
     ClipboardHistoryService.on_startup(this, _keyeventhandler);
     _foldStateTracker.setChangedCallback(() -> { refresh_config(); });
+    _config.external_layouts.setChangedCallback(() -> {
+      onSharedPreferenceChanged(null, null);
+    });
 
     _windowManager = createOverlayWindowManager();
 
@@ -195,6 +202,15 @@ public class FloatingKeyboard2 extends InputMethodService
     } else {
       Logs.log("FloatingKeyboard2", "Omni injection command server disabled in settings");
     }
+    // Exported for adb, which would also let other apps read typing timings.
+    if (BuildConfig.DEBUG) {
+      _latencyDumpReceiver = new LatencyTrace.DumpReceiver();
+      if (android.os.Build.VERSION.SDK_INT >= 33) {
+        registerReceiver(_latencyDumpReceiver, LatencyTrace.DumpReceiver.buildIntentFilter(), android.content.Context.RECEIVER_EXPORTED);
+      } else {
+        registerReceiver(_latencyDumpReceiver, LatencyTrace.DumpReceiver.buildIntentFilter());
+      }
+    }
   }
 
   @Override
@@ -204,9 +220,15 @@ public class FloatingKeyboard2 extends InputMethodService
       try { unregisterReceiver(_ringModsReceiver); } catch (Exception e) { Log.w("FloatingKeyboard2", "unregister failed", e); }
       _ringModsReceiver = null;
     }
+    if (_latencyDumpReceiver != null) {
+      try { unregisterReceiver(_latencyDumpReceiver); } catch (Exception e) { Log.w("FloatingKeyboard2", "unregister failed", e); }
+      _latencyDumpReceiver = null;
+    }
+    EventTrace.flush();
     super.onDestroy();
     removeFloatingKeyboard();
     _foldStateTracker.close();
+    _config.external_layouts.close();
   }
 
   private void refreshSubtypeImm()
@@ -324,6 +346,24 @@ public class FloatingKeyboard2 extends InputMethodService
       });
       android.util.Log.d("FloatingKeyboard", "Cleared keyboard state on startup to prevent stuck keys");
     }
+    LayoutPreloader.prepare_on_idle();
+  }
+
+  @Override
+  public void onUpdateSelection(int oldSelStart, int oldSelEnd, int newSelStart, int newSelEnd, int candidatesStart, int candidatesEnd)
+  {
+    super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd);
+    _keyeventhandler.selection_updated(oldSelStart, newSelStart, newSelEnd);
+    if (_floatingKeyboardView != null
+        && (oldSelStart == oldSelEnd) != (newSelStart == newSelEnd))
+      ((Keyboard2View)_floatingKeyboardView).set_selection_state(newSelStart != newSelEnd);
+  }
+
+  @Override
+  public void onTrimMemory(int level)
+  {
+    super.onTrimMemory(level);
+    LayoutPreloader.trim_memory(level);
   }
 
   @Override
@@ -351,6 +391,7 @@ public class FloatingKeyboard2 extends InputMethodService
   @Override
   public void onFinishInputView(boolean finishingInput)
   {
+    EventTrace.flush();
     super.onFinishInputView(finishingInput);
     // Only hide floating keyboard if persistence is disabled
     if (!_config.keyboard_persistence_enabled) {
@@ -1574,7 +1615,8 @@ public class FloatingKeyboard2 extends InputMethodService
       
       // Always intercept events when we're in drag or resize mode
       if (isDragging || isResizing) {
-        android.util.Log.d("FloatingKeyboard", "Intercepting touch event - drag: " + isDragging + " resize: " + isResizing);
+        if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+          Logs.d(Logs.TOUCH, "Intercepting touch event - drag: " + isDragging + " resize: " + isResizing);
         return true;
       }
       
@@ -1591,15 +1633,18 @@ public class FloatingKeyboard2 extends InputMethodService
         // If touch is outside keyboard bounds, don't intercept it at all
         if (containerX < keyboardLeft || containerX > keyboardRight || 
             containerY < keyboardTop || containerY > keyboardBottom) {
-          android.util.Log.d("FloatingKeyboard", "Touch outside keyboard bounds - passing through: touch=(" + containerX + "," + containerY + ") keyboard=(" + keyboardLeft + "," + keyboardTop + "," + keyboardRight + "," + keyboardBottom + ")");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Touch outside keyboard bounds - passing through: touch=(" + containerX + "," + containerY + ") keyboard=(" + keyboardLeft + "," + keyboardTop + "," + keyboardRight + "," + keyboardBottom + ")");
           return false; // Don't intercept touches outside the keyboard
         }
         
-        android.util.Log.d("FloatingKeyboard", "Container intercepting touch: x=" + containerX + " y=" + containerY + " passthrough=" + passthroughMode);
+        if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+          Logs.d(Logs.TOUCH, "Container intercepting touch: x=" + containerX + " y=" + containerY + " passthrough=" + passthroughMode);
         
         // Always allow handle touches through
         if (containerY <= 30) {
-          android.util.Log.d("FloatingKeyboard", "Handle area - allowing normal processing");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Handle area - allowing normal processing");
           return false; // Don't intercept, let handles work
         }
         
@@ -1611,7 +1656,8 @@ public class FloatingKeyboard2 extends InputMethodService
           if (keyboardX >= 0 && keyboardX < _floatingKeyboardView.getWidth() && 
               keyboardY >= 0 && keyboardY < _floatingKeyboardView.getHeight()) {
             // This is a keyboard area touch in passthrough mode - don't handle it at all
-            android.util.Log.d("FloatingKeyboard", "Keyboard touch in passthrough mode - allowing passthrough");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Keyboard touch in passthrough mode - allowing passthrough");
             return false; // Let it pass through completely
           }
         } else {
@@ -1625,11 +1671,13 @@ public class FloatingKeyboard2 extends InputMethodService
                 keyboardY >= 0 && keyboardY < _floatingKeyboardView.getHeight()) {
               // Start drag or resize mode
               if (keyDragMode) {
-                android.util.Log.d("FloatingKeyboard", "Starting key-initiated drag with touch at " + event.getRawX() + "," + event.getRawY());
+                if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+                  Logs.d(Logs.TOUCH, "Starting key-initiated drag with touch at " + event.getRawX() + "," + event.getRawY());
                 startDragFromTouch(event);
                 keyDragMode = false; // Reset mode after starting
               } else if (keyResizeMode) {
-                android.util.Log.d("FloatingKeyboard", "Starting key-initiated resize with touch at " + event.getRawX() + "," + event.getRawY());
+                if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+                  Logs.d(Logs.TOUCH, "Starting key-initiated resize with touch at " + event.getRawX() + "," + event.getRawY());
                 startResizeFromTouch(event);
                 keyResizeMode = false; // Reset mode after starting
               }
@@ -1646,7 +1694,8 @@ public class FloatingKeyboard2 extends InputMethodService
               KeyboardData.Key key = ((Keyboard2View)_floatingKeyboardView).getKeyAtPosition(keyboardX, keyboardY);
               if (key == null) {
                 // This is a gap touch - enter passthrough mode
-                android.util.Log.d("FloatingKeyboard", "Gap touch detected - entering passthrough mode");
+                if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+                  Logs.d(Logs.TOUCH, "Gap touch detected - entering passthrough mode");
                 // Capture the position of the key that has FLOATING_ENABLE_PASSTHROUGH mapping
                 // This ensures the toggle button appears in the same position as if the key was pressed
                 capturePassthroughTriggeringKeyPosition();
@@ -1654,7 +1703,8 @@ public class FloatingKeyboard2 extends InputMethodService
                 showDebugToast("Keyboard disabled - tap top-left toggle button to re-enable");
                 return true; // Intercept this touch and consume it
               } else {
-                android.util.Log.d("FloatingKeyboard", "Key touch detected - normal processing");
+                if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+                  Logs.d(Logs.TOUCH, "Key touch detected - normal processing");
               }
             }
           }
@@ -1668,7 +1718,8 @@ public class FloatingKeyboard2 extends InputMethodService
     public boolean onTouchEvent(MotionEvent event) {
       // Check if we should ignore input after mode transitions to prevent stuck keys
       if (System.currentTimeMillis() < ignoreInputUntil) {
-        android.util.Log.d("FloatingKeyboard", "Ignoring touch event during cooldown period to prevent stuck keys");
+        if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+          Logs.d(Logs.TOUCH, "Ignoring touch event during cooldown period to prevent stuck keys");
         return true; // Consume the event
       }
       
@@ -1685,7 +1736,8 @@ public class FloatingKeyboard2 extends InputMethodService
         if (!isDragging && !isResizing && 
             (containerX < keyboardLeft || containerX > keyboardRight || 
              containerY < keyboardTop || containerY > keyboardBottom)) {
-          android.util.Log.d("FloatingKeyboard", "Touch event outside keyboard bounds - not handling");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Touch event outside keyboard bounds - not handling");
           return false; // Don't handle touches outside the keyboard
         }
       }
@@ -1699,7 +1751,8 @@ public class FloatingKeyboard2 extends InputMethodService
             
             _floatingLayoutParams.x = dragInitialX + (int) deltaX;
             _floatingLayoutParams.y = dragInitialY + (int) deltaY;
-            android.util.Log.d("FloatingKeyboard", "Drag move - window size: " + _floatingLayoutParams.width + "x" + _floatingLayoutParams.height);
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Drag move - window size: " + _floatingLayoutParams.width + "x" + _floatingLayoutParams.height);
             windowManager.updateViewLayout(this, _floatingLayoutParams);
             return true;
             
@@ -1711,7 +1764,8 @@ public class FloatingKeyboard2 extends InputMethodService
             clampKeyboardPositionToScreen();
             
             Config config = Config.globalConfig();
-            android.util.Log.d("FloatingKeyboard", "Drag ended - config percentages: " + config.floatingKeyboardWidthPercent + "% x " + config.floatingKeyboardHeightPercent + "%");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Drag ended - config percentages: " + config.floatingKeyboardWidthPercent + "% x " + config.floatingKeyboardHeightPercent + "%");
             
             // Clear visual feedback
             FloatingKeyboard2.clearFloatingModeVisuals();
@@ -1722,7 +1776,8 @@ public class FloatingKeyboard2 extends InputMethodService
             // No drag handle to restore
             
             FloatingKeyboard2.this.saveFloatingKeyboardPosition();
-            android.util.Log.d("FloatingKeyboard", "Key-initiated drag ended");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Key-initiated drag ended");
             return true;
         }
       }
@@ -1733,8 +1788,10 @@ public class FloatingKeyboard2 extends InputMethodService
           float deltaX = event.getRawX() - resizeStartX;
           float deltaY = event.getRawY() - resizeStartY;
           
-          android.util.Log.d("FloatingKeyboard", "Resize drag - deltaX: " + deltaX + ", deltaY: " + deltaY);
-          android.util.Log.d("FloatingKeyboard", "Initial dimensions: " + initialWidth + "x" + initialHeight);
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Resize drag - deltaX: " + deltaX + ", deltaY: " + deltaY);
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Initial dimensions: " + initialWidth + "x" + initialHeight);
           
           // Single-display metrics drive the minimum size; the full combined
           // display drives the maximum so the keyboard can be resized to span
@@ -1748,7 +1805,8 @@ public class FloatingKeyboard2 extends InputMethodService
           int newKeyboardWidth = Math.round(initialWidth + deltaX);
           int newKeyboardHeight = Math.round(initialHeight + deltaY);
           
-          android.util.Log.d("FloatingKeyboard", "Calculated new dimensions: " + newKeyboardWidth + "x" + newKeyboardHeight);
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Calculated new dimensions: " + newKeyboardWidth + "x" + newKeyboardHeight);
           
           // Apply constraints
           int minKeyboardWidth = Math.round(screenWidth * 0.3f);
@@ -1763,13 +1821,16 @@ public class FloatingKeyboard2 extends InputMethodService
           int newWidthPercent = Math.round(100f * newKeyboardWidth / screenWidth);
           int newHeightPercent = Math.round(100f * newKeyboardHeight / screenHeight);
           
-          android.util.Log.d("FloatingKeyboard", "New percentages: " + newWidthPercent + "% x " + newHeightPercent + "%");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "New percentages: " + newWidthPercent + "% x " + newHeightPercent + "%");
           
           Config config = Config.globalConfig();
-          android.util.Log.d("FloatingKeyboard", "Current config percentages: " + config.floatingKeyboardWidthPercent + "% x " + config.floatingKeyboardHeightPercent + "%");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Current config percentages: " + config.floatingKeyboardWidthPercent + "% x " + config.floatingKeyboardHeightPercent + "%");
           
           if (newWidthPercent != config.floatingKeyboardWidthPercent || newHeightPercent != config.floatingKeyboardHeightPercent) {
-            android.util.Log.d("FloatingKeyboard", "Updating config and window layout");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Updating config and window layout");
             config.floatingKeyboardWidthPercent = newWidthPercent;
             config.floatingKeyboardHeightPercent = newHeightPercent;
             
@@ -1785,7 +1846,8 @@ public class FloatingKeyboard2 extends InputMethodService
             
             FloatingKeyboard2.this.refreshFloatingKeyboard();
           } else {
-            android.util.Log.d("FloatingKeyboard", "No change in percentages - not updating");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "No change in percentages - not updating");
           }
           return true;
         } else if (event.getAction() == MotionEvent.ACTION_UP || event.getAction() == MotionEvent.ACTION_CANCEL) {
@@ -1797,11 +1859,13 @@ public class FloatingKeyboard2 extends InputMethodService
             _floatingKeyboardView.setClickable(true);
             _floatingKeyboardView.setFocusable(true);
             ((Keyboard2View)_floatingKeyboardView).invalidate();
-            android.util.Log.d("FloatingKeyboard", "Re-enabled keyboard view touch processing after resize");
+            if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+              Logs.d(Logs.TOUCH, "Re-enabled keyboard view touch processing after resize");
           }
           
           FloatingKeyboard2.this.saveFloatingKeyboardPosition();
-          android.util.Log.d("FloatingKeyboard", "Key-initiated resize ended");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Key-initiated resize ended");
           return true;
         }
       }
@@ -1822,7 +1886,8 @@ public class FloatingKeyboard2 extends InputMethodService
         if (keyboardX >= 0 && keyboardX < _floatingKeyboardView.getWidth() && 
             keyboardY >= 0 && keyboardY < _floatingKeyboardView.getHeight()) {
           // This is a keyboard area touch in passthrough mode - don't consume it
-          android.util.Log.d("FloatingKeyboard", "Container onTouchEvent in passthrough mode - not consuming touch");
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Container onTouchEvent in passthrough mode - not consuming touch");
           return false; // Don't consume the event, let it pass through
         }
       }
@@ -1964,7 +2029,8 @@ public class FloatingKeyboard2 extends InputMethodService
         
         @Override
         public boolean onTouch(View v, MotionEvent event) {
-          android.util.Log.d("FloatingKeyboard", "Re-enable button touched: " + event.getAction());
+          if (Logs.DEBUG && Logs.on(Logs.TOUCH))
+            Logs.d(Logs.TOUCH, "Re-enable button touched: " + event.getAction());
           
           switch (event.getAction()) {
             case MotionEvent.ACTION_DOWN:
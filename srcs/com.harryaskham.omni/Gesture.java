@@ -9,6 +9,12 @@ public final class Gesture
   State state;
 
   public Gesture(int starting_direction)
+  {
+    start(starting_direction);
+  }
+
+  /** Reset the state for a new gesture, the object can be reused. */
+  public void start(int starting_direction)
   {
     current_dir = starting_direction;
     state = State.Swiped;
@@ -3,6 +3,7 @@ package com.harryaskham.omni;
 import android.annotation.SuppressLint;
 import android.os.Looper;
 import android.os.Handler;
+import android.os.SystemClock;
 import android.text.InputType;
 import android.view.KeyCharacterMap;
 import android.view.KeyEvent;
@@ -10,7 +11,7 @@ import android.view.inputmethod.EditorInfo;
 import android.view.inputmethod.ExtractedText;
 import android.view.inputmethod.ExtractedTextRequest;
 import android.view.inputmethod.InputConnection;
-import java.util.Iterator;
+import java.util.ArrayList;
 
 public final class KeyEventHandler
   implements Config.IKeyEventHandler,
@@ -30,6 +31,19 @@ public final class KeyEventHandler
   boolean _move_cursor_force_fallback = false;
   /** Whether the target app has disabled direct writing (e.g. Samsung apps). */
   boolean _disable_direct_writing = false;
+  /** Nesting depth of [begin_batch]. */
+  int _batch_depth = 0;
+  /** Connection on which [beginBatchEdit] succeeded, [null] otherwise. */
+  InputConnection _batch_conn = null;
+  /** Text sent with [send_text] during a batch, committed at once by
+      [flush_pending_text]. */
+  final StringBuilder _pending_text = new StringBuilder();
+  /** Mirror of the selection in the editor. */
+  final EditorSelection _sel = new EditorSelection();
+  /** Reused by [update_meta_state]. */
+  final Pointers.Modifiers.ModifiersDiffIterator _mods_diff =
+    new Pointers.Modifiers.ModifiersDiffIterator(Pointers.Modifiers.EMPTY,
+        Pointers.Modifiers.EMPTY);
 
   public KeyEventHandler(IReceiver recv)
   {
@@ -43,14 +57,19 @@ public final class KeyEventHandler
   public void started(EditorInfo info)
   {
     _autocap.started(info, _recv.getCurrentInputConnection());
+    _sel.reset();
+    _sel.set(info.initialSelStart, info.initialSelEnd, SystemClock.uptimeMillis());
     _move_cursor_force_fallback = should_move_cursor_force_fallback(info);
     _disable_direct_writing = should_disable_direct_writing(info);
+    EventTrace.set_private(is_private_editor(info));
   }
 
   /** Selection has been updated. */
-  public void selection_updated(int oldSelStart, int newSelStart)
+  public void selection_updated(int oldSelStart, int newSelStart, int newSelEnd)
   {
+    _sel.updated(newSelStart, newSelEnd);
     _autocap.selection_updated(oldSelStart, newSelStart);
+    macros_acknowledged();
   }
 
   /** A key is being pressed. There will not necessarily be a corresponding
@@ -58,7 +77,8 @@ public final class KeyEventHandler
   @Override
   public void key_down(KeyValue key, boolean isSwipe)
   {
-    android.util.Log.d("com.harryaskham.omni", "KeyEventHandler.key_down: " + key + ", swipe: " + isSwipe);
+    if (Logs.DEBUG && Logs.on(Logs.INPUT))
+      Logs.d(Logs.INPUT, "key_down: " + key + ", swipe: " + isSwipe);
     if (key == null)
       return;
     // Stop auto capitalisation when pressing some keys
@@ -90,16 +110,20 @@ public final class KeyEventHandler
   @Override
   public void key_up(KeyValue key, Pointers.Modifiers mods)
   {
-    android.util.Log.d("com.harryaskham.omni", "KeyEventHandler.key_up: " + key + ", kind: " + (key != null ? key.getKind() : "null"));
+    if (Logs.DEBUG && Logs.on(Logs.INPUT))
+      Logs.d(Logs.INPUT, "key_up: " + key + ", kind: " + (key != null ? key.getKind() : "null"));
     if (key == null)
       return;
     Pointers.Modifiers old_mods = _mods;
     update_meta_state(mods);
+    LatencyTrace.key_up(key.getKind());
+    EventTrace.key(key, mods);
     switch (key.getKind())
     {
-      case Char: send_text(String.valueOf(key.getChar())); break;
+      case Char: send_text(char_string(key.getChar())); break;
       case String: send_text(key.getString()); break;
       case Event: 
+        flush_pending_text();
         if (key.getEvent() == KeyValue.Event.SWITCH_TO_LAYOUT) {
           _recv.handle_event_key_with_value(key);
         } else {
@@ -113,12 +137,32 @@ public final class KeyEventHandler
       case Slider: handle_slider(key.getSlider(), key.getSliderRepeat(), false); break;
       case Macro: evaluate_macro(key.getMacro()); break;
     }
+    LatencyTrace.key_up_done();
     update_meta_state(old_mods);
   }
 
+  /** The strings of one character below [CHAR_STRINGS_SIZE], most of the
+      typed characters, are shared to avoid an allocation per key. */
+  static final int CHAR_STRINGS_SIZE = 256;
+  static final String[] CHAR_STRINGS = new String[CHAR_STRINGS_SIZE];
+
+  static String char_string(char c)
+  {
+    if (c >= CHAR_STRINGS_SIZE)
+      return String.valueOf(c);
+    String s = CHAR_STRINGS[c];
+    if (s == null)
+    {
+      s = String.valueOf(c);
+      CHAR_STRINGS[c] = s;
+    }
+    return s;
+  }
+
   @Override
   public void mods_changed(Pointers.Modifiers mods)
   {
+    EventTrace.mods(mods);
     update_meta_state(mods);
   }
 
@@ -132,12 +176,16 @@ public final class KeyEventHandler
       needed. */
   void update_meta_state(Pointers.Modifiers mods)
   {
+    // Modifiers are interned, this is the common case.
+    if (mods == _mods)
+      return;
+    Pointers.Modifiers.ModifiersDiffIterator it = _mods_diff;
     // Released modifiers
-    Iterator<KeyValue> it = _mods.diff(mods);
+    it.reset(_mods, mods);
     while (it.hasNext())
       sendMetaKeyForModifier(it.next(), false);
     // Activated modifiers
-    it = mods.diff(_mods);
+    it.reset(mods, _mods);
     while (it.hasNext())
       sendMetaKeyForModifier(it.next(), true);
     _mods = mods;
@@ -207,14 +255,15 @@ public final class KeyEventHandler
 
   void send_keyevent(int eventAction, int eventCode, int metaState)
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     
     // Check if we should send system-wide key events (persistence mode + no input connection)
     Config config = Config.globalConfig();
     if (conn == null && config != null && config.keyboard_persistence_enabled) {
       // Send system-wide key event for navigation when no text field is focused
       try {
-        android.util.Log.d("com.harryaskham.omni", "Sending system-wide key event: " + eventCode + " (action: " + eventAction + ")");
+        if (Logs.DEBUG && Logs.on(Logs.INPUT))
+          Logs.d(Logs.INPUT, "Sending system-wide key event: " + eventCode + " (action: " + eventAction + ")");
         
         // Create a proper KeyEvent for system injection
         KeyEvent keyEvent = new KeyEvent(
@@ -232,7 +281,8 @@ public final class KeyEventHandler
         // Inject the key event system-wide using InputMethodService's sendDownUpKeyEvents
         if (eventAction == KeyEvent.ACTION_DOWN) {
           _recv.sendSystemKeyEvent(eventCode);
-          android.util.Log.d("com.harryaskham.omni", "System-wide key event sent: " + eventCode);
+          if (Logs.DEBUG && Logs.on(Logs.INPUT))
+            Logs.d(Logs.INPUT, "System-wide key event sent: " + eventCode);
         }
         
         if (eventAction == KeyEvent.ACTION_UP)
@@ -248,55 +298,113 @@ public final class KeyEventHandler
       return;
     
     // Normal InputConnection-based key event sending
+    long call_start = EventTrace.call_start();
     conn.sendKeyEvent(new KeyEvent(1, 1, eventAction, eventCode, 0,
           metaState, KeyCharacterMap.VIRTUAL_KEYBOARD, 0,
           KeyEvent.FLAG_SOFT_KEYBOARD | KeyEvent.FLAG_KEEP_TOUCH_MODE));
+    EventTrace.key_event(eventAction, eventCode, metaState, call_start);
     if (eventAction == KeyEvent.ACTION_UP)
+    {
+      LatencyTrace.commit();
+      if (!KeyEvent.isModifierKey(eventCode))
+        _sel.edited_unknown(SystemClock.uptimeMillis());
       _autocap.event_sent(eventCode, metaState);
+    }
+  }
+
+  /** Group the following edits into a single batch edit, until the matching
+      call to [end_batch]. Consecutive calls to [send_text] are committed at
+      once. Batches can be nested. */
+  void begin_batch()
+  {
+    if (_batch_depth++ > 0)
+      return;
+    InputConnection conn = _recv.getCurrentInputConnection();
+    if (conn != null && conn.beginBatchEdit())
+      _batch_conn = conn;
+  }
+
+  void end_batch()
+  {
+    if (--_batch_depth > 0)
+      return;
+    flush_pending_text();
+    if (_batch_conn != null)
+    {
+      _batch_conn.endBatchEdit();
+      _batch_conn = null;
+    }
+  }
+
+  /** Commit the text accumulated during a batch. */
+  void flush_pending_text()
+  {
+    if (_pending_text.length() == 0)
+      return;
+    InputConnection conn = _recv.getCurrentInputConnection();
+    if (conn != null)
+    {
+      long call_start = EventTrace.call_start();
+      conn.commitText(_pending_text.toString(), 1);
+      EventTrace.commit_text(_pending_text.length(), call_start);
+      _sel.text_committed(_pending_text.length(), SystemClock.uptimeMillis());
+    }
+    _pending_text.setLength(0);
+  }
+
+  /** Must be used instead of [_recv.getCurrentInputConnection()] before
+      acting on the editor, to make sure the pending text is committed
+      first. */
+  InputConnection input_connection()
+  {
+    flush_pending_text();
+    return _recv.getCurrentInputConnection();
   }
 
   void send_text(CharSequence text)
   {
-    android.util.Log.d("com.harryaskham.omni", "KeyEventHandler.send_text: '" + text + "'");
     InputConnection conn = _recv.getCurrentInputConnection();
-    android.util.Log.d("com.harryaskham.omni", "InputConnection: " + conn);
-    if (conn != null) {
-      android.util.Log.d("com.harryaskham.omni", "InputConnection class: " + conn.getClass().getSimpleName());
-      android.util.Log.d("com.harryaskham.omni", "InputConnection hashCode: " + Integer.toHexString(conn.hashCode()));
-      android.util.Log.d("com.harryaskham.omni", "InputConnection toString: " + conn.toString());
-      
-      // Try to get more info about the connection target
-      try {
-        ExtractedText extractedText = get_cursor_pos(conn);
-        if (extractedText != null) {
-          android.util.Log.d("com.harryaskham.omni", "Target text length: " + (extractedText.text != null ? extractedText.text.length() : "null"));
-          android.util.Log.d("com.harryaskham.omni", "Cursor position: " + extractedText.selectionStart + "-" + extractedText.selectionEnd);
-        }
-      } catch (Exception e) {
-        android.util.Log.d("com.harryaskham.omni", "Error getting extracted text: " + e.getMessage());
+    if (Logs.DEBUG && Logs.on(Logs.INPUT))
+    {
+      Logs.d(Logs.INPUT, "send_text: '" + text + "'");
+      if (conn != null)
+      {
+        Logs.d(Logs.INPUT, "InputConnection: " + conn.getClass().getSimpleName()
+            + "@" + Integer.toHexString(conn.hashCode()) + " " + conn);
+        // From the mirror, querying the editor on every key is too slow.
+        Logs.d(Logs.INPUT, "Cursor position: " + _sel.start() + "-" + _sel.end());
       }
     }
     if (conn == null)
       return;
     
     // Check if we should use key events instead of commitText due to disableDirectWriting
-    if (_disable_direct_writing) {
-      android.util.Log.d("com.harryaskham.omni", "Using key events due to disableDirectWriting");
+    if (_batch_depth > 0 && !_disable_direct_writing) {
+      _pending_text.append(text);
+    } else if (_disable_direct_writing) {
+      if (Logs.DEBUG && Logs.on(Logs.INPUT))
+        Logs.d(Logs.INPUT, "Using key events due to disableDirectWriting");
       send_text_as_key_events(text);
     } else {
+      long call_start = EventTrace.call_start();
       conn.commitText(text, 1);
-      android.util.Log.d("com.harryaskham.omni", "Text committed to InputConnection");
+      EventTrace.commit_text(text.length(), call_start);
+      _sel.text_committed(text.length(), SystemClock.uptimeMillis());
+      if (Logs.DEBUG && Logs.on(Logs.INPUT))
+        Logs.d(Logs.INPUT, "Text committed to InputConnection");
     }
+    LatencyTrace.commit();
     _autocap.typed(text);
   }
 
   /** See {!InputConnection.performContextMenuAction}. */
   void send_context_menu_action(int id)
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn == null)
       return;
     conn.performContextMenuAction(id);
+    _sel.edited_unknown(SystemClock.uptimeMillis());
   }
 
   @SuppressLint("InlinedApi")
@@ -335,6 +443,30 @@ public final class KeyEventHandler
     return conn.getExtractedText(_move_cursor_req, 0);
   }
 
+  /** Make sure [_sel] is up to date, querying the editor only if the mirror
+      is stale. Returns [false] if the editor doesn't support this operation.
+      Unlike [ExtractedText], [_sel.start()] might be greater than
+      [_sel.end()]. */
+  boolean update_selection(InputConnection conn)
+  {
+    if (_sel.is_valid(SystemClock.uptimeMillis()))
+      return true;
+    ExtractedText et = get_cursor_pos(conn);
+    if (et == null)
+      return false;
+    _sel.set(et.selectionStart, et.selectionEnd, SystemClock.uptimeMillis());
+    return true;
+  }
+
+  /** Set the selection and update [_sel]. */
+  boolean set_selection(InputConnection conn, int sel_start, int sel_end)
+  {
+    if (!conn.setSelection(sel_start, sel_end))
+      return false;
+    _sel.edited(sel_start, sel_end, SystemClock.uptimeMillis());
+    return true;
+  }
+
   /** [r] might be negative, in which case the direction is reversed. */
   void handle_slider(KeyValue.Slider s, int r, boolean key_down)
   {
@@ -355,14 +487,13 @@ public final class KeyEventHandler
       moving the cursor or a modifier other than shift is pressed. */
   void move_cursor(int d)
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn == null)
       return;
-    ExtractedText et = get_cursor_pos(conn);
-    if (et != null && can_set_selection(conn))
+    if (can_set_selection(conn) && update_selection(conn))
     {
-      int sel_start = et.selectionStart;
-      int sel_end = et.selectionEnd;
+      int sel_start = _sel.start();
+      int sel_end = _sel.end();
       // Continue expanding the selection even if shift is not pressed
       if (sel_end != sel_start)
       {
@@ -377,7 +508,11 @@ public final class KeyEventHandler
         if ((_meta_state & KeyEvent.META_SHIFT_ON) == 0)
           sel_start = sel_end;
       }
-      if (conn.setSelection(sel_start, sel_end))
+      // The end of the text is not known, moving past it is detected by
+      // [_sel] as the editor doesn't acknowledge it.
+      sel_start = Math.max(0, sel_start);
+      sel_end = Math.max(0, sel_end);
+      if (set_selection(conn, sel_start, sel_end))
         return; // Fallback to sending key events if [setSelection] failed
     }
     move_cursor_fallback(d);
@@ -387,21 +522,20 @@ public final class KeyEventHandler
       position is moved, otherwise the right position is moved. */
   void move_cursor_sel(int d, boolean sel_left, boolean key_down)
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn == null)
       return;
-    ExtractedText et = get_cursor_pos(conn);
-    if (et != null && can_set_selection(conn))
+    if (can_set_selection(conn) && update_selection(conn))
     {
-      int sel_start = et.selectionStart;
-      int sel_end = et.selectionEnd;
+      int sel_start = _sel.start();
+      int sel_end = _sel.end();
       // Reorder the selection when the slider has just been pressed. The
       // selection might have been reversed if one end crossed the other end
       // with a previous slider.
       if (key_down && sel_start > sel_end)
       {
-        sel_start = et.selectionEnd;
-        sel_end = et.selectionStart;
+        sel_start = _sel.end();
+        sel_end = _sel.start();
       }
       do
       {
@@ -412,7 +546,9 @@ public final class KeyEventHandler
         // Move the cursor twice if moving it once would make the selection
         // empty and stop selection mode.
       } while (sel_start == sel_end);
-      if (conn.setSelection(sel_start, sel_end))
+      sel_start = Math.max(0, sel_start);
+      sel_end = Math.max(0, sel_end);
+      if (set_selection(conn, sel_start, sel_end))
         return; // Fallback to sending key events if [setSelection] failed
     }
     move_cursor_fallback(d);
@@ -452,53 +588,157 @@ public final class KeyEventHandler
       return;
     // Ignore modifiers that are activated at the time the macro is evaluated
     mods_changed(Pointers.Modifiers.EMPTY);
-    evaluate_macro_loop(keys, 0, Pointers.Modifiers.EMPTY, _autocap.pause());
+    evaluate_macro_loop(new MacroRun(keys, _autocap.pause()));
   }
 
-  /** Evaluate the macro asynchronously to make sure event are processed in the
-      right order. */
-  void evaluate_macro_loop(final KeyValue[] keys, int i, Pointers.Modifiers mods, final boolean autocap_paused)
+  /** Evaluate the macro until a key that must be handled by the editor before
+      the next keys are sent, to avoid race conditions causing keys to be
+      handled in the wrong order. Notably, KeyEvent keys handling is scheduled
+      differently than the other edit functions. Evaluation continues when
+      the editor acknowledges the key with [selection_updated] or after a
+      timeout. The keys evaluated between two waits are sent in a single
+      batch edit. */
+  void evaluate_macro_loop(MacroRun m)
   {
     boolean should_delay = false;
-    KeyValue kv = KeyModifier.modify(keys[i], mods);
-    if (kv != null)
+    begin_batch();
+    try
     {
-      if (kv.hasFlagsAny(KeyValue.FLAG_LATCH))
-      {
-        // Non-special latchable keys clear latched modifiers
-        if (!kv.hasFlagsAny(KeyValue.FLAG_SPECIAL))
-          mods = Pointers.Modifiers.EMPTY;
-        mods = mods.with_extra_mod(kv);
-      }
-      else
+      for (; m.i < m.keys.length && !should_delay; m.i++)
       {
-        key_down(kv, false);
-        key_up(kv, mods);
-        mods = Pointers.Modifiers.EMPTY;
+        KeyValue kv = KeyModifier.modify(m.keys[m.i], m.mods);
+        if (kv == null)
+          continue;
+        if (kv.hasFlagsAny(KeyValue.FLAG_LATCH))
+        {
+          // Non-special latchable keys clear latched modifiers
+          if (!kv.hasFlagsAny(KeyValue.FLAG_SPECIAL))
+            m.mods = Pointers.Modifiers.EMPTY;
+          m.mods = m.mods.with_extra_mod(kv);
+        }
+        else
+        {
+          key_down(kv, false);
+          key_up(kv, m.mods);
+          m.mods = Pointers.Modifiers.EMPTY;
+        }
+        should_delay = wait_after_macro_key(kv);
       }
-      should_delay = wait_after_macro_key(kv);
     }
-    i++;
-    if (i >= keys.length) // Stop looping
+    finally
     {
-      _autocap.unpause(autocap_paused);
+      end_batch();
+    }
+    if (m.i >= m.keys.length) // Stop looping
+    {
+      _autocap.unpause(m.autocap_paused);
+      Logs.d(Logs.INPUT, m::timings);
     }
     else if (should_delay)
+      m.wait_for_editor();
+  }
+
+  /** Wait at most [MACRO_TIMEOUT_FACTOR] times the average acknowledgement
+      time, bounded by [MACRO_MIN_TIMEOUT_MS] and [MACRO_MAX_TIMEOUT_MS]. The
+      minimum is the delay that was used before acknowledgements were
+      implemented. The estimate starts there and returns to it on every
+      timeout, as the editor doesn't answer keys that don't move the cursor
+      or the selection. */
+  static final long MACRO_MIN_TIMEOUT_MS = 1000/30;
+  static final long MACRO_MAX_TIMEOUT_MS = 500;
+  static final int MACRO_TIMEOUT_FACTOR = 3;
+  static final long MACRO_INITIAL_ACK_MS =
+    MACRO_MIN_TIMEOUT_MS / MACRO_TIMEOUT_FACTOR;
+  /** Smoothed time taken by the editor to acknowledge a macro key. */
+  long _macro_ack_ms = MACRO_INITIAL_ACK_MS;
+  /** Macros waiting for the editor to acknowledge a key. */
+  final ArrayList<MacroRun> _macros_waiting = new ArrayList<MacroRun>();
+
+  long macro_timeout()
+  {
+    return Math.max(MACRO_MIN_TIMEOUT_MS,
+        Math.min(MACRO_MAX_TIMEOUT_MS, _macro_ack_ms * MACRO_TIMEOUT_FACTOR));
+  }
+
+  /** Called on selection updates. Resume the macros for which the editor
+      has handled every edit sent before the wait, an update for an older
+      edit might arrive first. */
+  void macros_acknowledged()
+  {
+    if (_macros_waiting.isEmpty())
+      return;
+    MacroRun[] ms = _macros_waiting.toArray(new MacroRun[0]);
+    for (MacroRun m : ms)
     {
-      // Add a delay before sending the next key to avoid race conditions
-      // causing keys to be handled in the wrong order. Notably, KeyEvent keys
-      // handling is scheduled differently than the other edit functions.
-      final int i_ = i;
-      final Pointers.Modifiers mods_ = mods;
-      _recv.getHandler().postDelayed(new Runnable() {
-        public void run()
-        {
-          evaluate_macro_loop(keys, i_, mods_, autocap_paused);
-        }
-      }, 1000/30);
+      if (!_sel.acknowledged(m.wait_edits))
+        continue;
+      _macros_waiting.remove(m);
+      _recv.getHandler().removeCallbacks(m);
+      m.resume(true);
+    }
+  }
+
+  /** The state of a macro being evaluated and timings for each wait. Runs as
+      the timeout callback. */
+  final class MacroRun implements Runnable
+  {
+    final KeyValue[] keys;
+    final boolean autocap_paused;
+    /** Next key to evaluate. */
+    int i = 0;
+    Pointers.Modifiers mods = Pointers.Modifiers.EMPTY;
+    final long start_ms = SystemClock.uptimeMillis();
+    long wait_start_ms;
+    /** [_sel.edit_count()] when the wait started. */
+    int wait_edits;
+    /** Duration of each wait, negative when it timed out. */
+    final long[] waits;
+    int n_waits = 0;
+
+    MacroRun(KeyValue[] k, boolean autocap_paused_)
+    {
+      keys = k;
+      autocap_paused = autocap_paused_;
+      waits = new long[k.length];
+    }
+
+    void wait_for_editor()
+    {
+      wait_start_ms = SystemClock.uptimeMillis();
+      wait_edits = _sel.edit_count();
+      _macros_waiting.add(this);
+      _recv.getHandler().postDelayed(this, macro_timeout());
+    }
+
+    @Override
+    public void run()
+    {
+      if (_macros_waiting.remove(this))
+        resume(false);
+    }
+
+    void resume(boolean acknowledged)
+    {
+      long waited = SystemClock.uptimeMillis() - wait_start_ms;
+      // Timeouts bring the estimate back toward its initial value.
+      _macro_ack_ms =
+        (_macro_ack_ms * 3 + (acknowledged ? waited : MACRO_INITIAL_ACK_MS)) / 4;
+      waits[n_waits++] = acknowledged ? waited : -waited;
+      evaluate_macro_loop(this);
+    }
+
+    String timings()
+    {
+      StringBuilder b = new StringBuilder("Macro: ");
+      b.append(keys.length).append(" keys in ")
+        .append(SystemClock.uptimeMillis() - start_ms).append("ms, waits:");
+      for (int w = 0; w < n_waits; w++)
+      {
+        long t = waits[w];
+        b.append(' ').append(Math.abs(t)).append(t < 0 ? "ms (timeout)" : "ms");
+      }
+      return b.toString();
     }
-    else
-      evaluate_macro_loop(keys, i, mods, autocap_paused);
   }
 
   boolean wait_after_macro_key(KeyValue kv)
@@ -525,20 +765,19 @@ public final class KeyEventHandler
 
   void cancel_selection()
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn == null)
       return;
-    ExtractedText et = get_cursor_pos(conn);
-    if (et == null) return;
-    final int curs = et.selectionStart;
+    if (!update_selection(conn)) return;
+    final int curs = _sel.start();
     // Notify the receiver as Android's [onUpdateSelection] is not triggered.
-    if (conn.setSelection(curs, curs));
+    if (set_selection(conn, curs, curs));
       _recv.selection_state_changed(false);
   }
 
   boolean is_selection_not_empty()
   {
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn == null) return false;
     return (conn.getSelectedText(0) != null);
   }
@@ -554,12 +793,33 @@ public final class KeyEventHandler
     return info.packageName.startsWith("org.godotengine.editor");
   }
 
+  /** Password fields and editors that ask for the typed text not to be
+      learned from. What is typed there is not recorded in [EventTrace]. */
+  static boolean is_private_editor(EditorInfo info)
+  {
+    if ((info.imeOptions & EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING) != 0)
+      return true;
+    int variation = info.inputType & InputType.TYPE_MASK_VARIATION;
+    switch (info.inputType & InputType.TYPE_MASK_CLASS)
+    {
+      case InputType.TYPE_CLASS_TEXT:
+        return variation == InputType.TYPE_TEXT_VARIATION_PASSWORD
+          || variation == InputType.TYPE_TEXT_VARIATION_VISIBLE_PASSWORD
+          || variation == InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD;
+      case InputType.TYPE_CLASS_NUMBER:
+        return variation == InputType.TYPE_NUMBER_VARIATION_PASSWORD;
+      default:
+        return false;
+    }
+  }
+
   /** Check if the target app has disabled direct writing through privateImeOptions. */
   boolean should_disable_direct_writing(EditorInfo info)
   {
     if (info.privateImeOptions != null) {
       boolean disabled = info.privateImeOptions.contains("disableDirectWriting=true");
-      android.util.Log.d("com.harryaskham.omni", "privateImeOptions: " + info.privateImeOptions + ", disableDirectWriting: " + disabled);
+      if (Logs.DEBUG && Logs.on(Logs.INPUT))
+        Logs.d(Logs.INPUT, "privateImeOptions: " + info.privateImeOptions + ", disableDirectWriting: " + disabled);
       return disabled;
     }
     return false;
@@ -583,7 +843,8 @@ public final class KeyEventHandler
       } else {
         // For characters that can't be mapped, try to use Unicode key events
         // This is a fallback that may not work on all devices/apps
-        android.util.Log.d("com.harryaskham.omni", "Cannot map character '" + c + "' to keycode, trying Unicode");
+        if (Logs.DEBUG && Logs.on(Logs.INPUT))
+          Logs.d(Logs.INPUT, "Cannot map character '" + c + "' to keycode, trying Unicode");
         send_unicode_key_event(c);
       }
     }
@@ -668,10 +929,11 @@ public final class KeyEventHandler
     downEvent = KeyEvent.changeTimeRepeat(downEvent, downEvent.getEventTime(), 0);
     upEvent = KeyEvent.changeTimeRepeat(upEvent, upEvent.getEventTime(), 0);
     
-    InputConnection conn = _recv.getCurrentInputConnection();
+    InputConnection conn = input_connection();
     if (conn != null) {
       conn.sendKeyEvent(downEvent);
       conn.sendKeyEvent(upEvent);
+      _sel.edited_unknown(SystemClock.uptimeMillis());
     }
   }
 
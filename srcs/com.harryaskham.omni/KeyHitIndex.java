@@ -0,0 +1,93 @@
+package com.harryaskham.omni;
+
+import java.util.List;
+
+/** Find the key at a position on the keyboard using binary searches. The
+    edges of rows and keys are computed once for a layout and its measures
+    instead of being accumulated on every touch. */
+public final class KeyHitIndex
+{
+  /** The layout this index has been computed for. */
+  public final KeyboardData keyboard;
+  /** Top edge of the first row. */
+  final float _top;
+  /** Bottom edge of every rows. The space above a row, specified by its
+      [shift], belongs to that row. */
+  final float[] _row_bottoms;
+  /** Left and right edges of every keys, for each row. The space on the left
+      of a key, specified by its [shift], do not belong to any key. */
+  final float[][] _key_lefts;
+  final float[][] _key_rights;
+
+  public KeyHitIndex(KeyboardData kw, float margin_top, float row_height,
+      float margin_left, float key_width)
+  {
+    keyboard = kw;
+    _top = margin_top;
+    int n_rows = kw.rows.size();
+    _row_bottoms = new float[n_rows];
+    _key_lefts = new float[n_rows][];
+    _key_rights = new float[n_rows][];
+    float y = margin_top;
+    for (int r = 0; r < n_rows; r++)
+    {
+      KeyboardData.Row row = kw.rows.get(r);
+      y += (row.shift + row.height) * row_height;
+      _row_bottoms[r] = y;
+      int n_keys = row.keys.size();
+      float[] lefts = new float[n_keys];
+      float[] rights = new float[n_keys];
+      float x = margin_left;
+      for (int k = 0; k < n_keys; k++)
+      {
+        KeyboardData.Key key = row.keys.get(k);
+        lefts[k] = x + key.shift * key_width;
+        x = lefts[k] + key.width * key_width;
+        rights[k] = x;
+      }
+      _key_lefts[r] = lefts;
+      _key_rights[r] = rights;
+    }
+  }
+
+  /** Index of the row at the vertical position [ty] or [-1]. */
+  public int getRowIndexAtPosition(float ty)
+  {
+    if (ty < _top)
+      return -1;
+    int r = upper_bound(_row_bottoms, ty);
+    return (r < _row_bottoms.length) ? r : -1;
+  }
+
+  /** Returns [null] if there's no key at this position. */
+  public KeyboardData.Key getKeyAtPosition(float tx, float ty)
+  {
+    int r = getRowIndexAtPosition(ty);
+    if (r < 0)
+      return null;
+    float[] rights = _key_rights[r];
+    int k = upper_bound(rights, tx);
+    // In the gap on the left of the key.
+    if (k >= rights.length || tx < _key_lefts[r][k])
+      return null;
+    List<KeyboardData.Key> keys = keyboard.rows.get(r).keys;
+    return keys.get(k);
+  }
+
+  /** Index of the first element of the sorted array [a] that is strictly
+      greater than [v]. Returns [a.length] if there's none. */
+  static int upper_bound(float[] a, float v)
+  {
+    int lo = 0;
+    int hi = a.length;
+    while (lo < hi)
+    {
+      int mid = (lo + hi) >>> 1;
+      if (a[mid] <= v)
+        lo = mid + 1;
+      else
+        hi = mid;
+    }
+    return lo;
+  }
+}
@@ -1,6 +1,10 @@
 package com.harryaskham.omni;
 
 import android.view.KeyEvent;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
 import java.util.HashMap;
 
 public final class KeyValue implements Comparable<KeyValue>
@@ -161,9 +165,19 @@ public final class KeyValue implements Comparable<KeyValue>
       The meaning of the value depends on the kind. */
   private final int _code;
 
+  /** Computed once, keys are often used in hash tables. */
+  private final int _hash;
+
+  /** [values()] allocates a new array on every call. */
+  private static final Kind[] KINDS = Kind.values();
+  private static final Event[] EVENTS = Event.values();
+  private static final Modifier[] MODIFIERS = Modifier.values();
+  private static final Editing[] EDITINGS = Editing.values();
+  private static final Placeholder[] PLACEHOLDERS = Placeholder.values();
+
   public Kind getKind()
   {
-    return Kind.values()[(_code & KIND_BITS) >>> KIND_OFFSET];
+    return KINDS[(_code & KIND_BITS) >>> KIND_OFFSET];
   }
 
   public int getFlags()
@@ -198,7 +212,7 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Defined only when [getKind() == Kind.Event]. */
   public Event getEvent()
   {
-    return Event.values()[(_code & VALUE_BITS)];
+    return EVENTS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Event] and [getEvent() == Event.SWITCH_TO_LAYOUT]. */
@@ -213,19 +227,19 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Defined only when [getKind() == Kind.Modifier]. */
   public Modifier getModifier()
   {
-    return Modifier.values()[(_code & VALUE_BITS)];
+    return MODIFIERS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Editing]. */
   public Editing getEditing()
   {
-    return Editing.values()[(_code & VALUE_BITS)];
+    return EDITINGS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Placeholder]. */
   public Placeholder getPlaceholder()
   {
-    return Placeholder.values()[(_code & VALUE_BITS)];
+    return PLACEHOLDERS[(_code & VALUE_BITS)];
   }
 
   /** Defined only when [getKind() == Kind.Compose_pending]. */
@@ -259,21 +273,27 @@ public final class KeyValue implements Comparable<KeyValue>
     return ((Macro)_payload).keys;
   }
 
+  /** The value bits, their meaning depends on the kind. */
+  int getRawValue()
+  {
+    return (_code & VALUE_BITS);
+  }
+
   /* Update the char and the symbol. */
   public KeyValue withChar(char c)
   {
-    return new KeyValue(String.valueOf(c), Kind.Char, c,
+    return make(String.valueOf(c), Kind.Char, c,
         getFlags() & ~(FLAG_KEY_FONT | FLAG_SMALLER_FONT));
   }
 
   public KeyValue withKeyevent(int code)
   {
-    return new KeyValue(getString(), Kind.Keyevent, code, getFlags());
+    return make(getString(), Kind.Keyevent, code, getFlags());
   }
 
   public KeyValue withFlags(int f)
   {
-    return new KeyValue(_payload, _code, _code, f);
+    return intern(_payload, (_code & ~FLAGS_BITS) | (f & FLAGS_BITS));
   }
 
   public KeyValue withSymbol(String symbol)
@@ -292,7 +312,7 @@ public final class KeyValue implements Comparable<KeyValue>
       case Placeholder:
         if (symbol.length() > 1)
           flags |= FLAG_SMALLER_FONT;
-        return new KeyValue(symbol, _code, _code, flags);
+        return intern(symbol, (_code & ~FLAGS_BITS) | (flags & FLAGS_BITS));
       case Macro:
         return makeMacro(symbol, getMacro(), flags);
       default:
@@ -324,15 +344,18 @@ public final class KeyValue implements Comparable<KeyValue>
   /** Type-safe alternative to [equals]. */
   public boolean sameKey(KeyValue snd)
   {
+    if (snd == this)
+      return true;
     if (snd == null)
       return false;
-    return _code == snd._code && _payload.compareTo(snd._payload) == 0;
+    return _code == snd._code && _hash == snd._hash
+      && _payload.compareTo(snd._payload) == 0;
   }
 
   @Override
   public int hashCode()
   {
-    return _payload.hashCode() + _code;
+    return _hash;
   }
 
   public String toString()
@@ -341,22 +364,95 @@ public final class KeyValue implements Comparable<KeyValue>
     return "[KeyValue " + getKind().toString() + "+" + getFlags() + "+" + value + " \"" + getString() + "\"]";
   }
 
-  private KeyValue(Comparable p, int kind, int value, int flags)
+  private KeyValue(Comparable p, int code)
   {
-    if (p == null)
-      throw new NullPointerException("KeyValue payload cannot be null");
     _payload = p;
-    _code = (kind & KIND_BITS) | (flags & FLAGS_BITS) | (value & VALUE_BITS);
+    _code = code;
+    _hash = hash(p, code);
   }
 
+  /** Not interned, prefer the [make*] functions. */
   public KeyValue(Comparable p, Kind k, int v, int f)
   {
-    this(p, (k.ordinal() << KIND_OFFSET), v, f);
+    this(check_payload(p), encode(k, v, f));
+  }
+
+  private static int encode(Kind k, int value, int flags)
+  {
+    return ((k.ordinal() << KIND_OFFSET) & KIND_BITS) | (flags & FLAGS_BITS)
+      | (value & VALUE_BITS);
+  }
+
+  private static int hash(Comparable p, int code)
+  {
+    return p.hashCode() * 31 + code;
+  }
+
+  private static Comparable check_payload(Comparable p)
+  {
+    if (p == null)
+      throw new NullPointerException("KeyValue payload cannot be null");
+    return p;
+  }
+
+  /** Keys are interned: there is a single instance of each distinct key,
+      which is shared by the layouts and by the keys that [KeyModifier]
+      computes while typing. [_pool] is an open-addressing hash table that
+      stops growing at [POOL_MAX_SIZE] entries, keys are still created but
+      not interned past that. */
+  private static final int POOL_MAX_SIZE = 1 << 14;
+  private static KeyValue[] _pool = new KeyValue[1024];
+  private static int _pool_count = 0;
+
+  private static KeyValue make(Comparable p, Kind k, int value, int flags)
+  {
+    return intern(check_payload(p), encode(k, value, flags));
+  }
+
+  /** Payloads are compared with [equals], which is stricter than
+      [compareTo] for some payloads. */
+  private static synchronized KeyValue intern(Comparable p, int code)
+  {
+    int h = hash(p, code);
+    KeyValue[] pool = _pool;
+    int mask = pool.length - 1;
+    int i = (h ^ (h >>> 16)) & mask;
+    KeyValue kv;
+    while ((kv = pool[i]) != null)
+    {
+      if (kv._hash == h && kv._code == code && kv._payload.equals(p))
+        return kv;
+      i = (i + 1) & mask;
+    }
+    kv = new KeyValue(p, code);
+    if (_pool_count >= POOL_MAX_SIZE)
+      return kv;
+    pool[i] = kv;
+    _pool_count++;
+    if (_pool_count * 2 > pool.length)
+      grow_pool();
+    return kv;
+  }
+
+  private static void grow_pool()
+  {
+    KeyValue[] pool = new KeyValue[_pool.length * 2];
+    int mask = pool.length - 1;
+    for (KeyValue kv : _pool)
+    {
+      if (kv == null)
+        continue;
+      int i = (kv._hash ^ (kv._hash >>> 16)) & mask;
+      while (pool[i] != null)
+        i = (i + 1) & mask;
+      pool[i] = kv;
+    }
+    _pool = pool;
   }
 
   private static KeyValue charKey(String symbol, char c, int flags)
   {
-    return new KeyValue(symbol, Kind.Char, c, flags);
+    return make(symbol, Kind.Char, c, flags);
   }
 
   private static KeyValue charKey(int symbol, char c, int flags)
@@ -368,7 +464,7 @@ public final class KeyValue implements Comparable<KeyValue>
   {
     if (symbol.length() > 1)
       flags |= FLAG_SMALLER_FONT;
-    return new KeyValue(symbol, Kind.Modifier, m.ordinal(),
+    return make(symbol, Kind.Modifier, m.ordinal(),
         FLAG_LATCH | FLAG_SPECIAL | FLAG_SECONDARY | flags);
   }
 
@@ -379,13 +475,13 @@ public final class KeyValue implements Comparable<KeyValue>
 
   private static KeyValue diacritic(int symbol, Modifier m)
   {
-    return new KeyValue(String.valueOf((char)symbol), Kind.Modifier, m.ordinal(),
+    return make(String.valueOf((char)symbol), Kind.Modifier, m.ordinal(),
         FLAG_LATCH | FLAG_SPECIAL | FLAG_KEY_FONT);
   }
 
   private static KeyValue eventKey(String symbol, Event e, int flags)
   {
-    return new KeyValue(symbol, Kind.Event, e.ordinal(), flags | FLAG_SPECIAL | FLAG_SECONDARY);
+    return make(symbol, Kind.Event, e.ordinal(), flags | FLAG_SPECIAL | FLAG_SECONDARY);
   }
 
   private static KeyValue eventKey(int symbol, Event e, int flags)
@@ -395,7 +491,7 @@ public final class KeyValue implements Comparable<KeyValue>
 
   public static KeyValue keyeventKey(String symbol, int code, int flags)
   {
-    return new KeyValue(symbol, Kind.Keyevent, code, flags | FLAG_SECONDARY);
+    return make(symbol, Kind.Keyevent, code, flags | FLAG_SECONDARY);
   }
 
   public static KeyValue keyeventKey(int symbol, int code, int flags)
@@ -405,7 +501,7 @@ public final class KeyValue implements Comparable<KeyValue>
 
   private static KeyValue editingKey(String symbol, Editing action, int flags)
   {
-    return new KeyValue(symbol, Kind.Editing, action.ordinal(),
+    return make(symbol, Kind.Editing, action.ordinal(),
         flags | FLAG_SPECIAL | FLAG_SECONDARY);
   }
 
@@ -424,19 +520,19 @@ public final class KeyValue implements Comparable<KeyValue>
   public static KeyValue sliderKey(Slider s, int repeatition)
   {
     // Casting to a short then back to a int to preserve the sign bit.
-    return new KeyValue(s, Kind.Slider, (short)repeatition & 0xFFFF,
+    return make(s, Kind.Slider, (short)repeatition & 0xFFFF,
         FLAG_SPECIAL | FLAG_SECONDARY | FLAG_KEY_FONT);
   }
 
   /** A key that do nothing but has a unique ID. */
   private static KeyValue placeholderKey(Placeholder id)
   {
-    return new KeyValue("", Kind.Placeholder, id.ordinal(), 0);
+    return make("", Kind.Placeholder, id.ordinal(), 0);
   }
 
   private static KeyValue placeholderKey(int symbol, Placeholder id, int flags)
   {
-    return new KeyValue(String.valueOf((char)symbol), Kind.Placeholder,
+    return make(String.valueOf((char)symbol), Kind.Placeholder,
         id.ordinal(), flags | FLAG_KEY_FONT);
   }
 
@@ -454,7 +550,7 @@ public final class KeyValue implements Comparable<KeyValue>
   {
     if (symbol == null)
       symbol = String.valueOf(c);
-    return new KeyValue(symbol, Kind.Char, c, flags);
+    return make(symbol, Kind.Char, c, flags);
   }
 
   public static KeyValue makeCharKey(int symbol, char c, int flags)
@@ -464,7 +560,7 @@ public final class KeyValue implements Comparable<KeyValue>
 
   public static KeyValue makeComposePending(String symbol, int state, int flags)
   {
-    return new KeyValue(symbol, Kind.Compose_pending, state,
+    return make(symbol, Kind.Compose_pending, state,
         flags | FLAG_LATCH);
   }
 
@@ -476,14 +572,14 @@ public final class KeyValue implements Comparable<KeyValue>
 
   public static KeyValue makeHangulInitial(String symbol, int initial_idx)
   {
-    return new KeyValue(symbol, Kind.Hangul_initial, initial_idx * 588 + 44032,
+    return make(symbol, Kind.Hangul_initial, initial_idx * 588 + 44032,
         FLAG_LATCH);
   }
 
   public static KeyValue makeHangulMedial(int precomposed, int medial_idx)
   {
     precomposed += medial_idx * 28;
-    return new KeyValue(String.valueOf((char)precomposed), Kind.Hangul_medial,
+    return make(String.valueOf((char)precomposed), Kind.Hangul_medial,
         precomposed, FLAG_LATCH);
   }
 
@@ -503,31 +599,65 @@ public final class KeyValue implements Comparable<KeyValue>
   public static KeyValue makeStringKey(String str, int flags)
   {
     if (str.length() == 1)
-      return new KeyValue(str, Kind.Char, str.charAt(0), flags);
+      return make(str, Kind.Char, str.charAt(0), flags);
     else
-      return new KeyValue(str, Kind.String, 0, flags | FLAG_SMALLER_FONT);
+      return make(str, Kind.String, 0, flags | FLAG_SMALLER_FONT);
   }
 
   public static KeyValue makeMacro(String symbol, KeyValue[] keys, int flags)
   {
     if (symbol.length() > 1)
       flags |= FLAG_SMALLER_FONT;
-    return new KeyValue(new Macro(keys, symbol), Kind.Macro, 0, flags);
+    return make(new Macro(keys, symbol), Kind.Macro, 0, flags);
   }
 
   /** Make a modifier key for passing to [KeyModifier]. */
   public static KeyValue makeInternalModifier(Modifier mod)
   {
-    return new KeyValue("", Kind.Modifier, mod.ordinal(), 0);
+    return make("", Kind.Modifier, mod.ordinal(), 0);
   }
 
+  /** Results of [getKeyByName], which is called for every key of every
+      layout that is loaded. Keys are immutable and can be shared. Names that
+      are parsed with [KeyValueParser], including those that fail to parse,
+      are cached too. Stops growing at [KEYS_BY_NAME_MAX_SIZE] entries. */
+  private static final HashMap<String, KeyValue> _keys_by_name =
+    new HashMap<String, KeyValue>();
+  private static final int KEYS_BY_NAME_MAX_SIZE = 4096;
+
   /** Return a key by its name. If the given name doesn't correspond to any
       special key, it is parsed with [KeyValueParser]. */
   public static KeyValue getKeyByName(String name)
+  {
+    // Most keys are a single letter or digit, which can't be a special key
+    // or a key definition.
+    if (name != null && name.length() == 1)
+    {
+      char c = name.charAt(0);
+      if (c < 128 && Character.isLetterOrDigit(c))
+        return makeStringKey(name);
+    }
+    KeyValue k;
+    synchronized (_keys_by_name)
+    {
+      k = _keys_by_name.get(name);
+    }
+    if (k != null)
+      return k;
+    k = parseKeyByName(name);
+    synchronized (_keys_by_name)
+    {
+      if (_keys_by_name.size() < KEYS_BY_NAME_MAX_SIZE)
+        _keys_by_name.put(name, k);
+    }
+    return k;
+  }
+
+  private static KeyValue parseKeyByName(String name)
   {
     // Debug: log all calls to getKeyByName to see what's being passed
-    if (name != null && (name.contains(":") || name.contains("⟷") || name.contains("⟺") || name.contains("⥺") || name.startsWith("switch_to_layout"))) {
-      android.util.Log.d("com.harryaskham.omni", "getKeyByName called with: '" + name + "' (length: " + name.length() + ")");
+    if (Logs.DEBUG && Logs.on(Logs.KEYS) && name != null && (name.contains(":") || name.contains("⟷") || name.contains("⟺") || name.contains("⥺") || name.startsWith("switch_to_layout"))) {
+      Logs.d(Logs.KEYS, "getKeyByName called with: '" + name + "' (length: " + name.length() + ")");
     }
     
     // Handle symbol:keycode format (e.g., "⥺:switch_to_layout_Code_QWERTY")
@@ -539,11 +669,12 @@ public final class KeyValue implements Comparable<KeyValue>
         
         // For switch_to_layout keys, we need special handling
         if (keycode.startsWith("switch_to_layout_")) {
-          android.util.Log.d("com.harryaskham.omni", "Parsing symbol:keycode - symbol: '" + symbol + "', keycode: '" + keycode + "'");
+          if (Logs.DEBUG && Logs.on(Logs.KEYS))
+            Logs.d(Logs.KEYS, "Parsing symbol:keycode - symbol: '" + symbol + "', keycode: '" + keycode + "'");
           // Create KeyValue with composite data holding both layout name and display symbol
           String layoutName = keycode.substring("switch_to_layout_".length());
           SwitchToLayoutData data = new SwitchToLayoutData(layoutName, symbol);
-          return new KeyValue(data, Kind.Event, Event.SWITCH_TO_LAYOUT.ordinal(), 
+          return make(data, Kind.Event, Event.SWITCH_TO_LAYOUT.ordinal(), 
                              FLAG_SPECIAL | FLAG_SECONDARY | FLAG_SMALLER_FONT);
         }
         
@@ -556,8 +687,8 @@ public final class KeyValue implements Comparable<KeyValue>
     }
     
     // Add debug logging for switch_to_layout keys to trace the issue
-    if (name != null && name.startsWith("switch_to_layout_")) {
-      android.util.Log.d("com.harryaskham.omni", "getKeyByName called with: '" + name + "'");
+    if (Logs.DEBUG && Logs.on(Logs.KEYS) && name != null && name.startsWith("switch_to_layout_")) {
+      Logs.d(Logs.KEYS, "getKeyByName called with: '" + name + "'");
     }
     
     KeyValue k = getSpecialKeyByName(name);
@@ -578,10 +709,11 @@ public final class KeyValue implements Comparable<KeyValue>
     // Handle dynamic switch_to_layout_<layoutName> actions
     if (name.startsWith("switch_to_layout_")) {
       String layoutName = name.substring("switch_to_layout_".length());
-      android.util.Log.d("com.harryaskham.omni", "Creating SWITCH_TO_LAYOUT KeyValue for: '" + name + "' -> layoutName: '" + layoutName + "'");
+      if (Logs.DEBUG && Logs.on(Logs.KEYS))
+        Logs.d(Logs.KEYS, "Creating SWITCH_TO_LAYOUT KeyValue for: '" + name + "' -> layoutName: '" + layoutName + "'");
       // Store the original extracted layout name as payload to survive visual customization
       // The payload will be returned by getLayoutName() and used for layout matching
-      return new KeyValue(layoutName, Kind.Event, Event.SWITCH_TO_LAYOUT.ordinal(), 
+      return make(layoutName, Kind.Event, Event.SWITCH_TO_LAYOUT.ordinal(), 
                          FLAG_SPECIAL | FLAG_SECONDARY | FLAG_SMALLER_FONT);
     }
     
@@ -895,6 +1027,73 @@ public final class KeyValue implements Comparable<KeyValue>
     }
   }
 
+  /** Binary encoding used by [LayoutCache]. Macros are written inline. */
+  void write(DataOutputStream out) throws IOException
+  {
+    out.writeInt(_code);
+    if (_payload instanceof String)
+    {
+      out.writeByte(0);
+      out.writeUTF((String)_payload);
+    }
+    else if (_payload instanceof Slider)
+    {
+      out.writeByte(1);
+      out.writeByte(((Slider)_payload).ordinal());
+    }
+    else if (_payload instanceof Macro)
+    {
+      Macro m = (Macro)_payload;
+      out.writeByte(2);
+      out.writeUTF(m._symbol);
+      out.writeShort(m.keys.length);
+      for (KeyValue k : m.keys)
+        k.write(out);
+    }
+    else if (_payload instanceof SwitchToLayoutData)
+    {
+      SwitchToLayoutData d = (SwitchToLayoutData)_payload;
+      out.writeByte(3);
+      out.writeUTF(d.layoutName);
+      out.writeUTF(d.displaySymbol);
+    }
+    else
+      throw new IOException("Unsupported payload: " + _payload.getClass());
+  }
+
+  /** Read a key written by [write]. The result is interned. */
+  static KeyValue read(DataInputStream inp) throws IOException
+  {
+    int code = inp.readInt();
+    Comparable p;
+    switch (inp.readByte())
+    {
+      case 0: p = inp.readUTF(); break;
+      case 1:
+        Slider[] sliders = Slider.values();
+        int s = inp.readByte();
+        if (s < 0 || s >= sliders.length)
+          throw new IOException("Invalid slider: " + s);
+        p = sliders[s];
+        break;
+      case 2:
+        String symbol = inp.readUTF();
+        KeyValue[] keys = new KeyValue[inp.readUnsignedShort()];
+        for (int i = 0; i < keys.length; i++)
+          keys[i] = read(inp);
+        p = new Macro(keys, symbol);
+        break;
+      case 3:
+        String layout_name = inp.readUTF();
+        p = new SwitchToLayoutData(layout_name, inp.readUTF());
+        break;
+      default: throw new IOException("Invalid payload");
+    }
+    if ((code >>> KIND_OFFSET) >= KINDS.length)
+      throw new IOException("Invalid kind");
+    return intern(p, code);
+  }
+
   // Substitute for [assert], which has no effect on Android.
   private static void check(boolean b)
   {
@@ -947,6 +1146,18 @@ public final class KeyValue implements Comparable<KeyValue>
       }
       return _symbol.compareTo(snd._symbol);
     }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      return (obj instanceof Macro) && compareTo((Macro)obj) == 0;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return Arrays.hashCode(keys) * 31 + _symbol.hashCode();
+    }
   };
 
   /** Data holder for SWITCH_TO_LAYOUT keys that need both layout name and display symbol */
@@ -977,9 +1188,10 @@ public final class KeyValue implements Comparable<KeyValue>
       return layoutName.equals(that.layoutName) && displaySymbol.equals(that.displaySymbol);
     }
     
+    // Consistent with [compareTo], which [KeyValue.sameKey] uses.
     @Override
     public int hashCode() {
-      return layoutName.hashCode() * 31 + displaySymbol.hashCode();
+      return layoutName.hashCode();
     }
   }
 }
@@ -56,6 +56,7 @@ public class Keyboard2 extends InputMethodService
   private FoldStateTracker _foldStateTracker;
 
   private RingModsReceiver _ringModsReceiver;
+  private LatencyTrace.DumpReceiver _latencyDumpReceiver;
   
 
   /** Layout currently visible before it has been modified. */
@@ -134,6 +135,9 @@ public class Keyboard2 extends InputMethodService
     _handler = new Handler(getMainLooper());
     _keyeventhandler = new KeyEventHandler(this.new Receiver());
     _foldStateTracker = new FoldStateTracker(this);
+    EventTrace.init(this);
+    LayoutCache.init(this);
+    LayoutPreloader.init(this);
     Config.initGlobalConfig(prefs, getResources(), _keyeventhandler, _foldStateTracker.isUnfolded());
     prefs.registerOnSharedPreferenceChangeListener(this);
     _config = Config.globalConfig();
@@ -142,6 +146,9 @@ public class Keyboard2 extends InputMethodService
     Logs.set_debug_logs(getResources().getBoolean(R.bool.debug_logs));
     ClipboardHistoryService.on_startup(this, _keyeventhandler);
     _foldStateTracker.setChangedCallback(() -> { refresh_config(); });
+    _config.external_layouts.setChangedCallback(() -> {
+      onSharedPreferenceChanged(null, null);
+    });
 
     // Register Omni injection command server (gated by settings)
     instance = this;
@@ -157,6 +164,15 @@ public class Keyboard2 extends InputMethodService
     } else {
       Logs.log("Keyboard2", "Omni injection command server disabled in settings");
     }
+    // Exported for adb, which would also let other apps read typing timings.
+    if (BuildConfig.DEBUG) {
+      _latencyDumpReceiver = new LatencyTrace.DumpReceiver();
+      if (android.os.Build.VERSION.SDK_INT >= 33) {
+        registerReceiver(_latencyDumpReceiver, LatencyTrace.DumpReceiver.buildIntentFilter(), android.content.Context.RECEIVER_EXPORTED);
+      } else {
+        registerReceiver(_latencyDumpReceiver, LatencyTrace.DumpReceiver.buildIntentFilter());
+      }
+    }
   }
 
   @Override
@@ -166,8 +182,14 @@ public class Keyboard2 extends InputMethodService
       try { unregisterReceiver(_ringModsReceiver); } catch (Exception e) {}
       _ringModsReceiver = null;
     }
+    if (_latencyDumpReceiver != null) {
+      try { unregisterReceiver(_latencyDumpReceiver); } catch (Exception e) {}
+      _latencyDumpReceiver = null;
+    }
+    EventTrace.flush();
     super.onDestroy();
     _foldStateTracker.close();
+    _config.external_layouts.close();
   }
 
   private List<InputMethodSubtype> getEnabledSubtypes(InputMethodManager imm)
@@ -371,10 +393,18 @@ public class Keyboard2 extends InputMethodService
     _keyboardView.setKeyboard(current_layout());
     _keyeventhandler.started(info);
     setInputView(_keyboardView);
+    LayoutPreloader.prepare_on_idle();
     
     Logs.debug_startup_input_view(info, _config);
   }
 
+  @Override
+  public void onTrimMemory(int level)
+  {
+    super.onTrimMemory(level);
+    LayoutPreloader.trim_memory(level);
+  }
+
   @Override
   public void setInputView(View v)
   {
@@ -462,7 +492,7 @@ public class Keyboard2 extends InputMethodService
   public void onUpdateSelection(int oldSelStart, int oldSelEnd, int newSelStart, int newSelEnd, int candidatesStart, int candidatesEnd)
   {
     super.onUpdateSelection(oldSelStart, oldSelEnd, newSelStart, newSelEnd, candidatesStart, candidatesEnd);
-    _keyeventhandler.selection_updated(oldSelStart, newSelStart);
+    _keyeventhandler.selection_updated(oldSelStart, newSelStart, newSelEnd);
     if ((oldSelStart == oldSelEnd) != (newSelStart == newSelEnd))
       _keyboardView.set_selection_state(newSelStart != newSelEnd);
   }
@@ -470,6 +500,7 @@ public class Keyboard2 extends InputMethodService
   @Override
   public void onFinishInputView(boolean finishingInput)
   {
+    EventTrace.flush();
     if (_config.keyboard_persistence_enabled) {
       // Don't call super.onFinishInputView when persistence is enabled
       // This prevents the keyboard from being hidden
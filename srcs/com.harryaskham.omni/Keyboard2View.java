@@ -2,9 +2,13 @@ package com.harryaskham.omni;
 
 import android.content.Context;
 import android.content.ContextWrapper;
+import android.graphics.Bitmap;
 import android.graphics.Canvas;
+import android.graphics.Color;
 import android.graphics.Insets;
 import android.graphics.Paint;
+import android.graphics.PorterDuff;
+import android.graphics.PorterDuffXfermode;
 import android.graphics.Rect;
 import android.graphics.RectF;
 import android.inputmethodservice.InputMethodService;
@@ -18,6 +22,8 @@ import android.view.WindowInsets;
 import android.view.WindowManager;
 import android.view.WindowMetrics;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
 
 public class Keyboard2View extends View
   implements View.OnTouchListener, Pointers.IPointerEventHandler
@@ -56,6 +62,53 @@ public class Keyboard2View extends View
 
   private static RectF _tmpRect = new RectF();
 
+  /** Retained rendering of every keys. Keys are drawn into it once and only
+      the keys whose state changed are redrawn, see [update_layer]. */
+  private Bitmap _layer = null;
+  private Canvas _layer_canvas = null;
+  /** Whether every keys must be redrawn into [_layer]. */
+  private boolean _layer_dirty = true;
+  /** Modifiers that were used to render the labels in [_layer]. */
+  private Pointers.Modifiers _layer_mods = null;
+  /** Every keys of [_keyboard] and their position, in drawing order. Computed
+      by [compute_key_geometry], [null] when it must be recomputed. */
+  private KeyboardData.Key[] _key_list = null;
+  private float[] _key_x;
+  private float[] _key_y;
+  private float[] _key_w;
+  private float[] _key_h;
+  /** State of each key when it was last drawn into [_layer], see
+      [compute_key_states]. */
+  private int[] _key_state;
+  /** Scratch array for the state of the keys in the next frame. */
+  private int[] _next_key_state;
+  /** Bit of a key state set when a floating keyboard mode highlights it. */
+  private static final int KEY_STATE_FLOATING_ACTIVE = 1 << 30;
+  /** Index of each key in [_key_list]. */
+  private final IdentityHashMap<KeyboardData.Key, Integer> _key_index =
+    new IdentityHashMap<KeyboardData.Key, Integer>();
+  /** Indexes in [_key_list] of the keys that can be highlighted by the
+      floating keyboard modes, see [isFloatingModeKeyActive]. */
+  private int[] _floating_keys;
+
+  /** Used to find the key under a pointer. Computed in [onMeasure]. */
+  private KeyHitIndex _hit_index = null;
+
+  /** Labels of [_key_list] resolved for [_mods], see [resolve_labels]. */
+  private Labels _labels = null;
+  /** Labels already resolved for the current layout, indexed by modifiers.
+      Cleared when the layout or the measures change. */
+  private final HashMap<Pointers.Modifiers, Labels> _labels_cache =
+    new HashMap<Pointers.Modifiers, Labels>();
+  /** Bound the number of modifier combinations in [_labels_cache]. */
+  static final int LABELS_CACHE_SIZE = 16;
+
+  private static final Paint _clear_paint = new Paint();
+  static
+  {
+    _clear_paint.setXfermode(new PorterDuffXfermode(PorterDuff.Mode.CLEAR));
+  }
+
   enum Vertical
   {
     TOP,
@@ -113,6 +166,7 @@ public class Keyboard2View extends View
     _compose_kv = KeyValue.getKeyByName("compose");
     _compose_key = _keyboard.findKeyWithValue(_compose_kv);
     KeyModifier.set_modmap(_keyboard.modmap);
+    _key_list = null;
     reset();
   }
 
@@ -120,6 +174,7 @@ public class Keyboard2View extends View
   {
     _mods = Pointers.Modifiers.EMPTY;
     _pointers.clear();
+    _layer_dirty = true;
     requestLayout();
     invalidate();
   }
@@ -158,7 +213,8 @@ public class Keyboard2View extends View
 
   public void onPointerDown(KeyValue k, boolean isSwipe)
   {
-    android.util.Log.d("com.harryaskham.omni", "Keyboard2View.onPointerDown: " + k + ", handler: " + _config.handler);
+    if (Logs.DEBUG && Logs.on(Logs.INPUT))
+      Logs.d(Logs.INPUT, "Keyboard2View.onPointerDown: " + k + ", handler: " + _config.handler);
     updateFlags();
     _config.handler.key_down(k, isSwipe);
     invalidate();
@@ -202,6 +258,7 @@ public class Keyboard2View extends View
     {
       case MotionEvent.ACTION_UP:
       case MotionEvent.ACTION_POINTER_UP:
+        LatencyTrace.touch_up(event.getEventTime());
         _pointers.onTouchUp(event.getPointerId(event.getActionIndex()));
         break;
       case MotionEvent.ACTION_DOWN:
@@ -214,8 +271,7 @@ public class Keyboard2View extends View
           _pointers.onTouchDown(tx, ty, event.getPointerId(p), key);
         break;
       case MotionEvent.ACTION_MOVE:
-        for (p = 0; p < event.getPointerCount(); p++)
-          _pointers.onTouchMove(event.getX(p), event.getY(p), event.getPointerId(p));
+        onTouchMove(event);
         break;
       case MotionEvent.ACTION_CANCEL:
         _pointers.onTouchCancel();
@@ -226,37 +282,45 @@ public class Keyboard2View extends View
     return (true);
   }
 
-  private KeyboardData.Row getRowAtPosition(float ty)
+  /** Move events may contain several samples per pointer, batched since the
+      previous event. The older samples are replayed first, in order, if
+      [Config.touch_history_enabled]. */
+  private void onTouchMove(MotionEvent event)
   {
-    float y = _config.margin_top;
-    if (ty < y)
-      return null;
-    for (KeyboardData.Row row : _keyboard.rows)
+    int n_ptrs = event.getPointerCount();
+    if (_config.touch_history_enabled)
     {
-      y += (row.shift + row.height) * _tc.row_height;
-      if (ty < y)
-        return row;
+      int n_hist = event.getHistorySize();
+      for (int h = 0; h < n_hist; h++)
+      {
+        long time = event.getHistoricalEventTime(h);
+        for (int p = 0; p < n_ptrs; p++)
+          _pointers.onTouchMove(event.getHistoricalX(p, h),
+              event.getHistoricalY(p, h), event.getPointerId(p), time);
+      }
     }
-    return null;
+    long time = event.getEventTime();
+    for (int p = 0; p < n_ptrs; p++)
+      _pointers.onTouchMove(event.getX(p), event.getY(p),
+          event.getPointerId(p), time);
+    // Move events are delivered once per frame.
+    _pointers.onTouchMoveDone();
   }
 
   public KeyboardData.Key getKeyAtPosition(float tx, float ty)
   {
-    KeyboardData.Row row = getRowAtPosition(ty);
-    float x = _marginLeft;
-    if (row == null || tx < x)
+    if (_tc == null)
       return null;
-    for (KeyboardData.Key key : row.keys)
-    {
-      float xLeft = x + key.shift * _keyWidth;
-      float xRight = xLeft + key.width * _keyWidth;
-      if (tx < xLeft)
-        return null;
-      if (tx < xRight)
-        return key;
-      x = xRight;
-    }
-    return null;
+    // The layout might have changed since the last [onMeasure].
+    if (_hit_index == null || _hit_index.keyboard != _keyboard)
+      compute_hit_index();
+    return _hit_index.getKeyAtPosition(tx, ty);
+  }
+
+  private void compute_hit_index()
+  {
+    _hit_index = new KeyHitIndex(_keyboard, _config.margin_top,
+        _tc.row_height, _marginLeft, _keyWidth);
   }
 
   public KeyboardData getCurrentKeyboard()
@@ -321,6 +385,8 @@ public class Keyboard2View extends View
         );
     _mainLabelSize = labelBaseSize * _config.labelTextSize * _config.mainLabelSize;
     _subLabelSize = labelBaseSize * _config.sublabelTextSize * _config.subLabelSize;
+    _key_list = null;
+    compute_hit_index();
     int height =
       (int)(_tc.row_height * _keyboard.keysHeight
           + _config.margin_top + _marginBottom);
@@ -380,6 +446,96 @@ public class Keyboard2View extends View
     if (getBackground() != null) {
       getBackground().setAlpha(_config.keyboardOpacity);
     }
+    if (getWidth() <= 0 || getHeight() <= 0)
+      return;
+    update_layer();
+    canvas.drawBitmap(_layer, 0.f, 0.f, null);
+  }
+
+  @Override
+  public void onDetachedFromWindow()
+  {
+    super.onDetachedFromWindow();
+    if (_layer != null)
+    {
+      _layer.recycle();
+      _layer = null;
+      _layer_canvas = null;
+    }
+  }
+
+  /** Bring [_layer] up to date. Every keys are redrawn after the layout, the
+      size or the modifiers changed. Otherwise, only the keys that are
+      pressed or that were released, latched or locked since the last frame
+      are redrawn. */
+  private void update_layer()
+  {
+    int w = getWidth();
+    int h = getHeight();
+    if (_layer == null || _layer.getWidth() != w || _layer.getHeight() != h)
+    {
+      if (_layer != null)
+        _layer.recycle();
+      _layer = Bitmap.createBitmap(w, h, Bitmap.Config.ARGB_8888);
+      _layer_canvas = new Canvas(_layer);
+      _layer_dirty = true;
+    }
+    if (_key_list == null)
+      compute_key_geometry();
+    if (_layer_mods == null || !_layer_mods.equals(_mods))
+      _layer_dirty = true;
+    boolean full_redraw = _layer_dirty;
+    if (full_redraw)
+    {
+      _layer.eraseColor(Color.TRANSPARENT);
+      _labels = resolve_labels(_mods);
+    }
+    compute_key_states(_next_key_state);
+    for (int i = 0; i < _key_list.length; i++)
+    {
+      int state = _next_key_state[i];
+      // Keys with a pointer on them are always redrawn, the highlighted
+      // label depends on the value the pointer has selected, which is not
+      // part of the state.
+      boolean pressed = (state & ~KEY_STATE_FLOATING_ACTIVE) != 0;
+      if (!full_redraw && !pressed && state == _key_state[i])
+        continue;
+      float x = _key_x[i];
+      float y = _key_y[i];
+      if (!full_redraw)
+      {
+        // Erase the key and the margin around it.
+        float hm = _tc.horizontal_margin / 2.f;
+        float vm = _tc.vertical_margin / 2.f;
+        _layer_canvas.drawRect(x - hm, y - vm, x + _key_w[i] + hm,
+            y + _key_h[i] + vm, _clear_paint);
+      }
+      drawKey(_layer_canvas, i, x, y, _key_w[i], _key_h[i], state != 0);
+      _key_state[i] = state;
+    }
+    _layer_mods = _mods;
+    _layer_dirty = false;
+  }
+
+  /** Compute the position of every keys. Must be called again after the
+      layout or the measures change. */
+  private void compute_key_geometry()
+  {
+    int n = 0;
+    for (KeyboardData.Row row : _keyboard.rows)
+      n += row.keys.size();
+    _key_list = new KeyboardData.Key[n];
+    _key_x = new float[n];
+    _key_y = new float[n];
+    _key_w = new float[n];
+    _key_h = new float[n];
+    _key_state = new int[n];
+    _next_key_state = new int[n];
+    _key_index.clear();
+    _labels_cache.clear();
+    int n_floating = 0;
+    int[] floating_keys = new int[n];
+    int i = 0;
     float y = _tc.margin_top;
     for (KeyboardData.Row row : _keyboard.rows)
     {
@@ -389,28 +545,104 @@ public class Keyboard2View extends View
       for (KeyboardData.Key k : row.keys)
       {
         x += k.shift * _keyWidth;
-        float keyW = _keyWidth * k.width - _tc.horizontal_margin;
-        boolean isKeyDown = _pointers.isKeyDown(k) || isFloatingModeKeyActive(k);
-        Theme.Computed.Key tc_key = isKeyDown ? _tc.key_activated : _tc.key;
-        drawKeyFrame(canvas, x, y, keyW, keyH, tc_key);
-        if (k.keys[0] != null)
-          drawLabel(canvas, k.keys[0], keyW / 2f + x, y, keyH, isKeyDown, tc_key);
-        for (int i = 1; i < 9; i++)
-        {
-          if (k.keys[i] != null)
-            drawSubLabel(canvas, k.keys[i], x, y, keyW, keyH, i, isKeyDown, tc_key);
-        }
-        drawIndication(canvas, k, x, y, keyW, keyH, _tc);
+        _key_list[i] = k;
+        _key_x[i] = x;
+        _key_y[i] = y;
+        _key_w[i] = _keyWidth * k.width - _tc.horizontal_margin;
+        _key_h[i] = keyH;
+        _key_index.put(k, i);
+        if (has_floating_mode_event(k))
+          floating_keys[n_floating++] = i;
         x += _keyWidth * k.width;
+        i++;
       }
       y += row.height * _tc.row_height;
     }
+    _floating_keys = Arrays.copyOf(floating_keys, n_floating);
+    _layer_dirty = true;
   }
 
-  @Override
-  public void onDetachedFromWindow()
+  /** Summarize everything that affects the rendering of each key, apart from
+      the modifiers. [0] means that the key is not pressed, otherwise it's the
+      union of the flags of the pointers on the key plus one. Pressed keys are
+      redrawn on every frame regardless, see [update_layer]. Computed from
+      the pointers rather than by looking up the pointers of every keys. */
+  private void compute_key_states(int[] states)
   {
-    super.onDetachedFromWindow();
+    Arrays.fill(states, 0);
+    int n_ptrs = _pointers.getPointerCount();
+    for (int p = 0; p < n_ptrs; p++)
+    {
+      Integer i = _key_index.get(_pointers.getPointerKey(p));
+      if (i == null)
+        continue;
+      int flags = _pointers.getPointerFlags(p);
+      int prev = states[i];
+      states[i] = ((prev == 0) ? flags : ((prev - 1) | flags)) + 1;
+    }
+    for (int i : _floating_keys)
+      if (isFloatingModeKeyActive(_key_list[i]))
+        states[i] |= KEY_STATE_FLOATING_ACTIVE;
+  }
+
+  /** Draw the key at index [key_i] in [_key_list]. */
+  private void drawKey(Canvas canvas, int key_i, float x, float y,
+      float keyW, float keyH, boolean isKeyDown)
+  {
+    Theme.Computed.Key tc_key = isKeyDown ? _tc.key_activated : _tc.key;
+    drawKeyFrame(canvas, x, y, keyW, keyH, tc_key);
+    int label_i = key_i * 9;
+    drawLabel(canvas, label_i, keyW / 2f + x, y, keyH, isKeyDown, tc_key);
+    for (int i = 1; i < 9; i++)
+      drawSubLabel(canvas, label_i + i, x, y, keyW, keyH, i, isKeyDown, tc_key);
+    drawIndication(canvas, _key_list[key_i], x, y, keyW, keyH, _tc);
+  }
+
+  /** Resolved labels for every keys in [_key_list], for a set of modifiers.
+      Index [key_i * 9 + i] is the label at position [i] of the key at index
+      [key_i]. */
+  static final class Labels
+  {
+    /** Labels with modifiers applied. [null] if the label is not drawn. */
+    public final KeyValue[] kvs;
+    public final float[] text_sizes;
+    /** Color of the label when the key is not pressed. */
+    public final int[] colors;
+
+    public Labels(int n)
+    {
+      kvs = new KeyValue[n];
+      text_sizes = new float[n];
+      colors = new int[n];
+    }
+  }
+
+  /** Return the labels for [mods], computing them if they are not already in
+      [_labels_cache]. */
+  private Labels resolve_labels(Pointers.Modifiers mods)
+  {
+    Labels l = _labels_cache.get(mods);
+    if (l != null)
+      return l;
+    l = new Labels(_key_list.length * 9);
+    for (int key_i = 0; key_i < _key_list.length; key_i++)
+    {
+      KeyValue[] ks = _key_list[key_i].keys;
+      for (int i = 0; i < 9; i++)
+      {
+        KeyValue kv = (ks[i] == null) ? null : modifyKey(ks[i], mods);
+        if (kv == null)
+          continue;
+        int j = key_i * 9 + i;
+        l.kvs[j] = kv;
+        l.text_sizes[j] = scaleTextSize(kv, i == 0);
+        l.colors[j] = labelColor(kv, false, i != 0);
+      }
+    }
+    if (_labels_cache.size() >= LABELS_CACHE_SIZE)
+      _labels_cache.clear();
+    _labels_cache.put(mods, l);
+    return l;
   }
 
   /** Check if this keyboard view is being used in floating mode */
@@ -479,28 +711,36 @@ public class Keyboard2View extends View
     return sublabel ? _theme.subLabelColor : _theme.labelColor;
   }
 
-  private void drawLabel(Canvas canvas, KeyValue kv, float x, float y,
+  /** Color of the label at index [label_i] in [_labels]. */
+  private int labelColor(int label_i, boolean isKeyDown, boolean sublabel)
+  {
+    if (isKeyDown)
+      return labelColor(_labels.kvs[label_i], true, sublabel);
+    return _labels.colors[label_i];
+  }
+
+  private void drawLabel(Canvas canvas, int label_i, float x, float y,
       float keyH, boolean isKeyDown, Theme.Computed.Key tc)
   {
-    kv = modifyKey(kv, _mods);
+    KeyValue kv = _labels.kvs[label_i];
     if (kv == null)
       return;
-    float textSize = scaleTextSize(kv, true);
-    Paint p = tc.label_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, false), textSize);
+    float textSize = _labels.text_sizes[label_i];
+    Paint p = tc.label_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(label_i, isKeyDown, false), textSize);
     canvas.drawText(kv.getString(), x, (keyH - p.ascent() - p.descent()) / 2f + y, p);
   }
 
-  private void drawSubLabel(Canvas canvas, KeyValue kv, float x, float y,
+  private void drawSubLabel(Canvas canvas, int label_i, float x, float y,
       float keyW, float keyH, int sub_index, boolean isKeyDown,
       Theme.Computed.Key tc)
   {
     Paint.Align a = LABEL_POSITION_H[sub_index];
     Vertical v = LABEL_POSITION_V[sub_index];
-    kv = modifyKey(kv, _mods);
+    KeyValue kv = _labels.kvs[label_i];
     if (kv == null)
       return;
-    float textSize = scaleTextSize(kv, false);
-    Paint p = tc.sublabel_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(kv, isKeyDown, true), textSize, a);
+    float textSize = _labels.text_sizes[label_i];
+    Paint p = tc.sublabel_paint(kv.hasFlagsAny(KeyValue.FLAG_KEY_FONT), labelColor(label_i, isKeyDown, true), textSize, a);
     float subPadding = _config.keyPadding;
     if (v == Vertical.CENTER)
       y += (keyH - p.ascent() - p.descent()) / 2f;
@@ -536,6 +776,21 @@ public class Keyboard2View extends View
     return label_size * smaller_font;
   }
 
+  /** Whether [isFloatingModeKeyActive] can ever be true for [k]. */
+  private static boolean has_floating_mode_event(KeyboardData.Key k)
+  {
+    for (KeyValue kv : k.keys)
+    {
+      if (kv != null && kv.getKind() == KeyValue.Kind.Event)
+      {
+        KeyValue.Event ev = kv.getEvent();
+        if (ev == KeyValue.Event.FLOATING_MOVE || ev == KeyValue.Event.FLOATING_RESIZE)
+          return true;
+      }
+    }
+    return false;
+  }
+
   /** Check if a key should appear active due to floating mode states */
   private boolean isFloatingModeKeyActive(KeyboardData.Key k)
   {
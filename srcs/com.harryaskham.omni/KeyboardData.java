@@ -7,7 +7,9 @@ import java.io.StringReader;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -175,7 +177,29 @@ public final class KeyboardData
     return _key_pos;
   }
 
-  private static Map<Integer, KeyboardData> _layoutCache = new HashMap<Integer, KeyboardData>();
+  /** Rough number of bytes used by the layout, not counting the [KeyValue]
+      that are shared between layouts. */
+  public int estimated_size()
+  {
+    int size = ESTIMATED_LAYOUT_BYTES;
+    for (Row r : rows)
+      size += ESTIMATED_ROW_BYTES + r.keys.size() * ESTIMATED_KEY_BYTES;
+    return size;
+  }
+
+  static final int ESTIMATED_LAYOUT_BYTES = 256;
+  static final int ESTIMATED_ROW_BYTES = 64;
+  /** [Key], its array of values and its entry in [getKeys]. */
+  static final int ESTIMATED_KEY_BYTES = 160;
+
+  /** Layouts loaded by [load], least recently used first. The total
+      [estimated_size] is kept under [_layoutCacheMaxBytes]. */
+  private static final LinkedHashMap<Integer, KeyboardData> _layoutCache =
+    new LinkedHashMap<Integer, KeyboardData>(16, 0.75f, true);
+  private static long _layoutCacheBytes = 0;
+  static long _layoutCacheMaxBytes = 256 * 1024;
+  /** Resources that failed to load, not retried. */
+  private static final Set<Integer> _layoutFailed = new HashSet<Integer>();
 
   public static Row load_row(Resources res, int res_id) throws Exception
   {
@@ -184,28 +208,93 @@ public final class KeyboardData
 
   public static KeyboardData load_num_pad(Resources res) throws Exception
   {
-    return parse_keyboard(res.getXml(R.xml.numpad));
+    return load_resource_exn(res, R.xml.numpad);
   }
 
   /** Load a layout from a resource ID. Returns [null] on error. */
   public static KeyboardData load(Resources res, int id)
   {
-    if (_layoutCache.containsKey(id))
-      return _layoutCache.get(id);
-    KeyboardData l = null;
-    XmlResourceParser parser = null;
+    synchronized (_layoutCache)
+    {
+      KeyboardData l = _layoutCache.get(id);
+      if (l != null || _layoutFailed.contains(id))
+        return l;
+    }
+    // Might be called from [LayoutPreloader]'s thread, parsing is done
+    // outside of the lock.
+    KeyboardData l;
     try
     {
-      parser = res.getXml(id);
-      l = parse_keyboard(parser);
+      l = load_resource_exn(res, id);
     }
     catch (Exception e)
     {
       Logs.exn("Failed to load layout id " + id, e);
+      synchronized (_layoutCache) { _layoutFailed.add(id); }
+      return null;
+    }
+    synchronized (_layoutCache)
+    {
+      // Keep the instance that was loaded first by another thread.
+      KeyboardData prev = _layoutCache.get(id);
+      if (prev != null)
+        return prev;
+      _layoutCache.put(id, l);
+      _layoutCacheBytes += l.estimated_size();
+      trim_layout_cache(_layoutCacheMaxBytes);
+    }
+    return l;
+  }
+
+  /** Change the size of the cache used by [load]. */
+  public static void set_layout_cache_limit(long max_bytes)
+  {
+    synchronized (_layoutCache)
+    {
+      _layoutCacheMaxBytes = max_bytes;
+      trim_layout_cache(max_bytes);
+    }
+  }
+
+  /** Evict the least recently used layouts until the cache uses at most
+      [max_bytes]. */
+  public static void trim_layout_cache(long max_bytes)
+  {
+    synchronized (_layoutCache)
+    {
+      Iterator<KeyboardData> it = _layoutCache.values().iterator();
+      while (_layoutCacheBytes > max_bytes && it.hasNext())
+      {
+        _layoutCacheBytes -= it.next().estimated_size();
+        it.remove();
+      }
+    }
+  }
+
+  static long layout_cache_bytes()
+  {
+    synchronized (_layoutCache)
+    {
+      return _layoutCacheBytes;
     }
-    if (parser != null)
+  }
+
+  /** Parse a layout from the resources, unless it is in [LayoutCache]. */
+  static KeyboardData load_resource_exn(Resources res, int id) throws Exception
+  {
+    KeyboardData l = LayoutCache.load_resource(id);
+    if (l != null)
+      return l;
+    XmlResourceParser parser = res.getXml(id);
+    try
+    {
+      l = parse_keyboard(parser);
+    }
+    finally
+    {
       parser.close();
-    _layoutCache.put(id, l);
+    }
+    LayoutCache.save_resource(id, l);
     return l;
   }
 
@@ -231,6 +320,14 @@ public final class KeyboardData
     return parse_keyboard(parser);
   }
 
+  /** Like [load_row] but from a string. */
+  static Row load_row_string_exn(String src) throws Exception
+  {
+    XmlPullParser parser = Xml.newPullParser();
+    parser.setInput(new StringReader(src));
+    return parse_row(parser);
+  }
+
   private static KeyboardData parse_keyboard(XmlPullParser parser) throws Exception
   {
     if (!expect_tag(parser, "keyboard"))
@@ -399,7 +496,7 @@ public final class KeyboardData
     /** Key accessed by the anti-clockwise circle gesture. */
     public final KeyValue anticircle;
     /** Pack flags for every key values. Flags are: [F_LOC]. */
-    private final int keysflags;
+    final int keysflags;
     /** Key width in relative unit. */
     public final float width;
     /** Extra empty space on the left of the key. */
@@ -607,6 +704,21 @@ public final class KeyboardData
     {
       return new KeyPos(row, col, d);
     }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof KeyPos))
+        return false;
+      KeyPos p = (KeyPos)obj;
+      return row == p.row && col == p.col && dir == p.dir;
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (row * 31 + col) * 31 + dir;
+    }
   }
 
   /** See [addExtraKeys()]. */
@@ -637,6 +749,23 @@ public final class KeyboardData
       positions = src.positions;
     }
 
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof PreferredPos))
+        return false;
+      PreferredPos p = (PreferredPos)obj;
+      return (next_to == null ? p.next_to == null : next_to.equals(p.next_to))
+        && Arrays.equals(positions, p.positions);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return (next_to == null ? 0 : next_to.hashCode()) * 31
+        + Arrays.hashCode(positions);
+    }
+
     static final KeyPos[] ANYWHERE_POSITIONS =
       new KeyPos[]{ new KeyPos(-1, -1, -1) };
 
@@ -0,0 +1,194 @@
+package com.harryaskham.omni;
+
+import android.content.BroadcastReceiver;
+import android.content.Context;
+import android.content.Intent;
+import android.content.IntentFilter;
+import java.util.Arrays;
+import java.util.Locale;
+
+/** Measure the latency from a touch to the corresponding text or key event
+    sent to the editor. Each key press is recorded as a span:
+    - touch: [MotionEvent.getEventTime] of the pointer going up,
+    - dispatch: [Keyboard2View.onTouch] received the event,
+    - key_up: [KeyEventHandler.key_up] started handling the key,
+    - commit: the first [commitText] or [sendKeyEvent] for that key.
+    Timestamps are [System.nanoTime], which uses the same clock as
+    [SystemClock.uptimeMillis].
+
+    Spans are recorded into preallocated arrays, the recording doesn't
+    allocate. Must only be used from the main thread. Disabled by default, see
+    [Config.latency_trace_enabled] and [DumpReceiver]. */
+public final class LatencyTrace
+{
+  static final int CAPACITY = 512;
+
+  static boolean _enabled = false;
+
+  /** Completed spans, [_count] is the number of spans ever recorded. The
+      oldest spans are overwritten. */
+  static final long[] _touch = new long[CAPACITY];
+  static final long[] _dispatch = new long[CAPACITY];
+  static final long[] _key_up = new long[CAPACITY];
+  static final long[] _commit = new long[CAPACITY];
+  static final byte[] _kind = new byte[CAPACITY];
+  static int _count = 0;
+
+  /** Span in progress. [0] when not started. */
+  static long _cur_touch = 0;
+  static long _cur_dispatch = 0;
+  static long _cur_key_up = 0;
+  static byte _cur_kind = 0;
+
+  public static void set_enabled(boolean e)
+  {
+    if (e == _enabled)
+      return;
+    _enabled = e;
+    reset();
+  }
+
+  public static boolean is_enabled()
+  {
+    return _enabled;
+  }
+
+  /** A pointer went up. [event_time_ms] is in [SystemClock.uptimeMillis] time
+      base. */
+  public static void touch_up(long event_time_ms)
+  {
+    if (!_enabled)
+      return;
+    _cur_touch = event_time_ms * 1000000L;
+    _cur_dispatch = System.nanoTime();
+    _cur_key_up = 0;
+  }
+
+  /** [KeyEventHandler.key_up] starts handling a key. Keys that are not
+      triggered by a touch, for example from a macro, are not traced. */
+  public static void key_up(KeyValue.Kind kind)
+  {
+    if (!_enabled || _cur_touch == 0)
+      return;
+    _cur_key_up = System.nanoTime();
+    _cur_kind = (byte)kind.ordinal();
+  }
+
+  /** [KeyEventHandler.key_up] returned. The span is dropped if nothing was
+      sent to the editor. */
+  public static void key_up_done()
+  {
+    _cur_touch = 0;
+    _cur_key_up = 0;
+  }
+
+  /** Text or a key event has been sent to the editor. Completes the current
+      span. */
+  public static void commit()
+  {
+    if (!_enabled || _cur_key_up == 0)
+      return;
+    int i = _count % CAPACITY;
+    _touch[i] = _cur_touch;
+    _dispatch[i] = _cur_dispatch;
+    _key_up[i] = _cur_key_up;
+    _commit[i] = System.nanoTime();
+    _kind[i] = _cur_kind;
+    _count++;
+    _cur_touch = 0;
+    _cur_key_up = 0;
+  }
+
+  public static void reset()
+  {
+    _count = 0;
+    _cur_touch = 0;
+    _cur_key_up = 0;
+  }
+
+  /** Number of spans available for [summary]. */
+  public static int size()
+  {
+    return Math.min(_count, CAPACITY);
+  }
+
+  /** Percentiles of the touch-to-commit latency and of the dispatch-to-commit
+      latency, which excludes the time spent by the system delivering the
+      event, per kind of key. In milliseconds. */
+  public static String summary()
+  {
+    StringBuilder b = new StringBuilder();
+    int n = size();
+    b.append("Latency over ").append(n).append(" keys (p50/p95/p99 ms)\n");
+    if (n == 0)
+      return b.toString();
+    long[] total = new long[n];
+    long[] internal = new long[n];
+    for (KeyValue.Kind kind : KeyValue.Kind.values())
+    {
+      int m = 0;
+      for (int i = 0; i < n; i++)
+      {
+        if (_kind[i] != kind.ordinal())
+          continue;
+        total[m] = _commit[i] - _touch[i];
+        internal[m] = _commit[i] - _dispatch[i];
+        m++;
+      }
+      if (m == 0)
+        continue;
+      b.append(kind).append(" n=").append(m).append(" touch: ");
+      append_percentiles(b, total, m);
+      b.append(" dispatch: ");
+      append_percentiles(b, internal, m);
+      b.append('\n');
+    }
+    return b.toString();
+  }
+
+  /** Sorts the first [n] elements of [a]. */
+  static void append_percentiles(StringBuilder b, long[] a, int n)
+  {
+    Arrays.sort(a, 0, n);
+    b.append(String.format(Locale.US, "%.2f/%.2f/%.2f",
+          percentile(a, n, 50) / 1e6, percentile(a, n, 95) / 1e6,
+          percentile(a, n, 99) / 1e6));
+  }
+
+  /** Nearest-rank percentile of the [n] first elements of the sorted array
+      [a]. */
+  static long percentile(long[] a, int n, int p)
+  {
+    int rank = (p * n + 99) / 100;
+    return a[Math.max(0, rank - 1)];
+  }
+
+  /** Debug broadcast that logs and replies with [summary]:
+      adb shell am broadcast -a com.harryaskham.omni.LATENCY_DUMP
+      The boolean extras "enabled" and "reset" change the tracing state
+      before replying. "enabled" stays in effect until the option is changed.
+      Only registered in debug builds. */
+  public static final class DumpReceiver extends BroadcastReceiver
+  {
+    public static final String ACTION = "com.harryaskham.omni.LATENCY_DUMP";
+
+    public static IntentFilter buildIntentFilter()
+    {
+      return new IntentFilter(ACTION);
+    }
+
+    @Override
+    public void onReceive(Context context, Intent intent)
+    {
+      if (intent == null || !ACTION.equals(intent.getAction()))
+        return;
+      if (intent.hasExtra("enabled"))
+        set_enabled(intent.getBooleanExtra("enabled", false));
+      if (intent.getBooleanExtra("reset", false))
+        reset();
+      String s = summary();
+      Logs.log("LatencyTrace", s);
+      setResultData(s);
+    }
+  }
+}
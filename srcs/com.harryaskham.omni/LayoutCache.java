@@ -0,0 +1,438 @@
+package com.harryaskham.omni;
+
+import android.content.Context;
+import android.os.Build.VERSION;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.zip.CRC32;
+
+/** Binary copies of the parsed layouts, to skip XML parsing on cold starts.
+    A layout is written to the cache after it is first parsed and read back
+    on later loads as long as its source didn't change. The source of an
+    entry and a stamp that changes with the source are stored in the file:
+    - Layouts from the resources are only invalidated by app updates.
+    - Layout files are invalidated by their modification time and size.
+    - Custom layouts are invalidated by the hash of their XML source.
+    Every entry is also invalidated when the app is updated, as the encoding
+    of [KeyValue] depends on the order of its enums.
+
+    The cache is in the device protected storage so that it can be used
+    before the device is unlocked. Layouts are not sensitive. Writes happen
+    on a background thread. Disabled until [init] is called.
+
+    File format, big endian:
+    - header: [MAGIC], [FORMAT_VERSION] (ints), [_app_stamp] (long), source
+      (string), stamps (2 longs).
+    - table of the [KeyValue]s: count (int), then each key, see
+      [KeyValue.write].
+    - the keyboard, see [write_keyboard]. Keys are referenced by their index
+      in the table plus one, [0] is [null].
+    - CRC32 of everything before (int). */
+public final class LayoutCache
+{
+  static final int MAGIC = 0x4f4d4c43; // "OMLC"
+  /** Must be incremented when the format changes. Changes to [KeyValue] are
+      covered by [_app_stamp]. */
+  static final int FORMAT_VERSION = 1;
+  static final String DIR_NAME = "layout_cache";
+  /** The cache is cleared when it contains more files than that, custom
+      layouts edited many times leave stale files. */
+  static final int MAX_FILES = 128;
+
+  static File _dir = null;
+  /** Changes when the app is updated, which might change the resources and
+      the [KeyValue] enums. */
+  static long _app_stamp = 0;
+  static ExecutorService _writer = null;
+
+  /** Called when the keyboard service is created, before layouts are
+      loaded. */
+  public static void init(Context ctx)
+  {
+    if (_dir != null)
+      return;
+    Context storage = (VERSION.SDK_INT >= 24) ?
+      ctx.createDeviceProtectedStorageContext() : ctx;
+    long stamp = BuildConfig.VERSION_CODE;
+    try
+    {
+      stamp = ctx.getPackageManager()
+        .getPackageInfo(ctx.getPackageName(), 0).lastUpdateTime;
+    }
+    catch (Exception e) {}
+    init_dir(new File(storage.getCacheDir(), DIR_NAME), stamp);
+  }
+
+  static void init_dir(File dir, long app_stamp)
+  {
+    dir.mkdirs();
+    File[] fs = dir.listFiles();
+    if (fs != null && fs.length > MAX_FILES)
+      for (File f : fs)
+        f.delete();
+    _dir = dir;
+    _app_stamp = app_stamp;
+  }
+
+  /** Returns [null] if the layout is not in the cache. */
+  public static KeyboardData load_resource(int id)
+  {
+    return read(resource_file(id), "res:" + id, 0, 0);
+  }
+
+  public static void save_resource(int id, KeyboardData kw)
+  {
+    save(resource_file(id), "res:" + id, 0, 0, kw);
+  }
+
+  /** Load a layout file, from the cache if the file didn't change. */
+  public static KeyboardData load_file(File src) throws Exception
+  {
+    String path = src.getPath();
+    long mtime = src.lastModified();
+    long size = src.length();
+    File f = file_entry(src);
+    KeyboardData kw = read(f, path, mtime, size);
+    if (kw != null)
+      return kw;
+    kw = KeyboardData.load_string_exn(read_source(src));
+    save(f, path, mtime, size, kw);
+    return kw;
+  }
+
+  /** Load a layout from its XML source, from the cache if it was seen
+      before. Throws on parse errors. */
+  public static KeyboardData load_string(String src) throws Exception
+  {
+    long hash = hash(src);
+    File f = string_entry(hash);
+    KeyboardData kw = read(f, "xml", hash, src.length());
+    if (kw != null)
+      return kw;
+    kw = KeyboardData.load_string_exn(src);
+    save(f, "xml", hash, src.length(), kw);
+    return kw;
+  }
+
+  static File string_entry(long hash)
+  {
+    return (_dir == null) ? null :
+      new File(_dir, "xml_" + Long.toHexString(hash));
+  }
+
+  static File resource_file(int id)
+  {
+    return (_dir == null) ? null : new File(_dir, "res_" + id);
+  }
+
+  /** Two files might share an entry, the path stored in the entry tells
+      them apart. */
+  static File file_entry(File src)
+  {
+    return (_dir == null) ? null :
+      new File(_dir, "file_" + Long.toHexString(hash(src.getPath())));
+  }
+
+  static String read_source(File src) throws IOException
+  {
+    try (FileInputStream inp = new FileInputStream(src))
+    {
+      return new String(read_all(inp), StandardCharsets.UTF_8);
+    }
+  }
+
+  static byte[] read_all(FileInputStream inp) throws IOException
+  {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buf = new byte[8192];
+    int n;
+    while ((n = inp.read(buf)) > 0)
+      out.write(buf, 0, n);
+    return out.toByteArray();
+  }
+
+  /** 64-bit FNV-1a. */
+  static long hash(String s)
+  {
+    long h = 0xcbf29ce484222325L;
+    for (int i = 0; i < s.length(); i++)
+    {
+      h ^= s.charAt(i);
+      h *= 0x100000001b3L;
+    }
+    return h;
+  }
+
+  /** Returns [null] if [f] doesn't exist, was written for another source,
+      is stale or is invalid. Stale and invalid files are removed, the entry
+      of another source is kept. */
+  static KeyboardData read(File f, String source, long stamp1, long stamp2)
+  {
+    if (f == null || !f.exists())
+      return null;
+    try (FileInputStream inp = new FileInputStream(f))
+    {
+      return decode(read_all(inp), source, stamp1, stamp2);
+    }
+    catch (Stale e) {}
+    catch (Exception e)
+    {
+      Logs.exn("Invalid layout cache " + f.getName(), e);
+    }
+    f.delete();
+    return null;
+  }
+
+  /** The entry was written for an older version of its source or by another
+      version of the app. */
+  static final class Stale extends IOException
+  {
+    public Stale() { super("Stale"); }
+  }
+
+  static synchronized void save(final File f, final String source,
+      final long stamp1, final long stamp2, final KeyboardData kw)
+  {
+    if (f == null || kw == null)
+      return;
+    if (_writer == null)
+      _writer = Executors.newSingleThreadExecutor();
+    _writer.execute(() -> {
+      File tmp = new File(f.getPath() + ".tmp");
+      try (FileOutputStream out = new FileOutputStream(tmp))
+      {
+        out.write(encode(kw, source, stamp1, stamp2));
+      }
+      catch (Exception e)
+      {
+        Logs.exn("Failed to write layout cache " + f.getName(), e);
+        tmp.delete();
+        return;
+      }
+      // Readers never see a partially written file.
+      if (!tmp.renameTo(f))
+        tmp.delete();
+    });
+  }
+
+  static byte[] encode(KeyboardData kw, String source, long stamp1, long stamp2)
+    throws IOException
+  {
+    ByteArrayOutputStream buf = new ByteArrayOutputStream(4096);
+    DataOutputStream out = new DataOutputStream(buf);
+    out.writeInt(MAGIC);
+    out.writeInt(FORMAT_VERSION);
+    out.writeLong(_app_stamp);
+    out.writeUTF(source);
+    out.writeLong(stamp1);
+    out.writeLong(stamp2);
+    KeyTable table = new KeyTable(kw);
+    out.writeInt(table.keys.size());
+    for (KeyValue k : table.keys)
+      k.write(out);
+    write_keyboard(out, table, kw);
+    CRC32 crc = new CRC32();
+    crc.update(buf.toByteArray());
+    out.writeInt((int)crc.getValue());
+    out.flush();
+    return buf.toByteArray();
+  }
+
+  /** Returns [null] if the data was written for another source. Throws
+      [Stale] if it is stale and [IOException] if it is invalid. */
+  static KeyboardData decode(byte[] data, String source, long stamp1,
+      long stamp2) throws IOException
+  {
+    if (data.length < 4)
+      throw new IOException("Truncated");
+    CRC32 crc = new CRC32();
+    crc.update(data, 0, data.length - 4);
+    if (ByteBuffer.wrap(data).getInt(data.length - 4) != (int)crc.getValue())
+      throw new IOException("Bad checksum");
+    DataInputStream inp =
+      new DataInputStream(new ByteArrayInputStream(data));
+    if (inp.readInt() != MAGIC)
+      throw new IOException("Bad magic");
+    if (inp.readInt() != FORMAT_VERSION || inp.readLong() != _app_stamp)
+      throw new Stale();
+    if (!inp.readUTF().equals(source))
+      return null;
+    if (inp.readLong() != stamp1 || inp.readLong() != stamp2)
+      throw new Stale();
+    KeyValue[] keys = new KeyValue[inp.readInt()];
+    for (int i = 0; i < keys.length; i++)
+      keys[i] = KeyValue.read(inp);
+    return read_keyboard(inp, keys);
+  }
+
+  /** Keyboard attributes, then the rows and the modmap. */
+  static void write_keyboard(DataOutputStream out, KeyTable t, KeyboardData kw)
+    throws IOException
+  {
+    out.writeBoolean(kw.bottom_row);
+    out.writeBoolean(kw.embedded_number_row);
+    out.writeBoolean(kw.locale_extra_keys);
+    write_string(out, kw.name);
+    write_string(out, kw.script);
+    write_string(out, kw.numpad_script);
+    out.writeFloat(kw.keysWidth);
+    out.writeShort(kw.rows.size());
+    for (KeyboardData.Row row : kw.rows)
+    {
+      out.writeFloat(row.height);
+      out.writeFloat(row.shift);
+      out.writeShort(row.keys.size());
+      for (KeyboardData.Key k : row.keys)
+      {
+        out.writeByte(k.keys.length);
+        for (KeyValue kv : k.keys)
+          out.writeShort(t.ref(kv));
+        out.writeShort(t.ref(k.anticircle));
+        out.writeInt(k.keysflags);
+        out.writeFloat(k.width);
+        out.writeFloat(k.shift);
+        write_string(out, k.indication);
+      }
+    }
+    out.writeBoolean(kw.modmap != null);
+    if (kw.modmap == null)
+      return;
+    for (Map<KeyValue, KeyValue> m : kw.modmap._map)
+    {
+      out.writeShort((m == null) ? 0 : m.size());
+      if (m != null)
+        for (Map.Entry<KeyValue, KeyValue> e : m.entrySet())
+        {
+          out.writeShort(t.ref(e.getKey()));
+          out.writeShort(t.ref(e.getValue()));
+        }
+    }
+  }
+
+  static KeyboardData read_keyboard(DataInputStream inp, KeyValue[] keys)
+    throws IOException
+  {
+    boolean bottom_row = inp.readBoolean();
+    boolean embedded_number_row = inp.readBoolean();
+    boolean locale_extra_keys = inp.readBoolean();
+    String name = read_string(inp);
+    String script = read_string(inp);
+    String numpad_script = read_string(inp);
+    float keysWidth = inp.readFloat();
+    int n_rows = inp.readUnsignedShort();
+    List<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>(n_rows);
+    for (int r = 0; r < n_rows; r++)
+    {
+      float height = inp.readFloat();
+      float shift = inp.readFloat();
+      int n_keys = inp.readUnsignedShort();
+      List<KeyboardData.Key> row = new ArrayList<KeyboardData.Key>(n_keys);
+      for (int i = 0; i < n_keys; i++)
+      {
+        KeyValue[] ks = new KeyValue[inp.readUnsignedByte()];
+        for (int j = 0; j < ks.length; j++)
+          ks[j] = deref(keys, inp.readUnsignedShort());
+        KeyValue anticircle = deref(keys, inp.readUnsignedShort());
+        int keysflags = inp.readInt();
+        float width = inp.readFloat();
+        float key_shift = inp.readFloat();
+        row.add(new KeyboardData.Key(ks, anticircle, keysflags, width,
+              key_shift, read_string(inp)));
+      }
+      rows.add(new KeyboardData.Row(row, height, shift));
+    }
+    Modmap modmap = null;
+    if (inp.readBoolean())
+    {
+      modmap = new Modmap();
+      for (Modmap.M m : Modmap.M.values())
+      {
+        int n = inp.readUnsignedShort();
+        for (int i = 0; i < n; i++)
+        {
+          KeyValue a = deref(keys, inp.readUnsignedShort());
+          modmap.add(m, a, deref(keys, inp.readUnsignedShort()));
+        }
+      }
+    }
+    return new KeyboardData(rows, keysWidth, modmap, script, numpad_script,
+        name, bottom_row, embedded_number_row, locale_extra_keys);
+  }
+
+  static void write_string(DataOutputStream out, String s) throws IOException
+  {
+    out.writeBoolean(s != null);
+    if (s != null)
+      out.writeUTF(s);
+  }
+
+  static String read_string(DataInputStream inp) throws IOException
+  {
+    return inp.readBoolean() ? inp.readUTF() : null;
+  }
+
+  static KeyValue deref(KeyValue[] keys, int ref) throws IOException
+  {
+    if (ref == 0)
+      return null;
+    if (ref > keys.length)
+      throw new IOException("Invalid key reference: " + ref);
+    return keys[ref - 1];
+  }
+
+  /** The distinct keys of a layout. Compared by identity, [equals] would
+      merge keys that render differently. */
+  static final class KeyTable
+  {
+    final List<KeyValue> keys = new ArrayList<KeyValue>();
+    final Map<KeyValue, Integer> _refs = new IdentityHashMap<KeyValue, Integer>();
+
+    KeyTable(KeyboardData kw)
+    {
+      for (KeyboardData.Row row : kw.rows)
+        for (KeyboardData.Key k : row.keys)
+        {
+          for (KeyValue kv : k.keys)
+            add(kv);
+          add(k.anticircle);
+        }
+      if (kw.modmap != null)
+        for (Map<KeyValue, KeyValue> m : kw.modmap._map)
+          if (m != null)
+            for (Map.Entry<KeyValue, KeyValue> e : m.entrySet())
+            {
+              add(e.getKey());
+              add(e.getValue());
+            }
+      if (keys.size() >= 0xFFFF)
+        throw new IllegalArgumentException("Too many keys");
+    }
+
+    void add(KeyValue kv)
+    {
+      if (kv == null || _refs.containsKey(kv))
+        return;
+      keys.add(kv);
+      _refs.put(kv, keys.size());
+    }
+
+    int ref(KeyValue kv)
+    {
+      return (kv == null) ? 0 : _refs.get(kv);
+    }
+  }
+}
@@ -4,6 +4,7 @@ import android.content.res.Resources;
 import android.view.KeyEvent;
 import java.util.TreeMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.Set;
 
@@ -15,6 +16,20 @@ public final class LayoutModifier
   static KeyboardData.Row number_row_symbols;
   static KeyboardData num_pad;
 
+  /** Number of modified layouts kept in [_cache]. Enough for a few layouts
+      with several action labels. */
+  static final int CACHE_SIZE = 12;
+  /** Results of [modify_layout], least recently used first. Only accessed
+      from the main thread. */
+  static final LinkedHashMap<CacheKey, KeyboardData> _cache =
+    new LinkedHashMap<CacheKey, KeyboardData>(CACHE_SIZE * 2, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<CacheKey, KeyboardData> e)
+      {
+        return size() > CACHE_SIZE;
+      }
+    };
+
   /** Update the layout according to the configuration.
    *  - Remove the switching key if it isn't needed
    *  - Remove "localized" keys from other locales (not in 'extra_keys')
@@ -22,8 +37,22 @@ public final class LayoutModifier
    *  - Swap the enter and action keys
    *  - Add the optional numpad and number row
    *  - Add the extra keys
+   *  The result is cached until the layout or the relevant parts of the
+   *  config change, see [CacheKey].
    */
   public static KeyboardData modify_layout(KeyboardData kw)
+  {
+    CacheKey key = new CacheKey(kw, globalConfig);
+    KeyboardData modified = _cache.get(key);
+    if (modified == null)
+    {
+      modified = modify_layout_uncached(kw);
+      _cache.put(key, modified);
+    }
+    return modified;
+  }
+
+  static KeyboardData modify_layout_uncached(KeyboardData kw)
   {
     // Extra keys are removed from the set as they are encountered during the
     // first iteration then automatically added.
@@ -203,6 +232,7 @@ public final class LayoutModifier
   public static void init(Config globalConfig_, Resources res)
   {
     globalConfig = globalConfig_;
+    _cache.clear();
     try
     {
       number_row_no_symbols = KeyboardData.load_row(res, R.xml.number_row_no_symbols);
@@ -215,4 +245,79 @@ public final class LayoutModifier
       throw new RuntimeException(e.getMessage()); // Not recoverable
     }
   }
+
+  /** The inputs of [modify_layout]: the layout, compared by identity, and
+      the config fields that are used. The config maps are compared by value
+      as they are re-created on every [Config.refresh]. */
+  static final class CacheKey
+  {
+    static final int SHOW_NUMPAD = 1;
+    static final int ADD_NUMBER_ROW = 1 << 1;
+    static final int NUMBER_ROW_SYMBOLS = 1 << 2;
+    static final int INVERSE_NUMPAD = 1 << 3;
+    static final int SWITCH_INPUT_IMMEDIATE = 1 << 4;
+    static final int SWAP_ENTER_ACTION = 1 << 5;
+    static final int VOICE_TYPING = 1 << 6;
+    /** The number of layouts matters up to 3, see [modify_key]. */
+    static final int LAYOUTS_COUNT_SHIFT = 7;
+
+    final KeyboardData layout;
+    final int flags;
+    final String action_label;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_param;
+    final Map<KeyValue, KeyboardData.PreferredPos> extra_keys_custom;
+    final ExtraKeys extra_keys_subtype;
+    final int _hash;
+
+    CacheKey(KeyboardData kw, Config conf)
+    {
+      layout = kw;
+      flags = (conf.show_numpad ? SHOW_NUMPAD : 0)
+        | (conf.add_number_row ? ADD_NUMBER_ROW : 0)
+        | (conf.number_row_symbols ? NUMBER_ROW_SYMBOLS : 0)
+        | (conf.inverse_numpad ? INVERSE_NUMPAD : 0)
+        | (conf.switch_input_immediate ? SWITCH_INPUT_IMMEDIATE : 0)
+        | (conf.swapEnterActionKey ? SWAP_ENTER_ACTION : 0)
+        | (conf.shouldOfferVoiceTyping ? VOICE_TYPING : 0)
+        | (Math.min(conf.layouts.size(), 3) << LAYOUTS_COUNT_SHIFT);
+      action_label = conf.actionLabel;
+      extra_keys_param = conf.extra_keys_param;
+      extra_keys_custom = conf.extra_keys_custom;
+      extra_keys_subtype = conf.extra_keys_subtype;
+      int h = System.identityHashCode(kw) * 31 + flags;
+      h = h * 31 + (action_label == null ? 0 : action_label.hashCode());
+      h = h * 31 + hash(extra_keys_param);
+      h = h * 31 + hash(extra_keys_custom);
+      _hash = h * 31 + hash(extra_keys_subtype);
+    }
+
+    @Override
+    public boolean equals(Object obj)
+    {
+      if (!(obj instanceof CacheKey))
+        return false;
+      CacheKey k = (CacheKey)obj;
+      return layout == k.layout && flags == k.flags && _hash == k._hash
+        && same(action_label, k.action_label)
+        && same(extra_keys_param, k.extra_keys_param)
+        && same(extra_keys_custom, k.extra_keys_custom)
+        && same(extra_keys_subtype, k.extra_keys_subtype);
+    }
+
+    @Override
+    public int hashCode()
+    {
+      return _hash;
+    }
+
+    static int hash(Object o)
+    {
+      return (o == null) ? 0 : o.hashCode();
+    }
+
+    static boolean same(Object a, Object b)
+    {
+      return (a == b) || (a != null && a.equals(b));
+    }
+  }
 }
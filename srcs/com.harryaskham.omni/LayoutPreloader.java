@@ -0,0 +1,103 @@
+package com.harryaskham.omni;
+
+import android.app.ActivityManager;
+import android.content.ComponentCallbacks2;
+import android.content.Context;
+import android.content.res.Resources;
+import android.os.Looper;
+import android.os.MessageQueue;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** Prepare the layouts before they are needed and size the layout caches
+    to the device's memory. The caches are [KeyboardData.load] and
+    [LayoutModifier.modify_layout]. */
+public final class LayoutPreloader
+{
+  static final long CACHE_BYTES = 256 * 1024;
+  static final long LOW_RAM_CACHE_BYTES = 64 * 1024;
+  /** Layouts that are loaded when an editor or a key requires them. The
+      enabled layouts are loaded by [Config.refresh]. */
+  static final int[] SPECIAL_LAYOUTS =
+    new int[]{ R.xml.numeric, R.xml.pin, R.xml.greekmath };
+  /** Number of layouts following the current one that are modified in
+      advance by [prepare_on_idle]. */
+  static final int PREPARED_LAYOUTS = LayoutModifier.CACHE_SIZE / 3;
+
+  static ExecutorService _loader = null;
+  static boolean _prepare_pending = false;
+
+  private LayoutPreloader() {}
+
+  /** Size the caches and start loading the special layouts in the
+      background. Called from [onCreate]. */
+  public static void init(Context ctx)
+  {
+    ActivityManager am =
+      (ActivityManager)ctx.getSystemService(Context.ACTIVITY_SERVICE);
+    boolean low_ram = (am != null && am.isLowRamDevice());
+    KeyboardData.set_layout_cache_limit(
+        low_ram ? LOW_RAM_CACHE_BYTES : CACHE_BYTES);
+    preload(ctx.getResources());
+  }
+
+  static synchronized void preload(final Resources res)
+  {
+    if (_loader == null)
+      _loader = Executors.newSingleThreadExecutor();
+    _loader.execute(() -> {
+      for (int id : SPECIAL_LAYOUTS)
+        KeyboardData.load(res, id);
+    });
+  }
+
+  /** Modify the layouts that are likely to be switched to next, one per
+      idle period of the main thread. The config used is the one of the
+      current editor, call this after [onStartInputView]. Must be called from
+      the main thread. */
+  public static void prepare_on_idle()
+  {
+    if (_prepare_pending)
+      return;
+    _prepare_pending = true;
+    Looper.myQueue().addIdleHandler(new MessageQueue.IdleHandler() {
+      int _next = 1;
+
+      @Override
+      public boolean queueIdle()
+      {
+        Config conf = Config.globalConfig();
+        List<KeyboardData> layouts = conf.layouts;
+        int n = Math.min(layouts.size(), PREPARED_LAYOUTS + 1);
+        if (_next >= n)
+        {
+          _prepare_pending = false;
+          return false;
+        }
+        int i = (conf.get_current_layout() + _next) % layouts.size();
+        _next++;
+        KeyboardData kw = layouts.get(i);
+        if (kw != null)
+          LayoutModifier.modify_layout(kw);
+        return true;
+      }
+    });
+  }
+
+  /** Called from [onTrimMemory]. The caches are emptied when the system is
+      short on memory and halved when memory is getting low. Nothing is
+      dropped when only the UI is hidden, the keyboard is hidden often. */
+  public static void trim_memory(int level)
+  {
+    if (level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+    {
+      KeyboardData.trim_layout_cache(0);
+      LayoutModifier._cache.clear();
+    }
+    else if (level == ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+        || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+      KeyboardData.trim_layout_cache(KeyboardData._layoutCacheMaxBytes / 2);
+  }
+}
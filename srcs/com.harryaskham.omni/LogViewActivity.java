@@ -6,6 +6,7 @@ import android.content.ClipboardManager;
 import android.content.Context;
 import android.content.Intent;
 import android.graphics.Typeface;
+import android.net.Uri;
 import android.os.Bundle;
 import android.view.View;
 import android.widget.Button;
@@ -13,6 +14,7 @@ import android.widget.LinearLayout;
 import android.widget.ScrollView;
 import android.widget.TextView;
 import android.widget.Toast;
+import java.io.OutputStream;
 
 /**
  * In-app, copyable view of Omni's recent log buffer (see {@link Logs}) so the
@@ -21,6 +23,8 @@ import android.widget.Toast;
  */
 public class LogViewActivity extends Activity
 {
+  private static final int REQUEST_EXPORT_TRACE = 1;
+
   private TextView _logView;
 
   @Override
@@ -38,6 +42,7 @@ public class LogViewActivity extends Activity
     buttons.addView(button("Share", v -> shareLogs()), equalWeight());
     buttons.addView(button("Refresh", v -> loadLogs()), equalWeight());
     buttons.addView(button("Clear", v -> { Logs.clearBuffer(); loadLogs(); }), equalWeight());
+    buttons.addView(button("Trace", v -> exportTrace()), equalWeight());
     root.addView(buttons);
 
     _logView = new TextView(this);
@@ -77,7 +82,12 @@ public class LogViewActivity extends Activity
   private void loadLogs()
   {
     String logs = Logs.getRecentLogsText();
-    _logView.setText(logs.isEmpty() ? "(no logs captured yet)" : logs);
+    if (logs.isEmpty())
+      logs = "(no logs captured yet)";
+    // Touch-to-commit latency, when tracing is enabled in the settings.
+    if (LatencyTrace.is_enabled() || LatencyTrace.size() > 0)
+      logs = LatencyTrace.summary() + "\n" + logs;
+    _logView.setText(logs);
   }
 
   private void copyLogs()
@@ -98,4 +108,43 @@ public class LogViewActivity extends Activity
     i.putExtra(Intent.EXTRA_TEXT, Logs.getRecentLogsText());
     startActivity(Intent.createChooser(i, "Share Omni logs"));
   }
+
+  /** Save the binary input trace (see {@link EventTrace}) to a file chosen
+      by the user. */
+  private void exportTrace()
+  {
+    EventTrace.flush();
+    Intent i = new Intent(Intent.ACTION_CREATE_DOCUMENT);
+    i.addCategory(Intent.CATEGORY_OPENABLE);
+    i.setType("application/octet-stream");
+    i.putExtra(Intent.EXTRA_TITLE, EventTrace.FILE_NAME);
+    startActivityForResult(i, REQUEST_EXPORT_TRACE);
+  }
+
+  @Override
+  protected void onActivityResult(int requestCode, int resultCode, Intent data)
+  {
+    super.onActivityResult(requestCode, resultCode, data);
+    if (requestCode != REQUEST_EXPORT_TRACE || resultCode != RESULT_OK
+        || data == null || data.getData() == null)
+      return;
+    Uri uri = data.getData();
+    // Waits for the pending blocks to be written.
+    new Thread(() -> {
+      String msg;
+      try (OutputStream out = getContentResolver().openOutputStream(uri))
+      {
+        byte[] trace = EventTrace.read_file(this);
+        out.write(trace);
+        msg = "Exported " + (trace.length / 1024) + " KB of input trace";
+      }
+      catch (Exception e)
+      {
+        Logs.exn("Exporting the input trace", e);
+        msg = "Export failed: " + e.getMessage();
+      }
+      final String toast = msg;
+      runOnUiThread(() -> Toast.makeText(this, toast, Toast.LENGTH_SHORT).show());
+    }).start();
+  }
 }
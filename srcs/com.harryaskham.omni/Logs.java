@@ -4,9 +4,10 @@ import android.util.Log;
 import android.util.LogPrinter;
 import android.view.inputmethod.EditorInfo;
 import java.text.SimpleDateFormat;
-import java.util.ArrayDeque;
 import java.util.Date;
 import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public final class Logs
 {
@@ -17,64 +18,161 @@ public final class Logs
    * LogViewActivity so the operator can copy logs to file bug reports without
    * adb logcat. Always captures (independent of the debug-log toggle) so there
    * is something to copy when something goes wrong.
+   *
+   * Slots are preallocated and store the raw timestamp, level, tag and message
+   * references. A writer claims a slot with a single atomic increment of
+   * [_next], formatting is deferred to [getRecentLogsText]. [_seqs] holds the
+   * sequence number of the line stored in each slot, [-1] while it's being
+   * written, which lets readers skip slots overwritten during a snapshot.
    */
-  private static final int BUFFER_CAPACITY = 600;
-  private static final ArrayDeque<String> _buffer = new ArrayDeque<>(BUFFER_CAPACITY);
-  private static final SimpleDateFormat _ts =
-    new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+  static final int BUFFER_CAPACITY = 1024;
+  static final int BUFFER_MASK = BUFFER_CAPACITY - 1;
+  static final long[] _times = new long[BUFFER_CAPACITY];
+  static final char[] _levels = new char[BUFFER_CAPACITY];
+  static final String[] _tags = new String[BUFFER_CAPACITY];
+  static final String[] _msgs = new String[BUFFER_CAPACITY];
+  static final AtomicLongArray _seqs = new AtomicLongArray(BUFFER_CAPACITY);
+  /** Sequence number of the next line, the number of lines ever recorded. */
+  static final AtomicLong _next = new AtomicLong();
+  /** Lines before this sequence number have been cleared. */
+  static volatile long _cleared = 0;
 
   static LogPrinter _debug_logs = null;
 
+  /** Log levels. Messages above [MAX_LEVEL] are not compiled in. */
+  public static final int LEVEL_WARN = 1;
+  public static final int LEVEL_INFO = 2;
+  public static final int LEVEL_DEBUG = 3;
+  public static final int MAX_LEVEL =
+    BuildConfig.DEBUG ? LEVEL_DEBUG : LEVEL_INFO;
+
+  /** Debug logs in hot paths must be guarded with:
+        if (Logs.DEBUG && Logs.on(subsystem))
+      This is a constant, the compiler removes the whole block, including
+      building the message, from release builds. */
+  public static final boolean DEBUG = MAX_LEVEL >= LEVEL_DEBUG;
+
+  /** Subsystems, for which the debug logs can be toggled at runtime. */
+  public static final int INPUT = 1; // Text and key events sent to the editor
+  public static final int KEYS = 1 << 1; // Parsing key names
+  public static final int TOUCH = 1 << 2; // Floating keyboard touch handling
+  public static final int ALL_SUBSYSTEMS = INPUT | KEYS | TOUCH;
+  static final String[] SUBSYSTEM_TAGS = { "OmniInput", "OmniKeys", "OmniTouch" };
+  static int _subsystems = ALL_SUBSYSTEMS;
+
   public static void set_debug_logs(boolean d)
   {
     _debug_logs = d ? new LogPrinter(Log.DEBUG, TAG) : null;
   }
 
-  private static void record(String level, String tag, String msg)
+  /** Enable the debug logs of some subsystems only, when debug logs are
+      enabled with [set_debug_logs]. Has no effect in release builds. */
+  public static void set_subsystems(int subsystems)
   {
-    String line = _ts.format(new Date()) + " " + level + "/" + tag + ": " + msg;
-    synchronized (_buffer)
-    {
-      while (_buffer.size() >= BUFFER_CAPACITY)
-        _buffer.pollFirst();
-      _buffer.addLast(line);
-    }
+    _subsystems = subsystems & ALL_SUBSYSTEMS;
+  }
+
+  /** Whether debug logs for [subsystem] are enabled. */
+  public static boolean on(int subsystem)
+  {
+    return DEBUG && _debug_logs != null && (_subsystems & subsystem) != 0;
+  }
+
+  /** Debug log for [subsystem]. The call must be guarded, see [DEBUG]. */
+  public static void d(int subsystem, String msg)
+  {
+    String tag = subsystem_tag(subsystem);
+    Log.d(tag, msg);
+    record('D', tag, msg);
+  }
+
+  /** Build a log message only if it's going to be used. */
+  public interface Message
+  {
+    public String get();
+  }
+
+  /** Debug log for [subsystem] that doesn't need to be guarded. Only for
+      paths that are not hot, as the message object is allocated anyway. */
+  public static void d(int subsystem, Message msg)
+  {
+    if (DEBUG && on(subsystem))
+      d(subsystem, msg.get());
+  }
+
+  static String subsystem_tag(int subsystem)
+  {
+    int i = Integer.numberOfTrailingZeros(subsystem);
+    return (i < SUBSYSTEM_TAGS.length) ? SUBSYSTEM_TAGS[i] : TAG;
+  }
+
+  static void record(char level, String tag, String msg)
+  {
+    long seq = _next.getAndIncrement();
+    int i = (int)seq & BUFFER_MASK;
+    _seqs.set(i, -1);
+    _times[i] = System.currentTimeMillis();
+    _levels[i] = level;
+    _tags[i] = tag;
+    _msgs[i] = msg;
+    _seqs.set(i, seq);
   }
 
   /** General info log: records to the buffer and emits to logcat. */
   public static void log(String tag, String msg)
   {
     Log.i(tag, msg);
-    record("I", tag, msg);
+    record('I', tag, msg);
   }
 
   /** Warning log: records to the buffer and emits to logcat. */
   public static void warn(String tag, String msg)
   {
     Log.w(tag, msg);
-    record("W", tag, msg);
+    record('W', tag, msg);
   }
 
-  /** Snapshot of the recent log buffer, oldest first, newline-joined. */
+  /** Snapshot of the recent log buffer, oldest first, newline-joined. Lines
+      overwritten while the snapshot is taken are skipped. */
   public static String getRecentLogsText()
   {
+    SimpleDateFormat ts = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    Date date = new Date();
     StringBuilder sb = new StringBuilder();
-    synchronized (_buffer)
+    long end = _next.get();
+    for (long seq = first_buffered(end); seq < end; seq++)
     {
-      for (String line : _buffer)
-        sb.append(line).append('\n');
+      int i = (int)seq & BUFFER_MASK;
+      if (_seqs.get(i) != seq)
+        continue;
+      long time = _times[i];
+      char level = _levels[i];
+      String tag = _tags[i];
+      String msg = _msgs[i];
+      if (_seqs.get(i) != seq)
+        continue;
+      date.setTime(time);
+      sb.append(ts.format(date)).append(' ').append(level).append('/')
+        .append(tag).append(": ").append(msg).append('\n');
     }
     return sb.toString();
   }
 
   public static int bufferedLineCount()
   {
-    synchronized (_buffer) { return _buffer.size(); }
+    long end = _next.get();
+    return (int)(end - first_buffered(end));
+  }
+
+  /** Sequence number of the oldest line still in the buffer. */
+  static long first_buffered(long end)
+  {
+    return Math.max(_cleared, end - BUFFER_CAPACITY);
   }
 
   public static void clearBuffer()
   {
-    synchronized (_buffer) { _buffer.clear(); }
+    _cleared = _next.get();
   }
 
   public static void debug_startup_input_view(EditorInfo info, Config conf)
@@ -95,14 +193,14 @@ public final class Logs
 
   public static void debug(String s)
   {
-    record("D", TAG, s);
+    record('D', TAG, s);
     if (_debug_logs != null)
       _debug_logs.println(s);
   }
 
   public static void exn(String msg, Exception e)
   {
-    record("E", TAG, msg + ": " + e);
+    record('E', TAG, msg + ": " + e);
     Log.e(TAG, msg, e);
   }
 
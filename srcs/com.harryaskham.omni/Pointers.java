@@ -2,6 +2,7 @@ package com.harryaskham.omni;
 
 import android.os.Handler;
 import android.os.Message;
+import android.os.SystemClock;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -25,9 +26,35 @@ public final class Pointers implements Handler.Callback
   public static final int FLAG_P_CANT_LOCK = (1 << 7);
 
   private Handler _longpress_handler;
+  /** Long press and key repeat deadlines of the pointers, in
+      [SystemClock.uptimeMillis] time. A single message is posted to
+      [_longpress_handler] for the earliest deadline. */
+  private final TimeoutHeap _timeouts = new TimeoutHeap();
+  /** Deadline of the message posted to [_longpress_handler], [-1] if none. */
+  private long _posted_deadline = -1;
+  static final int MSG_TIMEOUT = 0;
+  /** Key repeat accelerates linearly from [longPressInterval] to
+      [longPressInterval / REPEAT_MAX_SPEEDUP] over [REPEAT_ACCEL_STEPS]
+      repeats. */
+  static final int REPEAT_ACCEL_STEPS = 20;
+  static final int REPEAT_MAX_SPEEDUP = 2;
   private ArrayList<Pointer> _ptrs = new ArrayList<Pointer>();
+  /** Pointers that are down indexed by their ID, a subset of [_ptrs].
+      Latched and fake pointers have no ID and are not in this table. */
+  private final Pointer[] _ptrs_by_id = new Pointer[MAX_POINTER_ID];
+  /** Pointers that are no longer used, ready to be reused. */
+  private final ArrayList<Pointer> _free_ptrs = new ArrayList<Pointer>();
+  /** Pointer IDs given by [MotionEvent] are small integers. Greater IDs are
+      looked up in [_ptrs]. */
+  static final int MAX_POINTER_ID = 32;
+  static final int MAX_FREE_PTRS = 8;
   private IPointerEventHandler _handler;
   private Config _config;
+  /** Source of [SystemClock.uptimeMillis] time, replaced by tests. */
+  Clock _clock = SYSTEM_CLOCK;
+  /** Scratch buffer for [getModifiers]. The resulting [Modifiers] object
+      doesn't keep a reference to it. */
+  private KeyValue[] _mods_scratch = new KeyValue[8];
 
   public Pointers(IPointerEventHandler h, Config c)
   {
@@ -46,7 +73,9 @@ public final class Pointers implements Handler.Callback
   private Modifiers getModifiers(boolean skip_latched)
   {
     int n_ptrs = _ptrs.size();
-    KeyValue[] mods = new KeyValue[n_ptrs];
+    if (_mods_scratch.length < n_ptrs)
+      _mods_scratch = new KeyValue[n_ptrs * 2];
+    KeyValue[] mods = _mods_scratch;
     int n_mods = 0;
     for (int i = 0; i < n_ptrs; i++)
     {
@@ -69,23 +98,48 @@ public final class Pointers implements Handler.Callback
         _handler.onPointerUp(p.value, getModifiers());
       }
     }
+    for (Pointer p : _ptrs)
+      recycle(p);
     _ptrs.clear();
+    Arrays.fill(_ptrs_by_id, null);
   }
 
   public boolean isKeyDown(KeyboardData.Key k)
   {
-    for (Pointer p : _ptrs)
-      if (p.key == k)
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).key == k)
         return true;
     return false;
   }
 
+  /** Number of pointers, including latched and fake pointers. Used with
+      [getPointerKey] and [getPointerFlags] to enumerate the pressed keys
+      without scanning the pointers for every keys. */
+  public int getPointerCount()
+  {
+    return _ptrs.size();
+  }
+
+  public KeyboardData.Key getPointerKey(int i)
+  {
+    return _ptrs.get(i).key;
+  }
+
+  /** See [FLAG_P_*] flags. */
+  public int getPointerFlags(int i)
+  {
+    return _ptrs.get(i).flags;
+  }
+
   /** See [FLAG_P_*] flags. Returns [-1] if the key is not pressed. */
   public int getKeyFlags(KeyValue kv)
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.value != null && p.value.equals(kv))
         return p.flags;
+    }
     return -1;
   }
 
@@ -95,8 +149,8 @@ public final class Pointers implements Handler.Callback
     int flags = pointer_flags_of_kv(kv) | FLAG_P_FAKE | FLAG_P_LATCHED;
     if (locked)
       flags |= FLAG_P_LOCKED;
-    Pointer ptr = new Pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags);
-    _ptrs.add(ptr);
+    Pointer ptr = obtain_pointer(-1, key, kv, 0.f, 0.f, Modifiers.EMPTY, flags);
+    addPtr(ptr);
     _handler.onPointerFlagsChanged(false);
   }
 
@@ -143,6 +197,7 @@ public final class Pointers implements Handler.Callback
 
   public void onTouchUp(int pointerId)
   {
+    EventTrace.touch_up(pointerId, _clock.uptimeMillis());
     Pointer ptr = getPtr(pointerId);
     if (ptr == null)
       return;
@@ -153,7 +208,9 @@ public final class Pointers implements Handler.Callback
       return;
     }
     stopLongPress(ptr);
+    // [ptr] is recycled by [removePtr].
     KeyValue ptr_value = ptr.value;
+    Modifiers ptr_mods = ptr.modifiers;
     if (ptr.gesture != null && ptr.gesture.is_in_progress())
     {
       // A gesture was in progress
@@ -169,7 +226,7 @@ public final class Pointers implements Handler.Callback
       else // Otherwise, unlatch
       {
         removePtr(latched);
-        _handler.onPointerUp(ptr_value, ptr.modifiers);
+        _handler.onPointerUp(ptr_value, ptr_mods);
       }
     }
     else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
@@ -178,6 +235,7 @@ public final class Pointers implements Handler.Callback
       if ((ptr.flags & FLAG_P_CLEAR_LATCHED) != 0)
         clearLatched();
       ptr.flags |= FLAG_P_LATCHED;
+      unindexPtr(ptr);
       ptr.pointerId = -1;
       _handler.onPointerFlagsChanged(false);
     }
@@ -185,12 +243,25 @@ public final class Pointers implements Handler.Callback
     {
       clearLatched();
       removePtr(ptr);
-      _handler.onPointerUp(ptr_value, ptr.modifiers);
+      _handler.onPointerUp(ptr_value, ptr_mods);
+    }
+  }
+
+  /** Every samples of a move event have been passed to [onTouchMove]. The
+      movements of the sliders are sent at once. */
+  public void onTouchMoveDone()
+  {
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer ptr = _ptrs.get(i);
+      if (ptr.sliding != null)
+        ptr.sliding.flush(ptr);
     }
   }
 
   public void onTouchCancel()
   {
+    EventTrace.touch_cancel(_clock.uptimeMillis());
     clear();
     _handler.onPointerFlagsChanged(true);
   }
@@ -198,15 +269,19 @@ public final class Pointers implements Handler.Callback
   /* Whether an other pointer is down on a non-special key. */
   private boolean isOtherPointerDown()
   {
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (!p.hasFlagsAny(FLAG_P_LATCHED) &&
           (p.value == null || !p.value.hasFlagsAny(KeyValue.FLAG_SPECIAL)))
         return true;
+    }
     return false;
   }
 
   public void onTouchDown(float x, float y, int pointerId, KeyboardData.Key key)
   {
+    EventTrace.touch_down(pointerId, x, y, _clock.uptimeMillis());
     // Ignore new presses while a sliding key is active. On some devices, ghost
     // touch events can happen while the pointer travels on top of other keys.
     if (isSliding())
@@ -216,7 +291,7 @@ public final class Pointers implements Handler.Callback
     Modifiers mods = getModifiers(isOtherPointerDown());
     KeyValue value = _handler.modifyKey(key.keys[0], mods);
     Pointer ptr = make_pointer(pointerId, key, value, x, y, mods);
-    _ptrs.add(ptr);
+    addPtr(ptr);
     startLongPress(ptr);
     _handler.onPointerDown(value, false);
   }
@@ -234,6 +309,16 @@ public final class Pointers implements Handler.Callback
     return k.keys[DIRECTION_TO_INDEX[direction]];
   }
 
+  /** Direction of the vector [dx, dy]. See [getKeyAtDirection()] for the
+      meaning. The starting point on the circle is the top direction. */
+  static int direction_of(float dx, float dy)
+  {
+    double a = Math.atan2(dy, dx) + Math.PI;
+    // a is between 0 and 2pi, 0 is pointing to the left
+    // add 12 to align 0 to the top
+    return ((int)(a * 8 / Math.PI) + 12) % 16;
+  }
+
   /**
    * Get the key nearest to [direction] that is not key0. Take care
    * of applying [_handler.modifyKey] to the selected key in the same
@@ -266,14 +351,17 @@ public final class Pointers implements Handler.Callback
     return null;
   }
 
-  public void onTouchMove(float x, float y, int pointerId)
+  /** [time] is the time of the sample in [SystemClock.uptimeMillis] time
+      base, as given by [MotionEvent.getEventTime]. */
+  public void onTouchMove(float x, float y, int pointerId, long time)
   {
     Pointer ptr = getPtr(pointerId);
     if (ptr == null)
       return;
+    EventTrace.touch_move(pointerId, x, y, time);
     if (ptr.hasFlagsAny(FLAG_P_SLIDING))
     {
-      ptr.sliding.onTouchMove(ptr, x, y);
+      ptr.sliding.onTouchMove(ptr, x, y, time);
       return;
     }
 
@@ -297,16 +385,11 @@ public final class Pointers implements Handler.Callback
     }
     else
     { // Pointer is on a quadrant.
-      // See [getKeyAtDirection()] for the meaning. The starting point on the
-      // circle is the top direction.
-      double a = Math.atan2(dy, dx) + Math.PI;
-      // a is between 0 and 2pi, 0 is pointing to the left
-      // add 12 to align 0 to the top
-      int direction = ((int)(a * 8 / Math.PI) + 12) % 16;
+      int direction = direction_of(dx, dy);
       if (ptr.gesture == null)
       { // Gesture starts
 
-        ptr.gesture = new Gesture(direction);
+        ptr.gesture = obtain_gesture(ptr, direction);
         KeyValue new_value = getNearestKeyAtDirection(ptr, direction);
         if (new_value != null)
         { // Pointer is swiping into a side key.
@@ -341,15 +424,36 @@ public final class Pointers implements Handler.Callback
 
   private Pointer getPtr(int pointerId)
   {
+    if (pointerId >= 0 && pointerId < MAX_POINTER_ID)
+      return _ptrs_by_id[pointerId];
     for (Pointer p : _ptrs)
       if (p.pointerId == pointerId)
         return p;
     return null;
   }
 
+  private void addPtr(Pointer ptr)
+  {
+    _ptrs.add(ptr);
+    int id = ptr.pointerId;
+    if (id >= 0 && id < MAX_POINTER_ID)
+      _ptrs_by_id[id] = ptr;
+  }
+
+  /** Remove the pointer from [_ptrs_by_id] only. */
+  private void unindexPtr(Pointer ptr)
+  {
+    int id = ptr.pointerId;
+    if (id >= 0 && id < MAX_POINTER_ID && _ptrs_by_id[id] == ptr)
+      _ptrs_by_id[id] = null;
+  }
+
+  /** [ptr] must not be used after this call. */
   private void removePtr(Pointer ptr)
   {
     _ptrs.remove(ptr);
+    unindexPtr(ptr);
+    recycle(ptr);
   }
 
   private Pointer getLatched(Pointer target)
@@ -361,10 +465,13 @@ public final class Pointers implements Handler.Callback
   {
     if (v == null)
       return null;
-    for (Pointer p : _ptrs)
+    for (int i = 0; i < _ptrs.size(); i++)
+    {
+      Pointer p = _ptrs.get(i);
       if (p.key == k && p.hasFlagsAny(FLAG_P_LATCHED)
           && p.value != null && p.value.equals(v))
         return p;
+    }
     return null;
   }
 
@@ -375,7 +482,7 @@ public final class Pointers implements Handler.Callback
       Pointer ptr = _ptrs.get(i);
       // Latched and not locked, remove
       if (ptr.hasFlagsAny(FLAG_P_LATCHED) && (ptr.flags & FLAG_P_LOCKED) == 0)
-        _ptrs.remove(i);
+        removePtr(ptr);
       // Not latched but pressed, don't latch once released and stop long press.
       else if ((ptr.flags & FLAG_P_LATCHABLE) != 0)
         ptr.flags &= ~FLAG_P_LATCHABLE;
@@ -391,41 +498,87 @@ public final class Pointers implements Handler.Callback
 
   boolean isSliding()
   {
-    for (Pointer ptr : _ptrs)
-      if (ptr.hasFlagsAny(FLAG_P_SLIDING))
+    for (int i = 0; i < _ptrs.size(); i++)
+      if (_ptrs.get(i).hasFlagsAny(FLAG_P_SLIDING))
         return true;
     return false;
   }
 
   // Key repeat
 
-  /** Message from [_longpress_handler]. */
+  /** Message from [_longpress_handler]. Handles every expired deadlines. */
   @Override
   public boolean handleMessage(Message msg)
   {
-    for (Pointer ptr : _ptrs)
+    if (msg.what != MSG_TIMEOUT)
+      return false;
+    _posted_deadline = -1;
+    long now = _clock.uptimeMillis();
+    TimeoutHeap.Entry e;
+    while ((e = _timeouts.pollExpired(now)) != null)
+      handleLongPress((Pointer)e);
+    post_next_timeout();
+    return true;
+  }
+
+  /** Earliest long press or key repeat deadline, [-1] if none. Tests call
+      [handleMessage] at that time instead of waiting for the message. */
+  long next_timeout()
+  {
+    TimeoutHeap.Entry e = _timeouts.peek();
+    return (e == null) ? -1 : e.deadline;
+  }
+
+  /** Make sure a message is posted for the earliest deadline. When the
+      earliest deadline is cancelled, the message is left posted and is
+      ignored when it arrives. */
+  private void post_next_timeout()
+  {
+    TimeoutHeap.Entry e = _timeouts.peek();
+    if (e == null || e.deadline == _posted_deadline)
+      return;
+    if (_posted_deadline != -1)
     {
-      if (ptr.timeoutWhat == msg.what)
-      {
-        handleLongPress(ptr);
-        return true;
-      }
+      if (_posted_deadline <= e.deadline)
+        return; // The posted message will repost when it arrives.
+      _longpress_handler.removeMessages(MSG_TIMEOUT);
     }
-    return false;
+    _posted_deadline = e.deadline;
+    _longpress_handler.sendEmptyMessageAtTime(MSG_TIMEOUT, e.deadline);
   }
 
-  private static int uniqueTimeoutWhat = 0;
-
   private void startLongPress(Pointer ptr)
   {
-    int what = (uniqueTimeoutWhat++);
-    ptr.timeoutWhat = what;
-    _longpress_handler.sendEmptyMessageDelayed(what, _config.longPressTimeout);
+    ptr.repeat_count = 0;
+    _timeouts.schedule(ptr, _clock.uptimeMillis() + _config.longPressTimeout);
+    post_next_timeout();
   }
 
   private void stopLongPress(Pointer ptr)
   {
-    _longpress_handler.removeMessages(ptr.timeoutWhat);
+    _timeouts.cancel(ptr);
+  }
+
+  /** Schedule the next key repeat relative to the previous deadline rather
+      than to the current time, so that a late message doesn't delay every
+      following repeats. Repeats that were missed are skipped. */
+  private void scheduleRepeat(Pointer ptr)
+  {
+    long now = _clock.uptimeMillis();
+    long interval = repeat_interval(_config.longPressInterval, ptr.repeat_count++);
+    long next = ptr.deadline + interval;
+    if (next <= now)
+      next = now + interval;
+    _timeouts.schedule(ptr, next);
+  }
+
+  /** Interval before the [n]th key repeat. */
+  static long repeat_interval(long interval, int n)
+  {
+    long min_interval = interval / REPEAT_MAX_SPEEDUP;
+    if (n >= REPEAT_ACCEL_STEPS)
+      return min_interval;
+    return interval - (interval - min_interval) * n / REPEAT_ACCEL_STEPS;
   }
 
   private void restartLongPress(Pointer ptr)
@@ -462,8 +615,7 @@ public final class Pointers implements Handler.Callback
     if (_config.keyrepeat_enabled)
     {
       _handler.onPointerHold(kv, ptr.modifiers);
-      _longpress_handler.sendEmptyMessageDelayed(ptr.timeoutWhat,
-          _config.longPressInterval);
+      scheduleRepeat(ptr);
     }
   }
 
@@ -478,7 +630,11 @@ public final class Pointers implements Handler.Callback
     int diry = dy < 0 ? -r : r;
     stopLongPress(ptr);
     ptr.flags |= FLAG_P_SLIDING;
-    ptr.sliding = new Sliding(x, y, dirx, diry, kv.getSlider());
+    Sliding sliding = ptr.recycled_sliding;
+    if (sliding == null)
+      sliding = new Sliding();
+    sliding.init(x, y, dirx, diry, kv.getSlider());
+    ptr.sliding = sliding;
     _handler.onPointerDown(kv, true);
   }
 
@@ -540,15 +696,60 @@ public final class Pointers implements Handler.Callback
       Modifiers m)
   {
     int flags = (v == null) ? 0 : pointer_flags_of_kv(v);
-    return new Pointer(p, k, v, x, y, m, flags);
+    return obtain_pointer(p, k, v, x, y, m, flags);
+  }
+
+  /** Reuse a pointer from [_free_ptrs] if possible. */
+  Pointer obtain_pointer(int p, KeyboardData.Key k, KeyValue v, float x,
+      float y, Modifiers m, int f)
+  {
+    int n_free = _free_ptrs.size();
+    Pointer ptr = (n_free > 0) ? _free_ptrs.remove(n_free - 1) : new Pointer();
+    // A key repeat might have been scheduled after it was recycled.
+    _timeouts.cancel(ptr);
+    ptr.init(p, k, v, x, y, m, f);
+    return ptr;
+  }
+
+  /** Reuse the [Gesture] object of a previous use of [ptr] if possible. */
+  static Gesture obtain_gesture(Pointer ptr, int direction)
+  {
+    Gesture g = ptr.recycled_gesture;
+    if (g == null)
+      return new Gesture(direction);
+    ptr.recycled_gesture = null;
+    g.start(direction);
+    return g;
   }
 
-  private static final class Pointer
+  /** Make [ptr] available for reuse. Its [Sliding] and [Gesture] objects are
+      kept for the next time the pointer slides or swipes. */
+  void recycle(Pointer ptr)
+  {
+    stopLongPress(ptr);
+    if (ptr.sliding != null)
+    {
+      ptr.recycled_sliding = ptr.sliding;
+      ptr.sliding = null;
+    }
+    if (ptr.gesture != null)
+    {
+      ptr.recycled_gesture = ptr.gesture;
+      ptr.gesture = null;
+    }
+    ptr.key = null;
+    ptr.value = null;
+    ptr.modifiers = null;
+    if (_free_ptrs.size() < MAX_FREE_PTRS)
+      _free_ptrs.add(ptr);
+  }
+
+  private static final class Pointer extends TimeoutHeap.Entry
   {
     /** -1 when latched. */
     public int pointerId;
     /** The Key pressed by this Pointer */
-    public final KeyboardData.Key key;
+    public KeyboardData.Key key;
     /** Gesture state, see [Gesture]. [null] means the pointer has not moved out of the center region. */
     public Gesture gesture;
     /** Selected value with [modifiers] applied. */
@@ -559,12 +760,17 @@ public final class Pointers implements Handler.Callback
     public Modifiers modifiers;
     /** See [FLAG_P_*] flags. */
     public int flags;
-    /** Identify timeout messages. */
-    public int timeoutWhat;
+    /** Number of key repeats since the long press started. */
+    public int repeat_count;
     /** [null] when not in sliding mode. */
     public Sliding sliding;
+    /** Reused by [startSliding]. Might be [null]. */
+    public Sliding recycled_sliding = null;
+    /** Reused by [obtain_gesture]. Might be [null]. */
+    public Gesture recycled_gesture = null;
 
-    public Pointer(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
+    /** Pointers are reused, see [obtain_pointer] and [recycle]. */
+    public void init(int p, KeyboardData.Key k, KeyValue v, float x, float y, Modifiers m, int f)
     {
       pointerId = p;
       key = k;
@@ -574,7 +780,7 @@ public final class Pointers implements Handler.Callback
       downY = y;
       modifiers = m;
       flags = f;
-      timeoutWhat = -1;
+      repeat_count = 0;
       sliding = null;
     }
 
@@ -587,24 +793,35 @@ public final class Pointers implements Handler.Callback
   public final class Sliding
   {
     /** Accumulated distance since last event. */
-    float d = 0.f;
+    float d;
     /** The slider speed changes depending on the pointer speed. */
-    float speed = 0.5f;
+    float speed;
     /** Coordinate of the last move. */
     float last_x;
     float last_y;
-    /** [System.currentTimeMillis()] at the time of the last move. Equals to
-      [-1] when the sliding hasn't started yet. */
-    long last_move_ms = -1;
+    /** Time of the last move, see [onTouchMove]. Equals to [-1] when the
+      sliding hasn't started yet. */
+    long last_move_ms;
     /** The property which is being slided. */
     KeyValue.Slider slider;
     /** Direction of the initial movement, positive if sliding to the right and
         negative if sliding to the left. */
     int direction_x;
     int direction_y;
-
-    public Sliding(float x, float y, int dirx, int diry, KeyValue.Slider s)
+    /** Movement not sent yet, see [flush]. */
+    int pending;
+    /** Distance travelled in the same direction, in steps. Negative when
+        moving to the left. */
+    int scrub_steps;
+
+    /** Sliding objects are reused, see [startSliding]. */
+    public void init(float x, float y, int dirx, int diry, KeyValue.Slider s)
     {
+      d = 0.f;
+      pending = 0;
+      scrub_steps = 0;
+      speed = 0.5f;
+      last_move_ms = -1;
       last_x = x;
       last_y = y;
       slider = s;
@@ -619,8 +836,17 @@ public final class Pointers implements Handler.Callback
         slider slower, as we have less visibility and do smaller movements in
         that direction. */
     static final float SPEED_VERTICAL_MULT = 0.5f;
-
-    public void onTouchMove(Pointer ptr, float x, float y)
+    /** Scrubbing: when the pointer moves fast in the same direction for more
+        than [SCRUB_THRESHOLD] steps, the movements are multiplied by a factor
+        that increases by one every [SCRUB_RAMP] steps, up to
+        [SCRUB_MAX_MULT]. Slowing down stops the acceleration and the steps
+        travelled slowly are not counted. */
+    static final float SCRUB_MIN_SPEED = 3.f;
+    static final int SCRUB_THRESHOLD = 50;
+    static final float SCRUB_RAMP = 50.f;
+    static final float SCRUB_MAX_MULT = 8.f;
+
+    public void onTouchMove(Pointer ptr, float x, float y, long time)
     {
       // Start sliding only after the pointer has travelled an other distance.
       // This allows to trigger the slider movements only once with a short
@@ -630,39 +856,66 @@ public final class Pointers implements Handler.Callback
       {
         if (travelled < _config.swipe_dist_px)
           return;
-        last_move_ms = System.currentTimeMillis();
+        last_move_ms = time;
       }
       d += ((x - last_x) * speed * direction_x
           + (y - last_y) * speed * SPEED_VERTICAL_MULT * direction_y)
         / _config.slide_step_px;
-      update_speed(travelled, x, y);
-      // Send an event when [abs(d)] exceeds [1].
+      update_speed(travelled, x, y, time);
+      // Move by one step when [abs(d)] exceeds [1]. The steps are sent by
+      // [flush].
       int d_ = (int)d;
       if (d_ != 0)
       {
         d -= d_;
-        _handler.onPointerHold(KeyValue.sliderKey(slider, d_),
-            ptr.modifiers);
+        pending += d_;
       }
     }
 
+    /** Send the movement accumulated since the last call as a single event.
+        Called once per frame, after every samples of a move event. */
+    public void flush(Pointer ptr)
+    {
+      if (pending == 0)
+        return;
+      int n = pending;
+      pending = 0;
+      if (speed < SCRUB_MIN_SPEED || (n > 0) != (scrub_steps > 0))
+        scrub_steps = 0;
+      scrub_steps += n;
+      n = Math.round(n * scrub_factor());
+      n = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, n));
+      _handler.onPointerHold(KeyValue.sliderKey(slider, n), ptr.modifiers);
+    }
+
+    float scrub_factor()
+    {
+      int steps = Math.abs(scrub_steps);
+      if (speed < SCRUB_MIN_SPEED || steps <= SCRUB_THRESHOLD)
+        return 1.f;
+      return Math.min(SCRUB_MAX_MULT,
+          1.f + (steps - SCRUB_THRESHOLD) / SCRUB_RAMP);
+    }
+
     /** Handle a sliding pointer going up. Latched modifiers are not
         cleared to allow easy adjustments to the cursors. The pointer is
         cancelled. */
     public void onTouchUp(Pointer ptr)
     {
+      flush(ptr);
       removePtr(ptr);
       _handler.onPointerFlagsChanged(false);
     }
 
     /** [speed] is computed from the elapsed time and distance traveled
         between two move events. Exponential smoothing is used to smooth out
-        the noise. Sets [last_move_ms] and [last_pos]. */
-    void update_speed(float travelled, float x, float y)
+        the noise. Sets [last_move_ms] and [last_pos]. Samples can share the
+        same timestamp, the elapsed time is at least one millisecond. */
+    void update_speed(float travelled, float x, float y, long now)
     {
-      long now = System.currentTimeMillis();
+      long elapsed = Math.max(1, now - last_move_ms);
       float instant_speed = Math.min(SPEED_MAX,
-          travelled / (float)(now - last_move_ms) + 1.f);
+          travelled / (float)elapsed + 1.f);
       speed = speed + (instant_speed - speed) * SPEED_SMOOTHING;
       last_move_ms = now;
       last_x = x;
@@ -671,15 +924,19 @@ public final class Pointers implements Handler.Callback
   }
 
   /** Represent modifiers currently activated.
-      Sorted in the order they should be evaluated. */
+      Sorted in the order they should be evaluated.
+      Instances are interned, see [ofArray]. Two equal sets of modifiers are
+      very likely to be the same object. */
   public static final class Modifiers
   {
     private final KeyValue[] _mods;
     private final int _size;
+    private final int _hash;
 
     private Modifiers(KeyValue[] m, int s)
     {
       _mods = m; _size = s;
+      _hash = hash_of_array(m, s);
     }
 
     public KeyValue get(int i) { return _mods[_size - 1 - i]; }
@@ -714,16 +971,42 @@ public final class Pointers implements Handler.Callback
     }
 
     @Override
-    public int hashCode() { return Arrays.hashCode(_mods); }
+    public int hashCode() { return _hash; }
     @Override
     public boolean equals(Object obj)
     {
-      return Arrays.equals(_mods, ((Modifiers)obj)._mods);
+      if (this == obj)
+        return true;
+      Modifiers m2 = (Modifiers)obj;
+      return _hash == m2._hash && same_array(m2._mods, m2._size);
+    }
+
+    /** Whether the first [size] elements of [mods] are the modifiers of this
+        object. */
+    boolean same_array(KeyValue[] mods, int size)
+    {
+      if (size != _size)
+        return false;
+      for (int i = 0; i < size; i++)
+        if (!_mods[i].equals(mods[i]))
+          return false;
+      return true;
+    }
+
+    static int hash_of_array(KeyValue[] mods, int size)
+    {
+      int h = 1;
+      for (int i = 0; i < size; i++)
+        h = 31 * h + mods[i].hashCode();
+      return h;
     }
 
     public static final Modifiers EMPTY =
       new Modifiers(new KeyValue[0], 0);
 
+    /** The returned object doesn't keep a reference to [mods], which is
+        sorted in place. Doesn't allocate if an equal object has already been
+        returned recently. */
     protected static Modifiers ofArray(KeyValue[] mods, int size)
     {
       // Sort and remove duplicates and nulls.
@@ -742,7 +1025,41 @@ public final class Pointers implements Handler.Callback
         }
         size = j;
       }
-      return new Modifiers(mods, size);
+      return intern(mods, size);
+    }
+
+    /** Open-addressed table of the [Modifiers] objects returned by
+        [ofArray]. The number of different combinations used while typing is
+        small. The table is emptied when it is half full, which can happen
+        with compose sequences. */
+    static final int INTERN_CAPACITY = 64;
+    static final Modifiers[] _interned = new Modifiers[INTERN_CAPACITY];
+    static int _interned_count = 0;
+
+    static Modifiers intern(KeyValue[] mods, int size)
+    {
+      if (size == 0)
+        return EMPTY;
+      int h = hash_of_array(mods, size);
+      int mask = INTERN_CAPACITY - 1;
+      int i = h & mask;
+      Modifiers m;
+      while ((m = _interned[i]) != null)
+      {
+        if (m._hash == h && m.same_array(mods, size))
+          return m;
+        i = (i + 1) & mask;
+      }
+      m = new Modifiers(Arrays.copyOf(mods, size), size);
+      if (_interned_count >= INTERN_CAPACITY / 2)
+      {
+        Arrays.fill(_interned, null);
+        _interned_count = 0;
+        i = h & mask;
+      }
+      _interned[i] = m;
+      _interned_count++;
+      return m;
     }
 
     /** Returns modifiers that are in [m1_] but not in [m2_]. */
@@ -755,9 +1072,18 @@ public final class Pointers implements Handler.Callback
       int i2 = 0;
 
       public ModifiersDiffIterator(Modifiers m1_, Modifiers m2_)
+      {
+        reset(m1_, m2_);
+      }
+
+      /** Iterate over the modifiers in [m1_] that are not in [m2_]. The
+          iterator can be reused, see [KeyEventHandler.update_meta_state]. */
+      public void reset(Modifiers m1_, Modifiers m2_)
       {
         m1 = m1_;
+        i1 = 0;
         m2 = m2_;
+        i2 = 0;
         advance();
       }
 
@@ -800,6 +1126,13 @@ public final class Pointers implements Handler.Callback
     }
   }
 
+  interface Clock
+  {
+    public long uptimeMillis();
+  }
+
+  static final Clock SYSTEM_CLOCK = SystemClock::uptimeMillis;
+
   public interface IPointerEventHandler
   {
     /** Key can be modified or removed by returning [null]. */
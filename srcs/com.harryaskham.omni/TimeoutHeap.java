@@ -0,0 +1,139 @@
+package com.harryaskham.omni;
+
+import java.util.Arrays;
+
+/** Pending deadlines, ordered in a binary min-heap. Each entry remembers its
+    position in the heap so that it can be rescheduled or cancelled without a
+    search. An entry is in the heap at most once. */
+public final class TimeoutHeap
+{
+  public static class Entry
+  {
+    /** Time at which the entry expires, in the unit of the caller's clock. */
+    public long deadline;
+    /** Position in the heap, [-1] when not scheduled. */
+    int heap_index = -1;
+
+    public boolean isScheduled()
+    {
+      return heap_index >= 0;
+    }
+  }
+
+  Entry[] _heap = new Entry[8];
+  int _size = 0;
+
+  public boolean isEmpty()
+  {
+    return _size == 0;
+  }
+
+  public int size()
+  {
+    return _size;
+  }
+
+  /** The entry with the earliest deadline or [null]. */
+  public Entry peek()
+  {
+    return (_size == 0) ? null : _heap[0];
+  }
+
+  /** Schedule [e] at [deadline]. An entry that was already scheduled is
+      moved. */
+  public void schedule(Entry e, long deadline)
+  {
+    e.deadline = deadline;
+    int i = e.heap_index;
+    if (i < 0)
+    {
+      if (_size == _heap.length)
+        _heap = Arrays.copyOf(_heap, _size * 2);
+      i = _size++;
+      _heap[i] = e;
+      e.heap_index = i;
+    }
+    if (!sift_up(i))
+      sift_down(i);
+  }
+
+  /** Does nothing if [e] is not scheduled. */
+  public void cancel(Entry e)
+  {
+    int i = e.heap_index;
+    if (i < 0)
+      return;
+    e.heap_index = -1;
+    int last = --_size;
+    Entry moved = _heap[last];
+    _heap[last] = null;
+    if (i == last)
+      return;
+    _heap[i] = moved;
+    moved.heap_index = i;
+    if (!sift_up(i))
+      sift_down(i);
+  }
+
+  /** Remove and return the earliest entry if its deadline is not after
+      [now], otherwise return [null]. */
+  public Entry pollExpired(long now)
+  {
+    if (_size == 0 || _heap[0].deadline > now)
+      return null;
+    Entry e = _heap[0];
+    cancel(e);
+    return e;
+  }
+
+  public void clear()
+  {
+    for (int i = 0; i < _size; i++)
+    {
+      _heap[i].heap_index = -1;
+      _heap[i] = null;
+    }
+    _size = 0;
+  }
+
+  /** Returns whether the entry moved. */
+  boolean sift_up(int i)
+  {
+    Entry e = _heap[i];
+    int start = i;
+    while (i > 0)
+    {
+      int parent = (i - 1) >> 1;
+      Entry p = _heap[parent];
+      if (p.deadline <= e.deadline)
+        break;
+      _heap[i] = p;
+      p.heap_index = i;
+      i = parent;
+    }
+    _heap[i] = e;
+    e.heap_index = i;
+    return i != start;
+  }
+
+  void sift_down(int i)
+  {
+    Entry e = _heap[i];
+    while (true)
+    {
+      int child = 2 * i + 1;
+      if (child >= _size)
+        break;
+      if (child + 1 < _size && _heap[child + 1].deadline < _heap[child].deadline)
+        child++;
+      Entry c = _heap[child];
+      if (e.deadline <= c.deadline)
+        break;
+      _heap[i] = c;
+      c.heap_index = i;
+      i = child;
+    }
+    _heap[i] = e;
+    e.heap_index = i;
+  }
+}
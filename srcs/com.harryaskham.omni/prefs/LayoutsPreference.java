@@ -718,7 +718,7 @@ public class LayoutsPreference extends ListGroupPreference<LayoutsPreference.Lay
     public static CustomLayout parse(String xml)
     {
       KeyboardData parsed = null;
-      try { parsed = KeyboardData.load_string_exn(xml); }
+      try { parsed = LayoutCache.load_string(xml); }
       catch (Exception e) {}
       return new CustomLayout(xml, parsed);
     }
@@ -779,18 +779,9 @@ public class LayoutsPreference extends ListGroupPreference<LayoutsPreference.Lay
               continue;
             }
             
-            FileInputStream fis = new FileInputStream(xmlFile);
-            byte[] data = new byte[(int) xmlFile.length()];
-            int bytesRead = fis.read(data);
-            fis.close();
-            
-            if (bytesRead > 0) {
-              String xmlContent = new String(data, 0, bytesRead, "UTF-8");
-              KeyboardData layout = KeyboardData.load_string_exn(xmlContent);
-              if (layout != null) {
-                result.add(layout);
-                android.util.Log.i("LayoutsPreference", "Successfully loaded layout from: " + xmlFile.getName());
-              }
+            if (xmlFile.length() > 0) {
+              result.add(LayoutCache.load_file(xmlFile));
+              android.util.Log.i("LayoutsPreference", "Successfully loaded layout from: " + xmlFile.getName());
             }
           }
           catch (Exception e)
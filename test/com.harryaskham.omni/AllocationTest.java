@@ -0,0 +1,101 @@
+package com.harryaskham.omni;
+
+import org.junit.Assume;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+/** Allocation budgets of the key press path, from [Pointers] to the
+    [InputConnection]. Measured with [InputHarness.Stats] once the path is
+    warmed up. */
+public class AllocationTest
+{
+  /** Each call to the fake [InputConnection] allocates an array for its
+      arguments. */
+  static final long CALL_BYTES = 32;
+  /** A [KeyEvent] is allocated for every key event sent, they can't be
+      reused. */
+  static final long KEY_EVENT_BYTES = 160 + CALL_BYTES;
+
+  static final int WARMUP = 2000;
+  static final int PRESSES = 500;
+
+  public AllocationTest() {}
+
+  @Test
+  public void tap()
+  {
+    InputHarness h = Utils.harness();
+    Utils.measure(h, () -> h.tap("a"));
+    Utils.check_budget(h, InputHarness.Stats.DOWN, 0);
+    Utils.check_budget(h, InputHarness.Stats.UP, CALL_BYTES);
+  }
+
+  @Test
+  public void swipe()
+  {
+    InputHarness h = Utils.harness();
+    Utils.measure(h, () -> h.swipe("a", 2, 5));
+    Utils.check_budget(h, InputHarness.Stats.DOWN, 0);
+    Utils.check_budget(h, InputHarness.Stats.MOVE, 0);
+    Utils.check_budget(h, InputHarness.Stats.UP, CALL_BYTES);
+  }
+
+  @Test
+  public void shift_and_tap()
+  {
+    InputHarness h = Utils.harness();
+    Utils.measure(h, () -> { h.tap("shift"); h.tap("b"); });
+    // Shift is sent to the editor as key events.
+    Utils.check_total_budget(h, 2 * KEY_EVENT_BYTES + CALL_BYTES);
+  }
+
+  @Test
+  public void key_event()
+  {
+    InputHarness h = Utils.harness();
+    Utils.measure(h, () -> h.tap("backspace"));
+    Utils.check_budget(h, InputHarness.Stats.DOWN, 0);
+    Utils.check_total_budget(h, 2 * KEY_EVENT_BYTES);
+  }
+
+  static class Utils
+  {
+    static InputHarness harness()
+    {
+      InputHarness h = new InputHarness(InputHarness.layout(
+            "a,2=1,3=2 b c",
+            "shift cursor_left backspace"));
+      h.record_keys = false;
+      // Skipped on JVMs that can't measure allocations.
+      Assume.assumeTrue(h.stats._bean.isThreadAllocatedMemoryEnabled());
+      return h;
+    }
+
+    /** Warm up then measure [PRESSES] presses. */
+    static void measure(InputHarness h, Runnable press)
+    {
+      for (int i = 0; i < WARMUP; i++)
+        press.run();
+      h.text.setLength(0);
+      h.stats.reset();
+      for (int i = 0; i < PRESSES; i++)
+        press.run();
+    }
+
+    /** Bytes allocated per press for the events of [kind]. */
+    static void check_budget(InputHarness h, int kind, long budget)
+    {
+      long per_press = h.stats.alloc_bytes[kind] / PRESSES;
+      assertTrue(InputHarness.Stats.NAMES[kind] + ": " + per_press
+          + " bytes per press, budget is " + budget + "\n" + h.stats,
+          per_press <= budget);
+    }
+
+    static void check_total_budget(InputHarness h, long budget)
+    {
+      long per_press = h.stats.total_alloc_bytes() / PRESSES;
+      assertTrue(per_press + " bytes per press, budget is " + budget + "\n"
+          + h.stats, per_press <= budget);
+    }
+  }
+}
@@ -0,0 +1,147 @@
+package com.harryaskham.omni;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EditorSelectionTest
+{
+  public EditorSelectionTest() {}
+
+  @Test
+  public void predict_edits()
+  {
+    EditorSelection s = new EditorSelection();
+    assertFalse(s.is_valid(0));
+    s.set(5, 5, 0);
+    assertTrue(s.is_valid(0));
+    s.text_committed(3, 10);
+    s.edited(8, 6, 20);
+    Utils.check(s, 8, 6, 30);
+    // Update for the commit, the prediction for the second edit is kept.
+    s.updated(8, 8);
+    Utils.check(s, 8, 6, 40);
+    // The editor disagrees with the prediction.
+    s.updated(8, 7);
+    Utils.check(s, 8, 7, 10000);
+  }
+
+  @Test
+  public void unknown_edits()
+  {
+    EditorSelection s = new EditorSelection();
+    s.set(5, 5, 0);
+    s.edited_unknown(0);
+    assertFalse(s.is_valid(1));
+    s.text_committed(1, 2);
+    assertFalse(s.is_valid(3));
+    s.updated(4, 4);
+    assertFalse(s.is_valid(4));
+    s.updated(5, 5);
+    Utils.check(s, 5, 5, 5);
+    // Negative positions are ignored by the editor.
+    s.edited(-1, -1, 10);
+    assertFalse(s.is_valid(11));
+  }
+
+  @Test
+  public void stale()
+  {
+    EditorSelection s = new EditorSelection();
+    s.set(5, 5, 0);
+    // Not acknowledged, for example because the cursor didn't move.
+    s.edited(5, 5, 100);
+    assertTrue(s.is_valid(100 + EditorSelection.STALE_MS - 1));
+    assertFalse(s.is_valid(100 + EditorSelection.STALE_MS));
+    s.set(2, 3, 1000);
+    Utils.check(s, 2, 3, 1000);
+    // Initial selection is not given.
+    s.set(-1, -1, 1000);
+    assertFalse(s.is_valid(1000));
+  }
+
+  @Test
+  public void ignored_edit()
+  {
+    EditorSelection s = new EditorSelection();
+    s.set(5, 5, 0);
+    // Sliding past the end of the text, the editor ignores the second edit.
+    s.edited(6, 6, 100);
+    s.edited(7, 7, 110);
+    s.updated(6, 6);
+    // Staleness is measured from the oldest edit not acknowledged, which
+    // moves forward as the updates are received, like in a slow editor.
+    long t = 110;
+    for (int p = 8; p < 100; p++)
+    {
+      t += 10;
+      s.edited(p, p, t);
+      s.updated(p - 1, p - 1);
+      assertTrue(s.is_valid(t));
+    }
+    // One edit is never acknowledged, the editor must be queried again once
+    // the slider stops.
+    assertTrue(s.is_valid(t + EditorSelection.STALE_MS - 1));
+    assertFalse(s.is_valid(t + EditorSelection.STALE_MS));
+  }
+
+  @Test
+  public void query_with_edits_in_flight()
+  {
+    EditorSelection s = new EditorSelection();
+    s.set(5, 5, 0);
+    s.edited(6, 6, 100);
+    s.edited(7, 7, 350);
+    assertFalse(s.is_valid(350));
+    // The first edit is lost, the second is still in flight.
+    s.set(7, 7, 355);
+    int n = s.edit_count();
+    assertFalse(s.acknowledged(n));
+    assertTrue(s.acknowledged(n - 1));
+    s.edited(8, 8, 360);
+    // Late update for the edit sent before the query.
+    s.updated(7, 7);
+    Utils.check(s, 8, 8, 370);
+    assertTrue(s.acknowledged(n));
+    assertFalse(s.acknowledged(s.edit_count()));
+    s.updated(8, 8);
+    assertTrue(s.acknowledged(s.edit_count()));
+    Utils.check(s, 8, 8, 10000);
+  }
+
+  @Test
+  public void acknowledged()
+  {
+    EditorSelection s = new EditorSelection();
+    s.set(5, 5, 0);
+    s.text_committed(1, 0);
+    s.edited_unknown(1);
+    int n = s.edit_count();
+    assertFalse(s.acknowledged(n));
+    // Update for the commit.
+    s.updated(6, 6);
+    assertFalse(s.acknowledged(n));
+    assertTrue(s.acknowledged(n - 1));
+    s.updated(7, 7);
+    assertTrue(s.acknowledged(n));
+    // Querying the editor doesn't acknowledge the edits in flight.
+    s.edited_unknown(2);
+    s.set(7, 7, 3);
+    assertFalse(s.acknowledged(s.edit_count()));
+    s.updated(7, 7);
+    assertTrue(s.acknowledged(s.edit_count()));
+    // Nor the edits that are stale.
+    s.edited_unknown(10);
+    s.set(7, 7, 10 + EditorSelection.STALE_MS);
+    assertTrue(s.acknowledged(s.edit_count()));
+  }
+
+  static class Utils
+  {
+    static void check(EditorSelection s, int start, int end, long now)
+    {
+      assertTrue(s.is_valid(now));
+      assertEquals(start, s.start());
+      assertEquals(end, s.end());
+    }
+  }
+}
@@ -0,0 +1,154 @@
+package com.harryaskham.omni;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class EventTraceTest
+{
+  public EventTraceTest() {}
+
+  @Test
+  public void record_and_read() throws Exception
+  {
+    File f = Utils.start();
+    EventTrace.touch_down(0, 10.5f, 20.f, 0);
+    EventTrace.touch_move(0, 12.25f, 19.f, 5);
+    EventTrace.touch_move(1, 1.f, 2.f, 6);
+    EventTrace.key(KeyValue.getKeyByName("shift"), Pointers.Modifiers.EMPTY);
+    EventTrace.mods(Pointers.Modifiers.ofArray(
+          new KeyValue[]{ KeyValue.getKeyByName("shift") }, 1));
+    EventTrace.key(KeyValue.makeStringKey("hello"), null);
+    EventTrace.commit_text(5, 0);
+    EventTrace.key_event(1, 66, 0, 0);
+    EventTrace.touch_up(0, 0);
+    EventTrace.touch_cancel(0);
+    List<String> rs = Utils.records(f);
+    assertEquals("0 down 0 10.5,20.0", rs.get(0));
+    assertEquals("5 move 0 12.25,19.0", rs.get(1));
+    assertEquals("6 move 1 1.0,2.0", rs.get(2));
+    assertEquals("0 mods", rs.get(3));
+    assertTrue(rs.get(4).startsWith("0 key Modifier+"));
+    assertTrue(rs.get(5).startsWith("0 mods Modifier+"));
+    assertTrue(rs.get(6).endsWith(" \"hello\""));
+    assertEquals("0 text 5 0us", rs.get(7));
+    assertEquals("0 keyevent 1 66 0 0us", rs.get(8));
+    assertEquals("0 up 0", rs.get(9));
+    assertEquals("0 cancel", rs.get(10));
+    assertEquals(11, rs.size());
+  }
+
+  @Test
+  public void private_editor() throws Exception
+  {
+    File f = Utils.start();
+    EventTrace.set_private(true);
+    EventTrace.key(KeyValue.getKeyByName("a"), null);
+    EventTrace.key(KeyValue.makeStringKey("hello"), null);
+    EventTrace.key(KeyValue.getKeyByName("shift"), null);
+    EventTrace.commit_text(5, 0);
+    EventTrace.key_event(1, 29, 0, 0);
+    EventTrace.set_private(false);
+    EventTrace.commit_text(5, 0);
+    List<String> rs = Utils.records(f);
+    assertEquals("0 key Char+0", rs.get(0));
+    assertEquals("0 key String+0", rs.get(1));
+    // Modifiers are not typed.
+    assertTrue(rs.get(2).startsWith("0 key Modifier+"));
+    assertEquals("0 text 0 0us", rs.get(3));
+    assertEquals("0 keyevent 1 0 0 0us", rs.get(4));
+    assertEquals("0 text 5 0us", rs.get(5));
+    assertEquals(6, rs.size());
+  }
+
+  @Test
+  public void private_editor_touches() throws Exception
+  {
+    File f = Utils.start();
+    EventTrace.set_private(true);
+    EventTrace.touch_down(0, 10.5f, 20.f, 0);
+    EventTrace.touch_move(0, 12.25f, 19.f, 5);
+    EventTrace.touch_up(0, 10);
+    EventTrace.touch_down(1, 30.f, 40.f, 10);
+    EventTrace.set_private(false);
+    // Not relative to the hidden position.
+    EventTrace.touch_move(1, 31.f, 41.f, 15);
+    List<String> rs = Utils.records(f);
+    assertEquals("0 down 0 0.0,0.0", rs.get(0));
+    assertEquals("10 up 0", rs.get(1));
+    assertEquals("10 down 1 0.0,0.0", rs.get(2));
+    assertEquals("15 move 1 31.0,41.0", rs.get(3));
+    assertEquals(4, rs.size());
+  }
+
+  @Test
+  public void file_is_circular() throws Exception
+  {
+    File f = Utils.start();
+    int n = 200000;
+    for (int i = 0; i < n; i++)
+    {
+      EventTrace.touch_move(0, i % 1000, 0, i);
+      if (i % 10000 == 0)
+        EventTrace.flush();
+      if (i % 100 == 0)
+        Utils.wait_writer();
+    }
+    List<String> rs = Utils.records(f);
+    assertTrue(f.length() <= EventTrace.HEADER_SIZE
+        + EventTrace.BLOCK_SIZE * EventTrace.BLOCK_COUNT);
+    // The oldest records have been overwritten, the most recent are in
+    // order.
+    assertTrue(rs.size() < n);
+    assertEquals((n - 1) + " move 0 999.0,0.0", rs.get(rs.size() - 1));
+    long prev = -1;
+    for (String r : rs)
+    {
+      long t = Long.parseLong(r.substring(0, r.indexOf(' ')));
+      assertTrue(t > prev);
+      prev = t;
+    }
+  }
+
+  static class Utils
+  {
+    static File start() throws Exception
+    {
+      File f = File.createTempFile("event_trace", ".bin");
+      f.deleteOnExit();
+      return start(f);
+    }
+
+    /** Start recording into [f], replacing its content. */
+    static File start(File f) throws Exception
+    {
+      EventTrace.set_enabled(false);
+      f.delete();
+      if (EventTrace._writer != null)
+        wait_writer();
+      EventTrace._file = f;
+      EventTrace._trace_file = new EventTrace.TraceFile(f);
+      EventTrace._cur_mods = null;
+      EventTrace._private = false;
+      EventTrace.set_enabled(true);
+      return f;
+    }
+
+    static void wait_writer() throws Exception
+    {
+      if (EventTrace._writer != null)
+        EventTrace._writer.submit(() -> {}).get();
+    }
+
+    static List<String> records(File f) throws Exception
+    {
+      EventTrace.flush();
+      wait_writer();
+      List<String> rs = new ArrayList<String>();
+      EventTrace.read(EventTrace.read_file(f.getPath()), r -> rs.add(r.toString()));
+      return rs;
+    }
+  }
+}
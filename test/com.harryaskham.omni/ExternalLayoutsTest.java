@@ -0,0 +1,106 @@
+package com.harryaskham.omni;
+
+import java.io.File;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class ExternalLayoutsTest
+{
+  File _dir;
+  ExternalLayouts _el;
+
+  public ExternalLayoutsTest() {}
+
+  @Before
+  public void setup() throws Exception
+  {
+    File tmp = LayoutCacheTest.Utils.temp_dir();
+    LayoutCache.init_dir(new File(tmp, "cache"), 1);
+    _dir = new File(tmp, "layouts");
+    _dir.mkdir();
+    _el = new ExternalLayouts();
+    _el._dir = _dir.getPath();
+  }
+
+  @After
+  public void disable()
+  {
+    LayoutCache._dir = null;
+  }
+
+  @Test
+  public void scan() throws Exception
+  {
+    KeyboardData a = Utils.add(_dir, "a.xml", "<a/>");
+    KeyboardData b = Utils.add(_dir, "B.xml", "<b/>");
+    Utils.add(_dir, "c.txt", "<c/>");
+    _el.scan(_el._dir);
+    List<KeyboardData> ls = _el.layouts();
+    assertEquals(2, ls.size());
+    LayoutCacheTest.Utils.assert_same_layout(a, ls.get(0));
+    LayoutCacheTest.Utils.assert_same_layout(b, ls.get(1));
+    // Unchanged files are not loaded again.
+    _el.scan(_el._dir);
+    assertSame(ls, _el.layouts());
+    File fa = new File(_dir, "a.xml");
+    fa.setLastModified(fa.lastModified() - 10000);
+    _el.scan(_el._dir);
+    assertSame(ls, _el.layouts());
+    assertSame(ls.get(0), _el._entries.get(fa.getPath()).layout);
+  }
+
+  @Test
+  public void changes() throws Exception
+  {
+    Utils.add(_dir, "a.xml", "<a/>");
+    Utils.add(_dir, "b.xml", "<b/>");
+    _el.scan(_el._dir);
+    List<KeyboardData> ls = _el.layouts();
+    // Modified.
+    KeyboardData a2 = Utils.add(_dir, "a.xml", "<a2/>");
+    new File(_dir, "a.xml").setLastModified(0);
+    _el.scan(_el._dir);
+    assertEquals(2, _el.layouts().size());
+    LayoutCacheTest.Utils.assert_same_layout(a2, _el.layouts().get(0));
+    assertSame(ls.get(1), _el.layouts().get(1));
+    // Removed.
+    new File(_dir, "a.xml").delete();
+    _el.scan(_el._dir);
+    assertEquals(1, _el.layouts().size());
+    assertSame(ls.get(1), _el.layouts().get(0));
+    // Not parseable files are skipped.
+    LayoutCacheTest.Utils.write(new File(_dir, "c.xml"), "invalid");
+    _el.scan(_el._dir);
+    assertEquals(1, _el.layouts().size());
+    assertNotNull(_el._entries.get(new File(_dir, "c.xml").getPath()));
+  }
+
+  @Test
+  public void directory_changed() throws Exception
+  {
+    Utils.add(_dir, "a.xml", "<a/>");
+    String dir = _el._dir;
+    _el._dir = null;
+    _el.scan(dir);
+    assertTrue(_el.layouts().isEmpty());
+  }
+
+  static class Utils
+  {
+    /** Write [src] to [name] and put a layout for it in the cache, which
+        avoids parsing XML. */
+    static KeyboardData add(File dir, String name, String src) throws Exception
+    {
+      LayoutCacheTest.Utils.write(new File(dir, name), src);
+      KeyboardData kw = LayoutCacheTest.Utils.layout();
+      long hash = LayoutCache.hash(src);
+      LayoutCache.save(LayoutCache.string_entry(hash), "xml", hash,
+          src.length(), kw);
+      LayoutCacheTest.Utils.wait_writer();
+      return kw;
+    }
+  }
+}
@@ -0,0 +1,478 @@
+package com.harryaskham.omni;
+
+import android.os.Handler;
+import android.os.Message;
+import android.view.inputmethod.InputConnection;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+/** Runs [Pointers] and [KeyEventHandler] on the JVM, fed with synthetic
+    touches or with a trace recorded by [EventTrace]. Plays the role of
+    [Keyboard2View] and [Keyboard2]: keys are placed on a grid of
+    [KEY_WIDTH] x [ROW_HEIGHT] pixels and the editor is a fake
+    [InputConnection].
+
+    Time is simulated, long press and key repeat timeouts fire when the clock
+    is advanced past them. The keys sent by [Pointers] are recorded in
+    [keys], the text committed in [text] and the key events in [key_events].
+    The CPU time and the allocations of each kind of input event are
+    accumulated in [stats]. */
+public final class InputHarness
+  implements Pointers.IPointerEventHandler, Config.IKeyEventHandler,
+             KeyEventHandler.IReceiver
+{
+  public static final float KEY_WIDTH = 100.f;
+  public static final float ROW_HEIGHT = 150.f;
+
+  public final KeyboardData keyboard;
+  public final KeyHitIndex hit_index;
+  public final Config config;
+  public final Pointers pointers;
+  public final KeyEventHandler handler;
+
+  /** Value of the simulated [SystemClock.uptimeMillis]. */
+  public long now = 1000;
+  /** The keys received by [key_up], in order. See [key_name]. */
+  public final List<String> keys = new ArrayList<String>();
+  public final StringBuilder text = new StringBuilder();
+  /** Number of [sendKeyEvent] calls. */
+  public int key_events = 0;
+  public final Stats stats = new Stats();
+  /** Whether to record [keys], disabled when measuring allocations. */
+  public boolean record_keys = true;
+
+  final KeyValue _shift_kv = KeyValue.getKeyByName("shift");
+  final KeyValue _compose_kv = KeyValue.getKeyByName("compose");
+  final InputConnection _conn;
+  /** Callbacks posted by [KeyEventHandler] and [Autocapitalisation] are
+      not run. */
+  final Handler _handler = new Handler();
+  final Message _timeout_msg = new Message();
+
+  public InputHarness(KeyboardData kw)
+  {
+    keyboard = kw;
+    hit_index = new KeyHitIndex(kw, 0.f, ROW_HEIGHT, 0.f, KEY_WIDTH);
+    KeyModifier.set_modmap(kw.modmap);
+    _conn = fake_connection();
+    handler = new KeyEventHandler(this);
+    config = Config.defaults(this);
+    pointers = new Pointers(this, config);
+    pointers._clock = () -> now;
+    _timeout_msg.what = Pointers.MSG_TIMEOUT;
+  }
+
+  /** Build a layout from rows of space-separated keys. A key is a
+      comma-separated list of key names, the first is the center value. The
+      others are prefixed by their index in [KeyboardData.Key.keys], for
+      example "a,2=1" has "1" in the top-right corner. */
+  public static KeyboardData layout(String... rows)
+  {
+    List<KeyboardData.Row> rs = new ArrayList<KeyboardData.Row>();
+    float width = 0.f;
+    for (String row : rows)
+    {
+      List<KeyboardData.Key> ks = new ArrayList<KeyboardData.Key>();
+      for (String key : row.split(" "))
+      {
+        KeyValue[] kvs = new KeyValue[9];
+        String[] values = key.split(",(?=[1-8]=)");
+        kvs[0] = KeyValue.getKeyByName(values[0]);
+        for (int i = 1; i < values.length; i++)
+          kvs[values[i].charAt(0) - '0'] =
+            KeyValue.getKeyByName(values[i].substring(2));
+        ks.add(new KeyboardData.Key(kvs, null, 0, 1.f, 0.f, null));
+      }
+      KeyboardData.Row r = new KeyboardData.Row(ks, 1.f, 0.f);
+      width = Math.max(width, r.keysWidth);
+      rs.add(r);
+    }
+    return new KeyboardData(rs, width, null, null, null, "harness", false,
+        false, false);
+  }
+
+  /** Readable name of a key, as recorded in [keys]. */
+  public static String key_name(KeyValue k)
+  {
+    switch (k.getKind())
+    {
+      case Char: return String.valueOf(k.getChar());
+      case String: return k.getString();
+      case Modifier: return k.getModifier().toString().toLowerCase(Locale.US);
+      case Event: return k.getEvent().toString().toLowerCase(Locale.US);
+      case Slider: return "slider:" + k.getSlider().name().toLowerCase(Locale.US);
+      default:
+        return k.getKind().toString().toLowerCase(Locale.US) + ":" + k.getString();
+    }
+  }
+
+  // Synthetic input
+
+  /** The key whose center value is named [name]. */
+  public KeyboardData.Key key(String name)
+  {
+    KeyValue kv = KeyValue.getKeyByName(name);
+    KeyboardData.Key k = keyboard.findKeyWithValue(kv);
+    if (k == null)
+      throw new IllegalArgumentException("No key " + name);
+    return k;
+  }
+
+  /** Center of a key, in pixels. */
+  public float[] center(KeyboardData.Key key)
+  {
+    float y = 0.f;
+    for (KeyboardData.Row row : keyboard.rows)
+    {
+      float x = 0.f;
+      for (KeyboardData.Key k : row.keys)
+      {
+        x += k.shift * KEY_WIDTH;
+        if (k == key)
+          return new float[]{ x + k.width * KEY_WIDTH / 2.f,
+            y + (row.shift + row.height / 2.f) * ROW_HEIGHT };
+        x += k.width * KEY_WIDTH;
+      }
+      y += (row.shift + row.height) * ROW_HEIGHT;
+    }
+    throw new IllegalArgumentException("Key not in the layout");
+  }
+
+  public void down(int id, float x, float y)
+  {
+    KeyboardData.Key key = hit_index.getKeyAtPosition(x, y);
+    if (key == null)
+      return;
+    long start = stats.begin();
+    pointers.onTouchDown(x, y, id, key);
+    stats.end(Stats.DOWN, start);
+  }
+
+  public void move(int id, float x, float y)
+  {
+    long start = stats.begin();
+    pointers.onTouchMove(x, y, id, now);
+    pointers.onTouchMoveDone();
+    stats.end(Stats.MOVE, start);
+  }
+
+  public void up(int id)
+  {
+    long start = stats.begin();
+    pointers.onTouchUp(id);
+    stats.end(Stats.UP, start);
+  }
+
+  public void cancel()
+  {
+    long start = stats.begin();
+    pointers.onTouchCancel();
+    stats.end(Stats.UP, start);
+  }
+
+  /** Advance the clock, firing the long press and key repeat timeouts that
+      expire meanwhile. */
+  public void advance(long ms)
+  {
+    advance_to(now + ms);
+  }
+
+  public void advance_to(long t)
+  {
+    long deadline;
+    while ((deadline = pointers.next_timeout()) >= 0 && deadline <= t)
+    {
+      now = Math.max(now, deadline);
+      long start = stats.begin();
+      pointers.handleMessage(_timeout_msg);
+      stats.end(Stats.TIMEOUT, start);
+    }
+    now = Math.max(now, t);
+  }
+
+  /** Press and release a key. */
+  public void tap(String name)
+  {
+    tap(key(name));
+  }
+
+  public void tap(KeyboardData.Key key)
+  {
+    float[] c = center(key);
+    down(0, c[0], c[1]);
+    advance(30);
+    up(0);
+    advance(50);
+  }
+
+  /** Swipe from the center of a key toward the value at [index] in
+      [KeyboardData.Key.keys], in [steps] moves 10ms apart. */
+  public void swipe(String name, int index, int steps)
+  {
+    swipe(key(name), index, steps);
+  }
+
+  public void swipe(KeyboardData.Key key, int index, int steps)
+  {
+    float[] c = center(key);
+    float[] d = DIRECTIONS[index];
+    float dist = config.swipe_dist_px * 1.5f;
+    down(0, c[0], c[1]);
+    for (int i = 1; i <= steps; i++)
+    {
+      advance(10);
+      move(0, c[0] + d[0] * dist * i / steps, c[1] + d[1] * dist * i / steps);
+    }
+    advance(10);
+    up(0);
+    advance(50);
+  }
+
+  /** Direction of each index in [KeyboardData.Key.keys]. */
+  static final float[][] DIRECTIONS = new float[][]{
+    { 0, 0 }, { -1, -1 }, { 1, -1 }, { -1, 1 }, { 1, 1 },
+    { -1, 0 }, { 1, 0 }, { 0, -1 }, { 0, 1 }
+  };
+
+  /** Replay the touches of a trace recorded by [EventTrace]. The other
+      records are ignored, the recorded keys can be compared with [keys]. */
+  public void replay(byte[] trace) throws Exception
+  {
+    EventTrace.read(trace, r -> {
+      switch (r.type)
+      {
+        case EventTrace.TOUCH_DOWN:
+          advance_to(r.time);
+          down(r.id, r.x, r.y);
+          break;
+        case EventTrace.TOUCH_MOVE:
+        case EventTrace.TOUCH_MOVE_ABS:
+          advance_to(r.time);
+          move(r.id, r.x, r.y);
+          break;
+        case EventTrace.TOUCH_UP:
+          advance_to(r.time);
+          up(r.id);
+          break;
+        case EventTrace.TOUCH_CANCEL:
+          advance_to(r.time);
+          cancel();
+          break;
+      }
+    });
+  }
+
+  // Pointers.IPointerEventHandler, as implemented by [Keyboard2View].
+
+  @Override
+  public KeyValue modifyKey(KeyValue k, Pointers.Modifiers mods)
+  {
+    return KeyModifier.modify(k, mods);
+  }
+
+  @Override
+  public void onPointerDown(KeyValue k, boolean isSwipe)
+  {
+    config.handler.mods_changed(pointers.getModifiers());
+    config.handler.key_down(k, isSwipe);
+  }
+
+  @Override
+  public void onPointerUp(KeyValue k, Pointers.Modifiers mods)
+  {
+    config.handler.key_up(k, mods);
+    config.handler.mods_changed(pointers.getModifiers());
+  }
+
+  @Override
+  public void onPointerFlagsChanged(boolean shouldVibrate)
+  {
+    config.handler.mods_changed(pointers.getModifiers());
+  }
+
+  @Override
+  public void onPointerHold(KeyValue k, Pointers.Modifiers mods)
+  {
+    config.handler.key_up(k, mods);
+    config.handler.mods_changed(pointers.getModifiers());
+  }
+
+  // Config.IKeyEventHandler, records the keys and forwards to [handler].
+
+  @Override
+  public void key_down(KeyValue value, boolean is_swipe)
+  {
+    handler.key_down(value, is_swipe);
+  }
+
+  @Override
+  public void key_up(KeyValue value, Pointers.Modifiers mods)
+  {
+    if (record_keys && value != null)
+      keys.add(key_name(value));
+    handler.key_up(value, mods);
+  }
+
+  @Override
+  public void mods_changed(Pointers.Modifiers mods)
+  {
+    handler.mods_changed(mods);
+  }
+
+  // KeyEventHandler.IReceiver, as implemented by [Keyboard2].
+
+  @Override
+  public void handle_event_key(KeyValue.Event ev) {}
+
+  @Override
+  public void handle_event_key_with_value(KeyValue keyValue) {}
+
+  @Override
+  public void set_shift_state(boolean state, boolean lock)
+  {
+    KeyboardData.Key k = keyboard.findKeyWithValue(_shift_kv);
+    if (k != null)
+      pointers.set_fake_pointer_state(k, _shift_kv, state, lock);
+  }
+
+  @Override
+  public void set_compose_pending(boolean pending)
+  {
+    KeyboardData.Key k = keyboard.findKeyWithValue(_compose_kv);
+    if (k != null)
+      pointers.set_fake_pointer_state(k, _compose_kv, pending, false);
+  }
+
+  @Override
+  public void selection_state_changed(boolean selection_is_ongoing) {}
+
+  @Override
+  public InputConnection getCurrentInputConnection()
+  {
+    return _conn;
+  }
+
+  @Override
+  public Handler getHandler()
+  {
+    return _handler;
+  }
+
+  @Override
+  public void sendSystemKeyEvent(int keyCode) {}
+
+  /** Editor that records committed text and counts key events. Other calls
+      return a default value. */
+  InputConnection fake_connection()
+  {
+    return (InputConnection)Proxy.newProxyInstance(
+        InputConnection.class.getClassLoader(),
+        new Class<?>[]{ InputConnection.class },
+        (proxy, method, args) -> {
+          switch (method.getName())
+          {
+            case "commitText": text.append((CharSequence)args[0]); return true;
+            case "sendKeyEvent": key_events++; return true;
+            case "beginBatchEdit": case "endBatchEdit": return true;
+          }
+          Class<?> t = method.getReturnType();
+          if (t == boolean.class) return false;
+          if (t == int.class) return 0;
+          return null;
+        });
+  }
+
+  /** CPU time and allocated bytes per kind of input event. Allocations are
+      measured with [com.sun.management.ThreadMXBean]. */
+  public static final class Stats
+  {
+    public static final int DOWN = 0;
+    public static final int MOVE = 1;
+    public static final int UP = 2;
+    public static final int TIMEOUT = 3;
+    static final String[] NAMES = { "down", "move", "up", "timeout" };
+
+    public final long[] count = new long[NAMES.length];
+    public final long[] cpu_ns = new long[NAMES.length];
+    public final long[] alloc_bytes = new long[NAMES.length];
+    /** Measuring costs about a microsecond per event. Disable when the
+        caller does its own measurements. */
+    public boolean enabled = true;
+
+    final com.sun.management.ThreadMXBean _bean =
+      (com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean();
+    long _start_alloc;
+    /** Allocations done by the measurement itself. */
+    final long _alloc_overhead;
+
+    Stats()
+    {
+      long a = _bean.getCurrentThreadAllocatedBytes();
+      long b = _bean.getCurrentThreadAllocatedBytes();
+      _alloc_overhead = Math.max(0, b - a);
+    }
+
+    /** Returns the start time, to pass to [end]. */
+    long begin()
+    {
+      if (!enabled)
+        return 0;
+      _start_alloc = _bean.getCurrentThreadAllocatedBytes();
+      return _bean.getCurrentThreadCpuTime();
+    }
+
+    void end(int kind, long start)
+    {
+      if (!enabled)
+        return;
+      long cpu = _bean.getCurrentThreadCpuTime();
+      long alloc = _bean.getCurrentThreadAllocatedBytes();
+      count[kind]++;
+      cpu_ns[kind] += cpu - start;
+      alloc_bytes[kind] += Math.max(0, alloc - _start_alloc - _alloc_overhead);
+    }
+
+    public void reset()
+    {
+      Arrays.fill(count, 0);
+      Arrays.fill(cpu_ns, 0);
+      Arrays.fill(alloc_bytes, 0);
+    }
+
+    public long total_alloc_bytes()
+    {
+      long t = 0;
+      for (long a : alloc_bytes)
+        t += a;
+      return t;
+    }
+
+    public long total_cpu_ns()
+    {
+      long t = 0;
+      for (long c : cpu_ns)
+        t += c;
+      return t;
+    }
+
+    /** One line per kind of event: count, mean CPU time and allocations. */
+    @Override
+    public String toString()
+    {
+      StringBuilder b = new StringBuilder();
+      for (int i = 0; i < NAMES.length; i++)
+      {
+        if (count[i] == 0)
+          continue;
+        b.append(String.format(Locale.US, "%-8s n=%-6d cpu=%8.2fus alloc=%8.1fB\n",
+              NAMES[i], count[i], cpu_ns[i] / 1e3 / count[i],
+              (double)alloc_bytes[i] / count[i]));
+      }
+      return b.toString();
+    }
+  }
+}
@@ -0,0 +1,89 @@
+package com.harryaskham.omni;
+
+import android.text.InputType;
+import android.view.inputmethod.EditorInfo;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyEventHandlerTest
+{
+  public KeyEventHandlerTest() {}
+
+  @Test
+  public void macro_waits_for_editor()
+  {
+    InputHarness h = Utils.harness();
+    KeyValue m = KeyValue.makeMacro("m", new KeyValue[]{
+      KeyValue.getKeyByName("a"), KeyValue.getKeyByName("tab"),
+        KeyValue.getKeyByName("b") }, 0);
+    h.handler.key_up(m, Pointers.Modifiers.EMPTY);
+    assertEquals("a", h.text.toString());
+    assertEquals(2, h.key_events);
+    assertEquals(1, h.handler._macros_waiting.size());
+    // Update for the text committed before the key event.
+    h.handler.selection_updated(0, 1, 1);
+    assertEquals("a", h.text.toString());
+    // The key event is handled.
+    h.handler.selection_updated(1, 2, 2);
+    assertEquals("ab", h.text.toString());
+    assertTrue(h.handler._macros_waiting.isEmpty());
+  }
+
+  @Test
+  public void macro_timeout()
+  {
+    InputHarness h = Utils.harness();
+    // Starts at the delay used before acknowledgements.
+    assertEquals(KeyEventHandler.MACRO_MIN_TIMEOUT_MS,
+        h.handler.macro_timeout());
+    KeyValue m = KeyValue.makeMacro("m", new KeyValue[]{
+      KeyValue.getKeyByName("tab"), KeyValue.getKeyByName("b") }, 0);
+    h.handler.key_up(m, Pointers.Modifiers.EMPTY);
+    h.handler._macros_waiting.get(0).wait_start_ms = -300;
+    h.handler.selection_updated(0, 1, 1);
+    assertTrue(h.handler.macro_timeout() > KeyEventHandler.MACRO_MIN_TIMEOUT_MS);
+    // Timeouts bring it back to the minimum.
+    for (int i = 0; i < 20; i++)
+    {
+      h.handler.key_up(m, Pointers.Modifiers.EMPTY);
+      h.handler._macros_waiting.get(0).run();
+    }
+    assertEquals(KeyEventHandler.MACRO_MIN_TIMEOUT_MS,
+        h.handler.macro_timeout());
+  }
+
+  @Test
+  public void private_editor()
+  {
+    assertFalse(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_FLAG_CAP_SENTENCES, 0)));
+    assertTrue(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_PASSWORD, 0)));
+    assertTrue(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_TEXT | InputType.TYPE_TEXT_VARIATION_WEB_PASSWORD, 0)));
+    assertTrue(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_NUMBER | InputType.TYPE_NUMBER_VARIATION_PASSWORD, 0)));
+    // Same bits, another class.
+    assertFalse(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_NUMBER | InputType.TYPE_TEXT_VARIATION_PASSWORD, 0)));
+    assertTrue(KeyEventHandler.is_private_editor(Utils.editor(
+            InputType.TYPE_CLASS_TEXT,
+            EditorInfo.IME_FLAG_NO_PERSONALIZED_LEARNING)));
+  }
+
+  static class Utils
+  {
+    static EditorInfo editor(int input_type, int ime_options)
+    {
+      EditorInfo info = new EditorInfo();
+      info.inputType = input_type;
+      info.imeOptions = ime_options;
+      return info;
+    }
+
+    static InputHarness harness()
+    {
+      return new InputHarness(InputHarness.layout("a b"));
+    }
+  }
+}
@@ -0,0 +1,76 @@
+package com.harryaskham.omni;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyHitIndexTest
+{
+  public KeyHitIndexTest() {}
+
+  @Test
+  public void find_keys()
+  {
+    KeyboardData kw = Utils.keyboard();
+    KeyHitIndex idx = new KeyHitIndex(kw, 10.f, 100.f, 5.f, 50.f);
+    List<KeyboardData.Key> r0 = kw.rows.get(0).keys;
+    List<KeyboardData.Key> r1 = kw.rows.get(1).keys;
+    // Above the first row and on the left margin.
+    assertNull(idx.getKeyAtPosition(20.f, 5.f));
+    assertNull(idx.getKeyAtPosition(2.f, 50.f));
+    assertSame(r0.get(0), idx.getKeyAtPosition(5.f, 10.f));
+    assertSame(r0.get(0), idx.getKeyAtPosition(54.f, 109.f));
+    assertSame(r0.get(1), idx.getKeyAtPosition(55.f, 50.f));
+    // Gap specified by the [shift] of the third key.
+    assertNull(idx.getKeyAtPosition(130.f, 50.f));
+    assertSame(r0.get(2), idx.getKeyAtPosition(155.f, 50.f));
+    // Past the end of the row.
+    assertNull(idx.getKeyAtPosition(400.f, 50.f));
+    // The space above the second row belongs to it.
+    assertEquals(1, idx.getRowIndexAtPosition(120.f));
+    assertNull(idx.getKeyAtPosition(20.f, 120.f));
+    assertSame(r1.get(0), idx.getKeyAtPosition(100.f, 200.f));
+    // Below the last row.
+    assertEquals(-1, idx.getRowIndexAtPosition(300.f));
+    assertNull(idx.getKeyAtPosition(100.f, 300.f));
+  }
+
+  @Test
+  public void upper_bound()
+  {
+    float[] a = new float[]{ 1.f, 2.f, 2.f, 4.f };
+    assertEquals(0, KeyHitIndex.upper_bound(a, 0.f));
+    assertEquals(1, KeyHitIndex.upper_bound(a, 1.f));
+    assertEquals(3, KeyHitIndex.upper_bound(a, 2.f));
+    assertEquals(4, KeyHitIndex.upper_bound(a, 4.f));
+    assertEquals(0, KeyHitIndex.upper_bound(new float[0], 1.f));
+  }
+
+  static class Utils
+  {
+    static KeyboardData.Key key(String name, float width, float shift)
+    {
+      KeyValue[] ks = new KeyValue[9];
+      ks[0] = KeyValue.getKeyByName(name);
+      return new KeyboardData.Key(ks, null, 0, width, shift, null);
+    }
+
+    /** Two rows: [a][b] gap [c] and a second row shifted by 0.5 with a
+        single wide key [d] shifted by 1. */
+    static KeyboardData keyboard()
+    {
+      List<KeyboardData.Key> r0 = new ArrayList<KeyboardData.Key>();
+      r0.add(key("a", 1.f, 0.f));
+      r0.add(key("b", 1.f, 0.f));
+      r0.add(key("c", 1.f, 1.f));
+      List<KeyboardData.Key> r1 = new ArrayList<KeyboardData.Key>();
+      r1.add(key("d", 3.f, 1.f));
+      List<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>();
+      rows.add(new KeyboardData.Row(r0, 1.f, 0.f));
+      rows.add(new KeyboardData.Row(r1, 1.f, 0.5f));
+      return new KeyboardData(rows, 4.f, null, null, null, null, false,
+          false, false);
+    }
+  }
+}
@@ -22,6 +22,51 @@ public class KeyValueTest
         KeyValue.keyeventKey("tab", KeyEvent.KEYCODE_TAB, KeyValue.FLAG_SMALLER_FONT));
   }
 
+  @Test
+  public void interned()
+  {
+    assertSame(KeyValue.makeCharKey('a'), KeyValue.makeStringKey("a"));
+    assertSame(KeyValue.makeCharKey('a').withChar('A'), KeyValue.makeCharKey('A'));
+    assertSame(KeyValue.getKeyByName("shift"), KeyValue.getKeyByName("shift"));
+    assertSame(KeyValue.makeStringKey("Foo").withSymbol("Symbol"),
+        KeyValue.makeMacro("Symbol", new KeyValue[] { KeyValue.makeStringKey("Foo") }, 0));
+    assertSame(KeyValue.getKeyByName("tab").withFlags(0).withFlags(
+          KeyValue.getKeyByName("tab").getFlags()),
+        KeyValue.getKeyByName("tab"));
+    // Keys that are equal but render differently are not merged.
+    KeyValue l1 = KeyValue.getKeyByName("a:switch_to_layout_x");
+    KeyValue l2 = KeyValue.getKeyByName("b:switch_to_layout_x");
+    assertEquals(l1, l2);
+    assertEquals(l1.hashCode(), l2.hashCode());
+    assertNotSame(l1, l2);
+    assertEquals("b", l2.getString());
+    // Keys created with the constructor are not interned.
+    KeyValue k = new KeyValue("a", KeyValue.Kind.Char, 'a', 0);
+    assertNotSame(KeyValue.makeCharKey('a'), k);
+    assertEquals(KeyValue.makeCharKey('a'), k);
+    assertEquals(KeyValue.makeCharKey('a').hashCode(), k.hashCode());
+  }
+
+  @Test
+  public void key_by_name()
+  {
+    assertSame(KeyValue.makeCharKey('a'), KeyValue.getKeyByName("a"));
+    assertSame(KeyValue.makeCharKey('7'), KeyValue.getKeyByName("7"));
+    assertEquals(KeyValue.makeStringKey("₨", KeyValue.FLAG_SMALLER_FONT),
+        KeyValue.getKeyByName("₨"));
+    assertEquals(KeyValue.makeStringKey(":"), KeyValue.getKeyByName(":"));
+    // Cached results are the same as the first ones.
+    String[] names = new String[]{ "shift", "space", "switch_to_layout_x",
+      "a:switch_to_layout_x", ":str symbol='x':'y'", "x:'y',z", ":invalid",
+      "foo" };
+    for (String name : names)
+    {
+      KeyValue k = KeyValue.getKeyByName(name);
+      assertSame(name, k, KeyValue.getKeyByName(name));
+      assertSame(name, k, KeyValue.getKeyByName(new String(name)));
+    }
+  }
+
   @Test
   public void numpad_script()
   {
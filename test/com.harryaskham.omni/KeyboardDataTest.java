@@ -0,0 +1,74 @@
+package com.harryaskham.omni;
+
+import java.io.File;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class KeyboardDataTest
+{
+  KeyboardData _kw;
+
+  public KeyboardDataTest() {}
+
+  /** Layouts are served from [LayoutCache], the resources are not used. */
+  @Before
+  public void setup() throws Exception
+  {
+    LayoutCache.init_dir(new File(LayoutCacheTest.Utils.temp_dir(), "cache"), 1);
+    _kw = LayoutCacheTest.Utils.layout();
+    for (int id = 1; id <= 3; id++)
+      LayoutCache.save_resource(id, _kw);
+    LayoutCacheTest.Utils.wait_writer();
+    KeyboardData.trim_layout_cache(0);
+  }
+
+  @After
+  public void disable()
+  {
+    KeyboardData.set_layout_cache_limit(256 * 1024);
+    KeyboardData.trim_layout_cache(0);
+    LayoutCache._dir = null;
+  }
+
+  @Test
+  public void layout_cache()
+  {
+    KeyboardData l1 = KeyboardData.load(null, 1);
+    assertNotNull(l1);
+    assertSame(l1, KeyboardData.load(null, 1));
+    assertEquals(l1.estimated_size(), KeyboardData.layout_cache_bytes());
+  }
+
+  @Test
+  public void layout_cache_evicted()
+  {
+    int size = _kw.estimated_size();
+    KeyboardData.set_layout_cache_limit(2 * size);
+    KeyboardData l1 = KeyboardData.load(null, 1);
+    KeyboardData l2 = KeyboardData.load(null, 2);
+    // Recently used entries are kept.
+    assertSame(l1, KeyboardData.load(null, 1));
+    KeyboardData.load(null, 3);
+    assertEquals(2 * size, KeyboardData.layout_cache_bytes());
+    assertSame(l1, KeyboardData.load(null, 1));
+    assertNotSame(l2, KeyboardData.load(null, 2));
+    KeyboardData.trim_layout_cache(size);
+    assertEquals(size, KeyboardData.layout_cache_bytes());
+    KeyboardData.trim_layout_cache(0);
+    assertEquals(0, KeyboardData.layout_cache_bytes());
+  }
+
+  @Test
+  public void layout_failed() throws Exception
+  {
+    // Not in the cache, fails to parse without resources.
+    assertNull(KeyboardData.load(null, 42));
+    // Not retried.
+    LayoutCache.save_resource(42, _kw);
+    LayoutCacheTest.Utils.wait_writer();
+    assertNull(KeyboardData.load(null, 42));
+    assertEquals(0, KeyboardData.layout_cache_bytes());
+  }
+}
@@ -0,0 +1,58 @@
+package com.harryaskham.omni;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LatencyTraceTest
+{
+  public LatencyTraceTest() {}
+
+  @Test
+  public void percentile()
+  {
+    long[] a = new long[100];
+    for (int i = 0; i < a.length; i++)
+      a[i] = i + 1;
+    assertEquals(50, LatencyTrace.percentile(a, 100, 50));
+    assertEquals(95, LatencyTrace.percentile(a, 100, 95));
+    assertEquals(99, LatencyTrace.percentile(a, 100, 99));
+    assertEquals(1, LatencyTrace.percentile(a, 1, 99));
+    assertEquals(2, LatencyTrace.percentile(a, 3, 50));
+  }
+
+  @Test
+  public void record_spans()
+  {
+    LatencyTrace.set_enabled(true);
+    // Not triggered by a touch.
+    LatencyTrace.key_up(KeyValue.Kind.Char);
+    LatencyTrace.commit();
+    LatencyTrace.key_up_done();
+    assertEquals(0, LatencyTrace.size());
+    // Only the first commit is recorded.
+    LatencyTrace.touch_up(System.nanoTime() / 1000000L);
+    LatencyTrace.key_up(KeyValue.Kind.Char);
+    LatencyTrace.commit();
+    LatencyTrace.commit();
+    LatencyTrace.key_up_done();
+    assertEquals(1, LatencyTrace.size());
+    // Nothing sent.
+    LatencyTrace.touch_up(System.nanoTime() / 1000000L);
+    LatencyTrace.key_up(KeyValue.Kind.Modifier);
+    LatencyTrace.key_up_done();
+    LatencyTrace.commit();
+    assertEquals(1, LatencyTrace.size());
+    for (int i = 0; i < LatencyTrace.CAPACITY; i++)
+    {
+      LatencyTrace.touch_up(1);
+      LatencyTrace.key_up(KeyValue.Kind.Keyevent);
+      LatencyTrace.commit();
+    }
+    assertEquals(LatencyTrace.CAPACITY, LatencyTrace.size());
+    String s = LatencyTrace.summary();
+    assertTrue(s, s.contains("Keyevent n=" + LatencyTrace.CAPACITY));
+    assertFalse(s, s.contains("Char"));
+    LatencyTrace.set_enabled(false);
+    assertEquals(0, LatencyTrace.size());
+  }
+}
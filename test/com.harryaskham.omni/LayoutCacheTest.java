@@ -0,0 +1,225 @@
+package com.harryaskham.omni;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LayoutCacheTest
+{
+  public LayoutCacheTest() {}
+
+  @After
+  public void disable()
+  {
+    LayoutCache._dir = null;
+    LayoutCache._app_stamp = 0;
+  }
+
+  @Test
+  public void round_trip() throws Exception
+  {
+    KeyboardData kw = Utils.layout();
+    byte[] data = LayoutCache.encode(kw, "src", 1, 2);
+    Utils.assert_same_layout(kw, LayoutCache.decode(data, "src", 1, 2));
+  }
+
+  @Test
+  public void invalidated() throws Exception
+  {
+    byte[] data = LayoutCache.encode(Utils.layout(), "src", 1, 2);
+    assertNull(LayoutCache.decode(data, "other", 1, 2));
+    Utils.assert_stale(data, "src", 3, 2);
+    Utils.assert_stale(data, "src", 1, 3);
+    LayoutCache._app_stamp = 2;
+    Utils.assert_stale(data, "other", 1, 2);
+    LayoutCache._app_stamp = 0;
+    data[data.length / 2] ^= 1;
+    try
+    {
+      LayoutCache.decode(data, "src", 1, 2);
+      fail("Corrupted data");
+    }
+    catch (IOException e) {}
+  }
+
+  @Test
+  public void read_and_save() throws Exception
+  {
+    LayoutCache.init_dir(new File(Utils.temp_dir(), "cache"), 1);
+    KeyboardData kw = Utils.layout();
+    File f = LayoutCache.resource_file(42);
+    assertNull(LayoutCache.load_resource(42));
+    LayoutCache.save_resource(42, kw);
+    Utils.wait_writer();
+    Utils.assert_same_layout(kw, LayoutCache.load_resource(42));
+    // Stale entries are removed.
+    assertNull(LayoutCache.read(f, "res:42", 2, 0));
+    assertFalse(f.exists());
+    // Entries from another version of the app.
+    LayoutCache.save_resource(42, kw);
+    Utils.wait_writer();
+    LayoutCache._app_stamp = 2;
+    assertNull(LayoutCache.load_resource(42));
+    assertFalse(f.exists());
+    LayoutCache._app_stamp = 1;
+    // Invalid entries are removed.
+    LayoutCache.save_resource(42, kw);
+    Utils.wait_writer();
+    Utils.write(f, "invalid");
+    assertNull(LayoutCache.load_resource(42));
+    assertFalse(f.exists());
+  }
+
+  @Test
+  public void load_file() throws Exception
+  {
+    File dir = Utils.temp_dir();
+    LayoutCache.init_dir(new File(dir, "cache"), 1);
+    File src = new File(dir, "layout.xml");
+    Utils.write(src, "<keyboard/>");
+    KeyboardData kw = Utils.layout();
+    LayoutCache.save(LayoutCache.file_entry(src), src.getPath(),
+        src.lastModified(), src.length(), kw);
+    Utils.wait_writer();
+    // Not parsed.
+    Utils.assert_same_layout(kw, LayoutCache.load_file(src));
+    // Another file with the same entry, which is kept.
+    assertNull(LayoutCache.read(LayoutCache.file_entry(src), "other",
+          src.lastModified(), src.length()));
+    assertTrue(LayoutCache.file_entry(src).exists());
+    // Stale for the same file.
+    assertNull(LayoutCache.read(LayoutCache.file_entry(src), src.getPath(),
+          0, src.length()));
+    assertFalse(LayoutCache.file_entry(src).exists());
+    // Every entries are invalidated by app updates.
+    LayoutCache.save(LayoutCache.file_entry(src), src.getPath(),
+        src.lastModified(), src.length(), kw);
+    Utils.wait_writer();
+    LayoutCache._app_stamp = 2;
+    assertNull(LayoutCache.read(LayoutCache.file_entry(src), src.getPath(),
+          src.lastModified(), src.length()));
+    assertFalse(LayoutCache.file_entry(src).exists());
+  }
+
+  static class Utils
+  {
+    static void assert_stale(byte[] data, String source, long stamp1,
+        long stamp2) throws Exception
+    {
+      try
+      {
+        LayoutCache.decode(data, source, stamp1, stamp2);
+        fail("Not stale");
+      }
+      catch (LayoutCache.Stale e) {}
+    }
+
+    /** Exercise every field that is cached. */
+    static KeyboardData layout()
+    {
+      List<KeyboardData.Row> rows = new ArrayList<KeyboardData.Row>();
+      List<KeyboardData.Key> r1 = new ArrayList<KeyboardData.Key>();
+      r1.add(key(KeyboardData.Key.F_LOC << 2, 1.f, 0.f, "i", "1",
+            "a", null, "é", "cursor_left"));
+      r1.add(key(0, 1.5f, 0.5f, null, null,
+            "foo", null, null, null, null, null, null, "x:'y',z"));
+      rows.add(new KeyboardData.Row(r1, 0.9f, 0.1f));
+      List<KeyboardData.Key> r2 = new ArrayList<KeyboardData.Key>();
+      r2.add(key(0, 1.f, 0.f, null, null,
+            "A:switch_to_layout_x", null, null, null, "B:switch_to_layout_x"));
+      r2.add(key(0, 1.f, 0.f, null, null,
+            ":str symbol='s':'string'", null, null, null, null, null, "\\@"));
+      rows.add(new KeyboardData.Row(r2, 1.f, 0.f));
+      Modmap mm = new Modmap();
+      mm.add(Modmap.M.Shift, KeyValue.getKeyByName("a"),
+          KeyValue.getKeyByName("b"));
+      mm.add(Modmap.M.Fn, KeyValue.getKeyByName("x"),
+          KeyValue.getKeyByName("shift"));
+      return new KeyboardData(rows, 11.f, mm, "latin", "latin", "Test",
+          false, false, true);
+    }
+
+    static KeyboardData.Key key(int flags, float width, float shift,
+        String indication, String anticircle, String... names)
+    {
+      KeyValue[] kvs = new KeyValue[9];
+      for (int i = 0; i < names.length; i++)
+        if (names[i] != null)
+          kvs[i] = KeyValue.getKeyByName(names[i]);
+      KeyValue antic =
+        (anticircle == null) ? null : KeyValue.getKeyByName(anticircle);
+      return new KeyboardData.Key(kvs, antic, flags, width, shift, indication);
+    }
+
+    static void assert_same_layout(KeyboardData exp, KeyboardData act)
+    {
+      assertNotNull(act);
+      assertEquals(exp.name, act.name);
+      assertEquals(exp.script, act.script);
+      assertEquals(exp.numpad_script, act.numpad_script);
+      assertEquals(exp.bottom_row, act.bottom_row);
+      assertEquals(exp.embedded_number_row, act.embedded_number_row);
+      assertEquals(exp.locale_extra_keys, act.locale_extra_keys);
+      assertEquals(exp.keysWidth, act.keysWidth, 0.f);
+      assertEquals(exp.keysHeight, act.keysHeight, 0.f);
+      assertEquals(exp.rows.size(), act.rows.size());
+      for (int r = 0; r < exp.rows.size(); r++)
+      {
+        KeyboardData.Row er = exp.rows.get(r);
+        KeyboardData.Row ar = act.rows.get(r);
+        assertEquals(er.height, ar.height, 0.f);
+        assertEquals(er.shift, ar.shift, 0.f);
+        assertEquals(er.keys.size(), ar.keys.size());
+        for (int k = 0; k < er.keys.size(); k++)
+        {
+          KeyboardData.Key ek = er.keys.get(k);
+          KeyboardData.Key ak = ar.keys.get(k);
+          assertEquals(ek.keys.length, ak.keys.length);
+          // Keys are interned, the exact same instances are expected.
+          for (int i = 0; i < ek.keys.length; i++)
+          {
+            assertSame(ek.keys[i], ak.keys[i]);
+            assertEquals(ek.keyHasFlag(i, KeyboardData.Key.F_LOC),
+                ak.keyHasFlag(i, KeyboardData.Key.F_LOC));
+          }
+          assertSame(ek.anticircle, ak.anticircle);
+          assertEquals(ek.width, ak.width, 0.f);
+          assertEquals(ek.shift, ak.shift, 0.f);
+          assertEquals(ek.indication, ak.indication);
+        }
+      }
+      assertEquals(exp.modmap == null, act.modmap == null);
+      if (exp.modmap != null)
+        for (Modmap.M m : Modmap.M.values())
+          assertEquals(exp.modmap._map[m.ordinal()], act.modmap._map[m.ordinal()]);
+    }
+
+    static File temp_dir() throws IOException
+    {
+      File dir = File.createTempFile("layout_cache_test", "");
+      dir.delete();
+      dir.mkdir();
+      dir.deleteOnExit();
+      return dir;
+    }
+
+    static void write(File f, String s) throws IOException
+    {
+      try (FileOutputStream out = new FileOutputStream(f))
+      {
+        out.write(s.getBytes(StandardCharsets.UTF_8));
+      }
+    }
+
+    static void wait_writer() throws Exception
+    {
+      LayoutCache._writer.submit(() -> {}).get();
+    }
+  }
+}
@@ -0,0 +1,100 @@
+package com.harryaskham.omni;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LayoutModifierTest
+{
+  Config _conf;
+  KeyboardData _kw;
+
+  public LayoutModifierTest() {}
+
+  @Before
+  public void setup()
+  {
+    _kw = InputHarness.layout("q w e r t", "a s d f g", "shift z x c v");
+    _conf = Config.defaults(null);
+    _conf.layouts = new ArrayList<KeyboardData>();
+    _conf.layouts.add(_kw);
+    _conf.extra_keys_param = Utils.extra_keys("esc");
+    _conf.extra_keys_custom = new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    LayoutModifier.globalConfig = _conf;
+    LayoutModifier.number_row_symbols = InputHarness.layout("1 2 3").rows.get(0);
+    LayoutModifier.number_row_no_symbols = LayoutModifier.number_row_symbols;
+    LayoutModifier.bottom_row = InputHarness.layout("ctrl space enter").rows.get(0);
+    LayoutModifier.num_pad = InputHarness.layout("7 8 9", "4 5 6");
+    LayoutModifier._cache.clear();
+  }
+
+  @Test
+  public void cached()
+  {
+    KeyboardData m = LayoutModifier.modify_layout(_kw);
+    assertSame(m, LayoutModifier.modify_layout(_kw));
+    // The config maps are re-created on refresh.
+    _conf.extra_keys_param = Utils.extra_keys("esc");
+    _conf.extra_keys_custom = new HashMap<KeyValue, KeyboardData.PreferredPos>();
+    assertSame(m, LayoutModifier.modify_layout(_kw));
+    assertNotNull(m.findKeyWithValue(KeyValue.getKeyByName("esc")));
+  }
+
+  @Test
+  public void config_changed()
+  {
+    KeyboardData m = LayoutModifier.modify_layout(_kw);
+    _conf.add_number_row = true;
+    KeyboardData m_number_row = LayoutModifier.modify_layout(_kw);
+    assertEquals(m.rows.size() + 1, m_number_row.rows.size());
+    _conf.add_number_row = false;
+    _conf.extra_keys_param = Utils.extra_keys("tab");
+    KeyboardData m_tab = LayoutModifier.modify_layout(_kw);
+    assertNotSame(m, m_tab);
+    assertNotNull(m_tab.findKeyWithValue(KeyValue.getKeyByName("tab")));
+    assertNull(m_tab.findKeyWithValue(KeyValue.getKeyByName("esc")));
+    _conf.extra_keys_param = Utils.extra_keys("esc");
+    assertSame(m, LayoutModifier.modify_layout(_kw));
+    // Another layout.
+    KeyboardData kw2 = InputHarness.layout("q w e r t", "a s d f g", "shift z x c v");
+    assertNotSame(m, LayoutModifier.modify_layout(kw2));
+  }
+
+  @Test
+  public void evicted()
+  {
+    _conf.actionLabel = "label0";
+    KeyboardData first = LayoutModifier.modify_layout(_kw);
+    for (int i = 1; i <= LayoutModifier.CACHE_SIZE; i++)
+    {
+      _conf.actionLabel = "label" + i;
+      LayoutModifier.modify_layout(_kw);
+    }
+    assertEquals(LayoutModifier.CACHE_SIZE, LayoutModifier._cache.size());
+    _conf.actionLabel = "label0";
+    assertNotSame(first, LayoutModifier.modify_layout(_kw));
+    // Recently used entries are kept.
+    _conf.actionLabel = "label" + LayoutModifier.CACHE_SIZE;
+    KeyboardData last = LayoutModifier.modify_layout(_kw);
+    _conf.actionLabel = "label2";
+    LayoutModifier.modify_layout(_kw);
+    _conf.actionLabel = "label" + LayoutModifier.CACHE_SIZE;
+    assertSame(last, LayoutModifier.modify_layout(_kw));
+  }
+
+  static class Utils
+  {
+    static Map<KeyValue, KeyboardData.PreferredPos> extra_keys(String... names)
+    {
+      Map<KeyValue, KeyboardData.PreferredPos> ks =
+        new HashMap<KeyValue, KeyboardData.PreferredPos>();
+      for (String name : names)
+        ks.put(KeyValue.getKeyByName(name),
+            new KeyboardData.PreferredPos(KeyboardData.PreferredPos.DEFAULT));
+      return ks;
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.harryaskham.omni;
+
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class LogsTest
+{
+  public LogsTest() {}
+
+  @Test
+  public void ring_keeps_recent_lines()
+  {
+    Logs.clearBuffer();
+    assertEquals(0, Logs.bufferedLineCount());
+    assertEquals("", Logs.getRecentLogsText());
+    int n = Logs.BUFFER_CAPACITY + 10;
+    for (int i = 0; i < n; i++)
+      Logs.record('I', "T", "m" + i);
+    assertEquals(Logs.BUFFER_CAPACITY, Logs.bufferedLineCount());
+    String[] lines = Logs.getRecentLogsText().split("\n");
+    assertEquals(Logs.BUFFER_CAPACITY, lines.length);
+    assertTrue(lines[0].endsWith(" I/T: m10"));
+    assertTrue(lines[lines.length - 1].endsWith(" I/T: m" + (n - 1)));
+  }
+
+  @Test
+  public void clear_hides_previous_lines()
+  {
+    Logs.record('W', "T", "before");
+    Logs.clearBuffer();
+    Logs.record('E', "T", "after");
+    assertEquals(1, Logs.bufferedLineCount());
+    assertTrue(Logs.getRecentLogsText().endsWith(" E/T: after\n"));
+  }
+}
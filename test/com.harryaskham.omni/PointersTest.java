@@ -0,0 +1,158 @@
+package com.harryaskham.omni;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class PointersTest
+{
+  public PointersTest() {}
+
+  @Test
+  public void tap()
+  {
+    InputHarness h = Utils.harness();
+    h.tap("a");
+    h.tap("b");
+    assertEquals(Arrays.asList("a", "b"), h.keys);
+    assertEquals("ab", h.text.toString());
+  }
+
+  @Test
+  public void swipe_to_corner()
+  {
+    InputHarness h = Utils.harness();
+    h.swipe("a", 2, 5);
+    h.swipe("a", 3, 1);
+    assertEquals(Arrays.asList("1", "2"), h.keys);
+    assertEquals("12", h.text.toString());
+  }
+
+  @Test
+  public void shift_latch_and_lock()
+  {
+    InputHarness h = Utils.harness();
+    h.tap("shift");
+    h.tap("a");
+    h.tap("a");
+    assertEquals("Aa", h.text.toString());
+    // Pressing shift twice unlatches it.
+    h.tap("shift");
+    h.tap("shift");
+    h.tap("b");
+    assertEquals("Aab", h.text.toString());
+    // Holding shift locks it.
+    float[] c = h.center(h.key("shift"));
+    h.down(0, c[0], c[1]);
+    h.advance(h.config.longPressTimeout + 10);
+    h.up(0);
+    h.tap("a");
+    h.tap("b");
+    assertEquals("AabAB", h.text.toString());
+  }
+
+  @Test
+  public void long_press_repeat()
+  {
+    InputHarness h = Utils.harness();
+    float[] c = h.center(h.key("b"));
+    h.down(0, c[0], c[1]);
+    // Repeats start after [longPressTimeout] and then every
+    // [longPressInterval], slightly accelerating.
+    h.advance(h.config.longPressTimeout + 3 * h.config.longPressInterval);
+    h.up(0);
+    assertEquals("bbbbb", h.text.toString());
+    assertEquals(4, h.stats.count[InputHarness.Stats.TIMEOUT]);
+  }
+
+  @Test
+  public void slider()
+  {
+    InputHarness h = Utils.harness();
+    h.swipe("cursor_left", 6, 20);
+    assertEquals(Arrays.asList("slider:cursor_left"), h.keys);
+    assertTrue(h.key_events > 0);
+  }
+
+  @Test
+  public void slider_scrub_after_slow_drag()
+  {
+    InputHarness h =
+      new InputHarness(InputHarness.layout("a,6=cursor_right b c"));
+    float[] c = h.center(h.key("a"));
+    float step = h.config.slide_step_px;
+    float x = c[0];
+    h.down(0, x, c[1]);
+    h.advance(10);
+    x += 2 * step;
+    h.move(0, x, c[1]);
+    // Slowly, for more than [SCRUB_THRESHOLD] steps.
+    for (int i = 0; i < 100; i++)
+    {
+      h.advance(100);
+      x += step;
+      h.move(0, x, c[1]);
+    }
+    int slow = h.key_events;
+    // Then quickly, not far enough to accelerate.
+    h.advance(10);
+    x += 10 * step;
+    h.move(0, x, c[1]);
+    h.up(0);
+    // The slow part is not counted toward the acceleration. The speed was
+    // under 2, each step is a key down and a key up.
+    assertTrue(slow > 2 * Pointers.Sliding.SCRUB_THRESHOLD);
+    assertTrue(h.key_events - slow <= 2 * 20);
+  }
+
+  @Test
+  public void replay_recorded_trace() throws Exception
+  {
+    File f = File.createTempFile("pointers_test", ".bin");
+    f.deleteOnExit();
+    InputHarness h = Utils.harness();
+    EventTraceTest.Utils.start(f);
+    h.tap("a");
+    h.swipe("a", 2, 5);
+    h.tap("shift");
+    h.tap("b");
+    float[] c = h.center(h.key("c"));
+    h.down(3, c[0], c[1]);
+    h.advance(700);
+    h.up(3);
+    h.swipe("cursor_left", 6, 20);
+    EventTrace.set_enabled(false);
+    EventTraceTest.Utils.wait_writer();
+    InputHarness r = Utils.harness();
+    r.replay(EventTrace.read_file(f.getPath()));
+    assertEquals(h.keys, r.keys);
+    assertEquals(h.text.toString(), r.text.toString());
+    assertEquals(h.key_events, r.key_events);
+  }
+
+  @Test
+  public void type_planned_text()
+  {
+    KeyboardData kw = InputHarness.layout(
+        "q w e,2=' a",
+        "shift compose space enter");
+    InputHarness h = new InputHarness(kw);
+    TypingPlan p = TypingPlan.plan(kw, "Wé Qa!\n", 7);
+    assertEquals("Wé Qa\nW", p.text);
+    assertEquals("!", p.skipped);
+    p.run(h);
+    assertEquals("Wé QaW", h.text.toString());
+  }
+
+  static class Utils
+  {
+    static InputHarness harness()
+    {
+      return new InputHarness(InputHarness.layout(
+            "a,2=1,3=2 b c",
+            "shift cursor_left backspace"));
+    }
+  }
+}
@@ -0,0 +1,81 @@
+package com.harryaskham.omni;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import static org.junit.Assert.*;
+
+public class TimeoutHeapTest
+{
+  public TimeoutHeapTest() {}
+
+  @Test
+  public void poll_in_order()
+  {
+    TimeoutHeap h = new TimeoutHeap();
+    long[] deadlines = { 50, 10, 40, 30, 20, 90, 70, 60, 80, 0 };
+    for (long d : deadlines)
+      h.schedule(new TimeoutHeap.Entry(), d);
+    assertEquals(10, h.size());
+    assertNull(h.pollExpired(-1));
+    assertEquals(Utils.list(0, 10, 20, 30, 40), Utils.poll_all(h, 45));
+    assertEquals(Utils.list(50, 60, 70, 80, 90), Utils.poll_all(h, 100));
+    assertTrue(h.isEmpty());
+  }
+
+  @Test
+  public void cancel_and_reschedule()
+  {
+    TimeoutHeap h = new TimeoutHeap();
+    TimeoutHeap.Entry[] es = new TimeoutHeap.Entry[6];
+    for (int i = 0; i < es.length; i++)
+    {
+      es[i] = new TimeoutHeap.Entry();
+      h.schedule(es[i], i * 10);
+    }
+    h.cancel(es[0]);
+    h.cancel(es[3]);
+    h.cancel(es[3]);
+    assertFalse(es[3].isScheduled());
+    h.schedule(es[5], 5);
+    h.schedule(es[1], 100);
+    assertSame(es[5], h.peek());
+    assertEquals(Utils.list(5, 20, 40, 100), Utils.poll_all(h, 1000));
+    h.schedule(es[2], 1);
+    h.clear();
+    assertFalse(es[2].isScheduled());
+    assertNull(h.peek());
+  }
+
+  @Test
+  public void repeat_interval()
+  {
+    assertEquals(100, Pointers.repeat_interval(100, 0));
+    assertEquals(75, Pointers.repeat_interval(100, Pointers.REPEAT_ACCEL_STEPS / 2));
+    assertEquals(50, Pointers.repeat_interval(100, Pointers.REPEAT_ACCEL_STEPS));
+    assertEquals(50, Pointers.repeat_interval(100, 1000));
+  }
+
+  static class Utils
+  {
+    static List<Long> poll_all(TimeoutHeap h, long now)
+    {
+      List<Long> ds = new ArrayList<Long>();
+      TimeoutHeap.Entry e;
+      while ((e = h.pollExpired(now)) != null)
+      {
+        assertFalse(e.isScheduled());
+        ds.add(e.deadline);
+      }
+      return ds;
+    }
+
+    static List<Long> list(long... ds)
+    {
+      List<Long> l = new ArrayList<Long>();
+      for (long d : ds)
+        l.add(d);
+      return l;
+    }
+  }
+}
@@ -0,0 +1,204 @@
+package com.harryaskham.omni;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/** The key presses needed to type a text on a layout, to drive an
+    [InputHarness]. A character is typed by tapping or swiping the key that
+    has it, possibly after tapping shift, fn or the compose key followed by a
+    compose sequence. Characters that can't be typed on the layout are
+    skipped. Newlines are typed with the enter key. */
+public final class TypingPlan
+{
+  /** Number of moves per swipe, see [InputHarness.swipe]. */
+  public static final int SWIPE_STEPS = 3;
+  /** Maximum length of the compose sequences that are searched. */
+  static final int MAX_COMPOSE_DEPTH = 3;
+
+  /** The strokes: a key and an index in [KeyboardData.Key.keys]. Index [0]
+      is a tap, the others are swipes. */
+  public final KeyboardData.Key[] keys;
+  public final int[] indexes;
+  /** The typed text. */
+  public final String text;
+  /** The characters of the input that can't be typed, once each. */
+  public final String skipped;
+
+  TypingPlan(List<Stroke> strokes, String text_, String skipped_)
+  {
+    int n = strokes.size();
+    keys = new KeyboardData.Key[n];
+    indexes = new int[n];
+    for (int i = 0; i < n; i++)
+    {
+      keys[i] = strokes.get(i).key;
+      indexes[i] = strokes.get(i).index;
+    }
+    text = text_;
+    skipped = skipped_;
+  }
+
+  /** Plan the typing of [length] characters from [text], which is repeated
+      as needed. */
+  public static TypingPlan plan(KeyboardData kw, String text, int length)
+  {
+    Map<Character, Stroke[]> strokes = strokes_per_char(kw);
+    List<Stroke> plan = new ArrayList<Stroke>();
+    StringBuilder typed = new StringBuilder();
+    StringBuilder skipped = new StringBuilder();
+    for (int i = 0; typed.length() < length; i++)
+    {
+      if (i == text.length())
+      {
+        if (typed.length() == 0)
+          throw new IllegalArgumentException("Nothing can be typed");
+        i = 0;
+      }
+      char c = text.charAt(i);
+      Stroke[] ss = strokes.get(c);
+      if (ss == null)
+      {
+        if (skipped.indexOf(String.valueOf(c)) < 0)
+          skipped.append(c);
+        continue;
+      }
+      for (Stroke s : ss)
+        plan.add(s);
+      typed.append(c);
+    }
+    return new TypingPlan(plan, typed.toString(), skipped.toString());
+  }
+
+  /** Type the text. [InputHarness.text] receives [text] without the
+      newlines, which are sent as key events. */
+  public void run(InputHarness h)
+  {
+    for (int i = 0; i < keys.length; i++)
+    {
+      if (indexes[i] == 0)
+        h.tap(keys[i]);
+      else
+        h.swipe(keys[i], indexes[i], SWIPE_STEPS);
+    }
+  }
+
+  static final class Stroke
+  {
+    final KeyboardData.Key key;
+    final int index;
+
+    Stroke(KeyboardData.Key k, int i)
+    {
+      key = k;
+      index = i;
+    }
+  }
+
+  /** The shortest way to type each character. Taps are preferred over
+      swipes, modifiers are only used when needed and compose sequences last. */
+  static Map<Character, Stroke[]> strokes_per_char(KeyboardData kw)
+  {
+    Map<Character, Stroke[]> m = new HashMap<Character, Stroke[]>();
+    KeyValue enter = KeyValue.getKeyByName("enter");
+    for (int i = 0; i < 9; i++)
+      for (KeyboardData.Row row : kw.rows)
+        for (KeyboardData.Key k : row.keys)
+        {
+          KeyValue kv = k.keys[i];
+          if (kv == null)
+            continue;
+          if (kv.equals(enter))
+            add(m, '\n', new Stroke(k, i));
+          else if (kv.getKind() == KeyValue.Kind.Char)
+            add(m, kv.getChar(), new Stroke(k, i));
+        }
+    add_modified(m, kw, "shift");
+    add_modified(m, kw, "fn");
+    add_composed(m, kw);
+    return m;
+  }
+
+  static void add(Map<Character, Stroke[]> m, char c, Stroke... ss)
+  {
+    if (!m.containsKey(c))
+      m.put(c, ss);
+  }
+
+  /** The characters typed after tapping the modifier [name]. */
+  static void add_modified(Map<Character, Stroke[]> m, KeyboardData kw,
+      String name)
+  {
+    KeyValue mod = KeyValue.getKeyByName(name);
+    KeyboardData.Key mod_key = kw.findKeyWithValue(mod);
+    if (mod_key == null)
+      return;
+    Pointers.Modifiers mods = Pointers.Modifiers.ofArray(new KeyValue[]{ mod }, 1);
+    Stroke mod_stroke = new Stroke(mod_key, 0);
+    for (int i = 0; i < 9; i++)
+      for (KeyboardData.Row row : kw.rows)
+        for (KeyboardData.Key k : row.keys)
+        {
+          if (k.keys[i] == null)
+            continue;
+          KeyValue kv = KeyModifier.modify(k.keys[i], mods);
+          if (kv != null && kv.getKind() == KeyValue.Kind.Char)
+            add(m, kv.getChar(), mod_stroke, new Stroke(k, i));
+        }
+  }
+
+  /** The characters typed with the compose key, if it is on the layout.
+      Sequences are made of the characters already in [m]. */
+  static void add_composed(Map<Character, Stroke[]> m, KeyboardData kw)
+  {
+    KeyboardData.Key compose_key =
+      kw.findKeyWithValue(KeyValue.getKeyByName("compose"));
+    if (compose_key == null)
+      return;
+    Map<Character, Stroke[]> base = new HashMap<Character, Stroke[]>(m);
+    ArrayDeque<Pending> q = new ArrayDeque<Pending>();
+    List<Stroke> first = new ArrayList<Stroke>();
+    first.add(new Stroke(compose_key, 0));
+    q.add(new Pending(ComposeKeyData.compose, first, 0));
+    char[] states = ComposeKeyData.states;
+    char[] edges = ComposeKeyData.edges;
+    while (!q.isEmpty())
+    {
+      Pending p = q.poll();
+      for (int t = p.state + 1; t < p.state + edges[p.state]; t++)
+      {
+        Stroke[] ss = base.get(states[t]);
+        if (ss == null)
+          continue;
+        KeyValue r = ComposeKey.apply(p.state, states[t]);
+        if (r == null)
+          continue;
+        List<Stroke> seq = new ArrayList<Stroke>(p.strokes);
+        for (Stroke s : ss)
+          seq.add(s);
+        if (r.getKind() == KeyValue.Kind.Char)
+          add(m, r.getChar(), seq.toArray(new Stroke[0]));
+        else if (r.getKind() == KeyValue.Kind.Compose_pending
+            && p.depth + 1 < MAX_COMPOSE_DEPTH)
+          q.add(new Pending(r.getPendingCompose(), seq, p.depth + 1));
+      }
+    }
+  }
+
+  static final class Pending
+  {
+    final int state;
+    final List<Stroke> strokes;
+    /** Number of characters in the sequence. */
+    final int depth;
+
+    Pending(int s, List<Stroke> ss, int d)
+    {
+      state = s;
+      strokes = ss;
+      depth = d;
+    }
+  }
+}